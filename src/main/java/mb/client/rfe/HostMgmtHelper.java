@@ -18,6 +18,7 @@ import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonBar.ButtonData;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
 import javafx.scene.control.PasswordField;
@@ -118,6 +119,9 @@ public class HostMgmtHelper {
         user.setPromptText("Username");
         PasswordField pass = new PasswordField();
         pass.setPromptText("Password");
+        CheckBox minimalListing = new CheckBox("Request only the properties needed for listings");
+        CheckBox compressedListing = new CheckBox("Request compressed listings");
+        compressedListing.setSelected(true);
         
         grid.add(new Label("Base URI"), 0, 0);
         grid.add(baseUri, 1, 0);
@@ -127,6 +131,8 @@ public class HostMgmtHelper {
         grid.add(user, 1, 2);
         grid.add(new Label("Password (stored insecurely)"), 0, 3);
         grid.add(pass, 1, 3);
+        grid.add(minimalListing, 1, 4);
+        grid.add(compressedListing, 1, 5);
         
         dlg.getDialogPane().setContent(grid);
         
@@ -136,8 +142,11 @@ public class HostMgmtHelper {
         // Create new WebDAVHost instance when save is clicked
         dlg.setResultConverter(button -> {
             if (button == saveButtonType) {
-                return new ResourceHost(URI.create(baseUri.getText()), 
+                ResourceHost host = new ResourceHost(URI.create(baseUri.getText()), 
                         root.getText(), user.getText(), pass.getText());
+                host.setMinimalListing(minimalListing.isSelected());
+                host.setCompressedListing(compressedListing.isSelected());
+                return host;
             }
             return null;
         });
@@ -155,11 +164,14 @@ public class HostMgmtHelper {
             // Try to connect
             ResourceHost host = new ResourceHost(URI.create(baseUri.getText()), 
                     root.getText(), user.getText(), pass.getText());
+            host.setMinimalListing(minimalListing.isSelected());
+            host.setCompressedListing(compressedListing.isSelected());
+            // Neither stores nor the search index of the host are touched just for testing the connection
             WebDAVService svc = new WebDAVService(host);
-            svc.connect();
+            svc.connect(false);
             WebDAVResource res = new WebDAVResource(host.getBaseURI().toString() + host.getRoot(), host.getRoot());
             try {
-                svc.list(res.getAbsolutePath());
+                svc.list(res.getAbsolutePath(), 0);
             } catch (WebDAVServiceException e) {
                 
                 // Show connection error
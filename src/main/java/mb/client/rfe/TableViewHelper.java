@@ -4,17 +4,24 @@ import static java.text.MessageFormat.format;
 
 import java.io.File;
 import java.text.Collator;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
 import org.controlsfx.control.TaskProgressView;
 import org.kordamp.ikonli.javafx.FontIcon;
 
+import javafx.application.Platform;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
@@ -22,6 +29,7 @@ import javafx.concurrent.Task;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableColumn.SortType;
@@ -37,34 +45,41 @@ import javafx.scene.input.DragEvent;
 import javafx.scene.input.Dragboard;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.input.TransferMode;
+import javafx.stage.DirectoryChooser;
 import mb.client.rfe.components.ComponentUtils;
 import mb.client.rfe.components.ResourceContextMenu;
 import mb.client.rfe.media.MPMedia;
 import mb.client.rfe.media.MPlayer;
 import mb.client.rfe.model.ResourceTableItem;
 import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.AsyncResourceRepositoryService;
+import mb.client.rfe.service.BulkOperation;
 import mb.client.rfe.service.ConfigService;
-import mb.client.rfe.service.ResourceRepositoryService;
-import mb.client.rfe.service.WebDAVServiceException;
+import mb.client.rfe.service.FolderSync;
+import mb.client.rfe.service.FolderUploader;
 import mb.client.rfe.service.WebDAVUtil;
+import mb.client.rfe.tasks.BulkOperationTask;
 import mb.client.rfe.tasks.DownloadFileTask;
+import mb.client.rfe.tasks.DownloadFolderTask;
+import mb.client.rfe.tasks.SyncFolderTask;
 import mb.client.rfe.tasks.UploadFileTask;
+import mb.client.rfe.tasks.UploadFolderTask;
 
 public class TableViewHelper {
     
     private static final Logger LOG = Logger.getLogger(TableViewHelper.class.getName());
     private static final ConfigService config = ConfigService.getInstance();
     private static final Collator DEFAULT_COLLATOR = Collator.getInstance();
-    private static final DataFormat WEBDAV_RESOURCE_PATH = new DataFormat("webdav/resourcepath");
+    private static final DataFormat WEBDAV_RESOURCE_PATHS = new DataFormat("webdav/resourcepaths");
     
-    private ResourceRepositoryService service;
+    private AsyncResourceRepositoryService service;
     private ObservableList<ResourceTableItem> fileList;
     private TreeView<WebDAVResource> tree;
     private TaskProgressView<Task<?>> tpv;
     private MPlayer player;
     private TableView<ResourceTableItem> table;
     
-    public TableViewHelper(ResourceRepositoryService service, ObservableList<ResourceTableItem> fileList,
+    public TableViewHelper(AsyncResourceRepositoryService service, ObservableList<ResourceTableItem> fileList,
             TreeView<WebDAVResource> tree, TaskProgressView<Task<?>> tpv, MPlayer player) {
         this.service = service;
         this.fileList = fileList;
@@ -78,7 +93,7 @@ public class TableViewHelper {
         return table;
     }
     
-    public void setService(ResourceRepositoryService service) {
+    public void setService(AsyncResourceRepositoryService service) {
         this.service = service;
     }
 
@@ -87,6 +102,7 @@ public class TableViewHelper {
         table = new TableView<>();
         table.setTableMenuButtonVisible(true);
         table.setColumnResizePolicy(TableView.UNCONSTRAINED_RESIZE_POLICY);
+        table.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         table.setStyle("-fx-border-width: 0; -fx-border-color: transparent; -fx-table-cell-border-color: transparent;"); // Hide border
         
         // Row double click and drag & drop
@@ -245,7 +261,9 @@ public class TableViewHelper {
                 event -> onShowSelectedResourceProperties(), 
                 event -> onAddSelectedResourceToPlaylist(),
                 event -> onDeleteSelectedResource(),
-                event -> onCreateDirectory()));
+                event -> onCreateDirectory(),
+                event -> onDownloadSelectedResources(),
+                event -> onSyncSelectedDirectory()));
     }
     
     private ResourceTableItem findResourceByName(String name) {
@@ -275,47 +293,183 @@ public class TableViewHelper {
         WebDAVResource res = table.getSelectionModel().getSelectedItem().getDavRes();
         if (player != null) {
             if (res.isDirectory()) {
-
-                List<WebDAVResource> files;
-                try {
-                    
-                    // TODO This should be an async task
-                    files = service.listFiles(res.getAbsolutePath());
-                } catch (WebDAVServiceException e) {
-                    LOG.log(Level.WARNING, "Listing files failed", e);
-                    return;
-                }
-
-                files.stream().forEachOrdered(this::addResourceToPlaylistIfMedia);
+                service.listFilesAsync(res.getAbsolutePath()).whenComplete((files, e) -> Platform.runLater(() -> {
+                    if(e != null) {
+                        LOG.log(Level.WARNING, "Listing files failed", e);
+                        return;
+                    }
+                    files.stream().forEachOrdered(this::addResourceToPlaylistIfMedia);
+                }));
             } else {
                 addResourceToPlaylistIfMedia(res);
             }
         }
     }
     
-    private void onDeleteSelectedResource() {
+    private void onDownloadSelectedResources() {
+        for (ResourceTableItem item : table.getSelectionModel().getSelectedItems()) {
+            Task<?> task;
+            if(item.isDirectory()) {
+                
+                // Whole directory trees end up next to downloaded files
+                DownloadFolderTask folderTask = new DownloadFolderTask(service, item.getDavRes(), new File("downloads"));
+                folderTask.setOnSucceeded(event -> {
+                    folderTask.getValue().getFailures().forEach((path, e) -> 
+                        LOG.log(Level.WARNING, format("Downloading ''{0}'' failed", path), e));
+                });
+                folderTask.setOnFailed(event -> 
+                    LOG.log(Level.SEVERE, "Error downloading directory", folderTask.getException()));
+                task = folderTask;
+            } else {
+                task = new DownloadFileTask(service, item.getDavRes());
+            }
+            tpv.getTasks().add(0, task);
+            WebDAVUtil.startTask(task);
+        }
+    }
+    
+    private void onSyncSelectedDirectory() {
         ResourceTableItem item = table.getSelectionModel().getSelectedItem();
+        if(item == null || !item.isDirectory()) {
+            return;
+        }
+        
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle(format("Sync ''{0}'' with", item.getDavRes().getAbsolutePath()));
+        File localDir = chooser.showDialog(table.getScene().getWindow());
+        if(localDir != null) {
+            syncFolder(item.getDavRes(), localDir);
+        }
+    }
+    
+    /**
+     * Syncs a directory with a local one in the background, offering to run it again 
+     * if anything failed. Conflicting files are left alone and reported.
+     */
+    private void syncFolder(WebDAVResource res, File localDir) {
+        SyncFolderTask task = new SyncFolderTask(service, res, localDir);
+        
+        task.setOnSucceeded(event -> {
+            FolderSync.Summary summary = task.getValue();
+            summary.getFailures().forEach((path, e) -> 
+                LOG.log(Level.WARNING, format("Syncing ''{0}'' failed", path), e));
+            
+            // Resources which made it are unchanged when running again
+            Map<String, String> problems = new LinkedHashMap<>(summary.getConflicts());
+            summary.getFailures().forEach((path, e) -> problems.put(path, String.valueOf(e.getMessage())));
+            if(!problems.isEmpty()) {
+                ComponentUtils.createBulkFailuresDialog("Syncing incomplete", problems).showAndWait()
+                    .filter(button -> button == ComponentUtils.RETRY)
+                    .ifPresent(button -> syncFolder(res, localDir));
+            }
+        });
+        task.setOnFailed(event -> LOG.log(Level.SEVERE, "Error syncing directory", task.getException()));
+        
+        tpv.getTasks().add(0, task);
+        WebDAVUtil.startTask(task);
+    }
+    
+    private void onDeleteSelectedResource() {
+        List<ResourceTableItem> items = new ArrayList<>(table.getSelectionModel().getSelectedItems());
         
         // Check for empty row
-        if(item == null) {
+        if(items.isEmpty()) {
             return;
         }
         
-        WebDAVResource res = item.getDavRes();
-        Alert dialog = ComponentUtils.createResourceDeletionDialog(res.getAbsolutePath());
+        Alert dialog = ComponentUtils.createResourceDeletionDialog(describe(items));
         Optional<ButtonType> input = dialog.showAndWait();
         if (input.get() == ButtonType.OK){
-            try {
-                service.delete(res);
-                table.getItems().remove(item);
-            } catch (WebDAVServiceException e) {
-                String msg = format("Failed to delete ''{0}''", res.getAbsolutePath());
-                LOG.log(Level.WARNING, msg, e);
+            runBulkOperation("Deleting", items, item -> service.delete(item.getDavRes()), true);
+        }
+    }
+    
+    /**
+     * Runs an operation on many table items in the background, optionally removing the ones it 
+     * succeeded for from the table, and offering to retry the others
+     */
+    private void runBulkOperation(String verb, List<ResourceTableItem> items, 
+            BulkOperation.Action<ResourceTableItem> action, boolean removeSucceeded) {
+        BulkOperationTask<ResourceTableItem> task = new BulkOperationTask<>(
+                format("{0} {1}", verb, describe(items)), new BulkOperation<>(service.getHost(), action), items);
+        
+        task.setOnSucceeded(event -> {
+            List<BulkOperation.Result<ResourceTableItem>> results = task.getValue();
+            
+            // Remove all at once to get a single change event
+            if(removeSucceeded) {
+                fileList.removeAll(results.stream()
+                        .filter(BulkOperation.Result::isSuccess)
+                        .map(BulkOperation.Result::getItem)
+                        .collect(Collectors.toSet()));
+            }
+            
+            List<BulkOperation.Result<ResourceTableItem>> failed = results.stream()
+                    .filter(result -> !result.isSuccess())
+                    .collect(Collectors.toList());
+            if(!failed.isEmpty()) {
+                failed.forEach(result -> LOG.log(Level.WARNING, format("{0} ''{1}'' failed", verb, 
+                        result.getItem().getDavRes().getAbsolutePath()), result.getException()));
                 
-                Alert alert = ComponentUtils.createAlertDialog(AlertType.ERROR, "Error", msg, e.getMessage());
-                alert.showAndWait();
+                Map<String, String> failures = new LinkedHashMap<>();
+                failed.forEach(result -> failures.put(result.getItem().getDavRes().getAbsolutePath(), 
+                        String.valueOf(result.getException().getMessage())));
+                ComponentUtils.createBulkFailuresDialog(format("{0} failed", verb), failures).showAndWait()
+                    .filter(button -> button == ComponentUtils.RETRY)
+                    .ifPresent(button -> runBulkOperation(verb, failed.stream()
+                            .map(BulkOperation.Result::getItem)
+                            .collect(Collectors.toList()), action, removeSucceeded));
             }
-        }
+        });
+        
+        tpv.getTasks().add(0, task);
+        WebDAVUtil.startTask(task);
+    }
+    
+    /**
+     * Uploads local files and directory trees in the background as a single task, 
+     * offering to run it again if anything failed
+     */
+    private void uploadFolders(WebDAVResource parent, List<File> files) {
+        UploadFolderTask task = new UploadFolderTask(service, parent, files);
+        
+        task.setOnSucceeded(event -> {
+            FolderUploader.Summary summary = task.getValue();
+            
+            // Show uploaded resources which aren't listed yet
+            Set<String> listed = fileList.stream()
+                    .map(item -> item.getDavRes().getAbsolutePath())
+                    .collect(Collectors.toSet());
+            summary.getTopLevelPaths().stream()
+                .filter(path -> !listed.contains(path))
+                .forEach(path -> service.getAsync(path).whenComplete((res, e) -> Platform.runLater(() -> {
+                    if(e == null) {
+                        fileList.add(new ResourceTableItem(res));
+                    } else {
+                        LOG.log(Level.WARNING, format("Fetching uploaded resource ''{0}'' failed", path), e);
+                    }
+                })));
+            
+            if(!summary.getFailures().isEmpty()) {
+                summary.getFailures().forEach((file, e) -> 
+                    LOG.log(Level.WARNING, format("Uploading ''{0}'' failed", file), e));
+                
+                // Files which made it are skipped when running again
+                Map<String, String> failures = new LinkedHashMap<>();
+                summary.getFailures().forEach((file, e) -> failures.put(file.getPath(), String.valueOf(e.getMessage())));
+                ComponentUtils.createBulkFailuresDialog("Uploading failed", failures).showAndWait()
+                    .filter(button -> button == ComponentUtils.RETRY)
+                    .ifPresent(button -> uploadFolders(parent, files));
+            }
+        });
+        task.setOnFailed(event -> LOG.log(Level.SEVERE, "Error uploading files", task.getException()));
+        
+        tpv.getTasks().add(0, task);
+        WebDAVUtil.startTask(task);
+    }
+    
+    private static String describe(List<ResourceTableItem> items) {
+        return items.size() == 1 ? items.get(0).getDavRes().getAbsolutePath() : format("{0} resources", items.size());
     }
     
     private void onCreateDirectory() {
@@ -328,36 +482,49 @@ public class TableViewHelper {
         TextInputDialog dialog = ComponentUtils.createTextInputDialog("Create Directory", 
                 format("Create in ''{0}''", res.getAbsolutePath()), "Directory Name:", "New Folder");
         dialog.showAndWait().ifPresent(name -> {
-            try {
-                
-                // Execute create
-                String dirPath = service.createDirectory(res, name);
-                
-                // Show created directory
-                List<WebDAVResource> dirRes = service.list(dirPath, 0);
-                fileList.add(new ResourceTableItem(dirRes.get(0)));
-                
-            } catch (WebDAVServiceException e) {
-                String msg = format("Failed to create directory ''{0}''", res.getAbsolutePath());
-                LOG.log(Level.WARNING, msg, e);
-                
-                Alert alert = ComponentUtils.createAlertDialog(AlertType.ERROR, "Error", msg, e.getMessage());
-                alert.showAndWait();
-            }
+            
+            // Execute create and fetch the created directory
+            service.createDirectoryAsync(res, name)
+                .thenCompose(dirPath -> service.getAsync(dirPath))
+                .whenComplete((dirRes, e) -> Platform.runLater(() -> {
+                    if(e == null) {
+                        
+                        // Show created directory
+                        fileList.add(new ResourceTableItem(dirRes));
+                    } else {
+                        Throwable cause = WebDAVUtil.unwrapAsyncException(e);
+                        String msg = format("Failed to create directory ''{0}''", res.getAbsolutePath());
+                        LOG.log(Level.WARNING, msg, cause);
+                        
+                        Alert alert = ComponentUtils.createAlertDialog(AlertType.ERROR, "Error", msg, cause.getMessage());
+                        alert.showAndWait();
+                    }
+                }));
         });
     }
     
     /* Row drag & drop */
     
+    @SuppressWarnings("unchecked")
+    private static List<String> draggedPaths(Dragboard db) {
+        return (List<String>) db.getContent(WEBDAV_RESOURCE_PATHS);
+    }
+    
     private void onRowDragDetected(TableRow<ResourceTableItem> row, MouseEvent event) {
         if(!row.isEmpty()) {
 
-            WebDAVResource res = row.getItem().getDavRes();
-            LOG.fine(format("Drag from row ''{0}'' detected", res.getAbsolutePath()));
+            // Drag the whole selection if the row is part of it
+            List<ResourceTableItem> items = table.getSelectionModel().getSelectedItems().contains(row.getItem()) ?
+                    table.getSelectionModel().getSelectedItems() : List.of(row.getItem());
+            ArrayList<String> paths = items.stream()
+                    .map(item -> item.getDavRes().getAbsolutePath())
+                    .collect(Collectors.toCollection(ArrayList::new));
+            LOG.fine(format("Drag from row(s) {0} detected", paths));
 
-            Dragboard db = row.startDragAndDrop(TransferMode.MOVE);
+            // Moving by default, copying with the platform's copy modifier held
+            Dragboard db = row.startDragAndDrop(TransferMode.COPY_OR_MOVE);
             ClipboardContent cb = new ClipboardContent();
-            cb.put(WEBDAV_RESOURCE_PATH, res.getAbsolutePath());
+            cb.put(WEBDAV_RESOURCE_PATHS, paths);
             db.setContent(cb);
             event.consume();
         }
@@ -365,9 +532,9 @@ public class TableViewHelper {
     
     private void onRowDragEntered(TableRow<ResourceTableItem> row, DragEvent event) {
         
-        // Indicate drag is happening on directories only
+        // Indicate drag is happening on directories only, without touching the dragged selection
         if(!row.isEmpty() && row.getItem().getDavRes().isDirectory()) {
-            table.getSelectionModel().select(row.getIndex());
+            table.getFocusModel().focus(row.getIndex());
             event.consume();
         }
     }
@@ -380,9 +547,9 @@ public class TableViewHelper {
             event.acceptTransferModes(TransferMode.COPY_OR_MOVE);
             event.consume();
         } else if(row.getItem().getDavRes().isDirectory()) {
-            if(db.hasContent(WEBDAV_RESOURCE_PATH) &&
-                    !((String) db.getContent(WEBDAV_RESOURCE_PATH)).equals(row.getItem().getDavRes().getAbsolutePath())) {
-                event.acceptTransferModes(TransferMode.MOVE);
+            if(db.hasContent(WEBDAV_RESOURCE_PATHS) && 
+                    !draggedPaths(db).contains(row.getItem().getDavRes().getAbsolutePath())) {
+                event.acceptTransferModes(TransferMode.COPY_OR_MOVE);
                 event.consume();
             } else {
                 // TODO Accept drop OS file in directory represented by this row
@@ -397,28 +564,41 @@ public class TableViewHelper {
 
                 // Upload OS file
                 boolean success = false;
-                if (db.hasFiles()) {
+                WebDAVResource parent = tree.getSelectionModel().getSelectedItem().getValue();
+                if (db.getFiles().stream().anyMatch(File::isDirectory)) {
+                    LOG.fine(format("{0} item(s) including directories dropped on empty row -> attempt UPLOAD", 
+                            db.getFiles().size()));
+                    uploadFolders(parent, db.getFiles());
+                    success = true;
+                } else if (db.hasFiles()) {
 
                     for (File file : db.getFiles()) {
                         LOG.fine(format("''{0}'' dropped on empty row -> attempt UPLOAD", file.getAbsolutePath()));
 
-                        UploadFileTask task = new UploadFileTask(service,
-                                tree.getSelectionModel().getSelectedItem().getValue(), file);
+                        UploadFileTask task = new UploadFileTask(service, parent, file);
                         tpv.getTasks().add(0, task);
                         WebDAVUtil.startTask(task);
 
                         // Do stuff when upload is done
                         task.setOnSucceeded(value -> {
+                            
+                            // Failed uploads complete without a value
+                            if(task.getValue() == null) {
+                                return;
+                            }
+                            
                             LOG.fine(format("Upload of ''{0}'' finished at ''{1}''", file.getAbsolutePath(),
                                     task.getMessage()));
 
                             // Show uploaded resource
-                            try {
-                                List<WebDAVResource> res = service.list(task.getMessage(), 0);
-                                fileList.add(new ResourceTableItem(res.get(0)));
-                            } catch (WebDAVServiceException e) {
-                                throw new RuntimeException(e);
-                            }
+                            service.getAsync(task.getMessage()).whenComplete((res, e) -> Platform.runLater(() -> {
+                                if(e == null) {
+                                    fileList.add(new ResourceTableItem(res));
+                                } else {
+                                    LOG.log(Level.WARNING, format("Fetching uploaded resource ''{0}'' failed", 
+                                            task.getMessage()), e);
+                                }
+                            }));
                         });
                     }
                     success = true;
@@ -431,31 +611,29 @@ public class TableViewHelper {
         } else if(row.getItem().getDavRes().isDirectory()) {
             WebDAVResource dest = row.getItem().getDavRes();
             
-            // Probe move resource or copy OS file
-            if(db.hasContent(WEBDAV_RESOURCE_PATH) &&
-                !((String) db.getContent(WEBDAV_RESOURCE_PATH)).equals(dest.getAbsolutePath())) {
+            // Probe move or copy resources or copy OS file
+            if(db.hasContent(WEBDAV_RESOURCE_PATHS) && !draggedPaths(db).contains(dest.getAbsolutePath())) {
                 
-                // Move
-                String srcAbsolutePath = (String) event.getDragboard().getContent(WEBDAV_RESOURCE_PATH);
-                LOG.fine(format("''{0}'' dropped on row ''{1}'' -> attempt MOVE", srcAbsolutePath, row.getItem()));
+                boolean copy = event.getTransferMode() == TransferMode.COPY;
+                Set<String> srcPaths = new HashSet<>(draggedPaths(db));
+                LOG.fine(format("{0} dropped on row ''{1}'' -> attempt {2}", srcPaths, row.getItem(), 
+                        copy ? "COPY" : "MOVE"));
                 
-                Alert dialog = ComponentUtils.createResourceMoveDialog(srcAbsolutePath);
-                Optional<ButtonType> input = dialog.showAndWait();
-                if (input.get() == ButtonType.OK){
-                    
-                    // Do move operation
-                    try {
-                        List<WebDAVResource> list = service.list(srcAbsolutePath, 0);
-                        if(list.size() == 1) {
-                            WebDAVResource src = list.get(0);
-                            service.move(src, row.getItem().getDavRes());
-                            Optional.of(findResourceByName(src.getName())).ifPresent(r -> fileList.remove(r));
-                            
-                        } else {
-                            throw new WebDAVServiceException(format("Resource ''{0}'' not found", srcAbsolutePath));
-                        }
-                    } catch (WebDAVServiceException e) {
-                        LOG.log(Level.SEVERE, e.getMessage(), e);
+                // Dragged resources are taken from the table they were dragged from
+                List<ResourceTableItem> items = fileList.stream()
+                        .filter(item -> srcPaths.contains(item.getDavRes().getAbsolutePath()))
+                        .collect(Collectors.toList());
+                
+                if(!items.isEmpty()) {
+                    Alert dialog = copy ? ComponentUtils.createResourceCopyDialog(describe(items)) : 
+                        ComponentUtils.createResourceMoveDialog(describe(items));
+                    Optional<ButtonType> input = dialog.showAndWait();
+                    if (input.get() == ButtonType.OK && copy) {
+                        
+                        // Server-side copy of whole subtrees, copies stay where they are in the table
+                        runBulkOperation("Copying", items, item -> service.copy(item.getDavRes(), dest, -1), false);
+                    } else if (input.get() == ButtonType.OK) {
+                        runBulkOperation("Moving", items, item -> service.move(item.getDavRes(), dest), true);
                     }
                 }
                 
@@ -2,13 +2,26 @@ package mb.client.rfe;
 
 import static java.text.MessageFormat.format;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
@@ -19,10 +32,11 @@ import javafx.scene.control.TreeView;
 import mb.client.rfe.components.ComponentUtils;
 import mb.client.rfe.components.Icons;
 import mb.client.rfe.components.ResourceContextMenu;
+import mb.client.rfe.model.ResourceChange;
 import mb.client.rfe.model.ResourceHost;
 import mb.client.rfe.model.ResourceTableItem;
 import mb.client.rfe.model.WebDAVResource;
-import mb.client.rfe.service.ResourceRepositoryService;
+import mb.client.rfe.service.AsyncResourceRepositoryService;
 import mb.client.rfe.service.WebDAVServiceException;
 import mb.client.rfe.service.WebDAVUtil;
 import mb.client.rfe.tasks.ListDirsTask;
@@ -30,14 +44,19 @@ import mb.client.rfe.tasks.ListDirsTask;
 public class TreeViewHelper {
     
     private static final Logger LOG = Logger.getLogger(TreeViewHelper.class.getName());
+    private static final int LISTING_PAGE_SIZE = 500;
     
-    private ResourceRepositoryService service;
+    private AsyncResourceRepositoryService service;
     private ObservableList<ResourceTableItem> fileList;
     private HostMgmtHelper hostsHelper;
     private TreeView<WebDAVResource> tree;
     private ResourceHost currentHost;
+    private CompletableFuture<Void> pendingListing;
+    private Object listingToken;
+    private Closeable tableWatch;
+    private Map<TreeItem<WebDAVResource>, Closeable> treeWatches = new HashMap<>();
     
-    public TreeViewHelper(ResourceRepositoryService service, 
+    public TreeViewHelper(AsyncResourceRepositoryService service, 
             ObservableList<ResourceTableItem> fileList, HostMgmtHelper hostsHelper) {
         this.service = service;
         this.fileList = fileList;
@@ -52,11 +71,12 @@ public class TreeViewHelper {
         return tree;
     }
     
-    public void setService(ResourceRepositoryService service) {
+    public void setService(AsyncResourceRepositoryService service) {
         this.service = service;
     }
     
-    public void updateRoot(ResourceHost host, ResourceRepositoryService service) {
+    public void updateRoot(ResourceHost host, AsyncResourceRepositoryService service) {
+        closeWatches();
         this.currentHost = host;
         this.service = service;
         TreeItem<WebDAVResource> rootItem = createRootItem();
@@ -77,6 +97,7 @@ public class TreeViewHelper {
     }
     
     public void clearTree() {
+        closeWatches();
         this.service = null;
         tree.setRoot(null);
     }
@@ -212,45 +233,275 @@ public class TreeViewHelper {
     
     private void onTreeItemSelect(TreeItem<WebDAVResource> treeItem) {
         if(treeItem != null && treeItem.getValue() != null) {
+            String path = treeItem.getValue().getAbsolutePath();
             
-            // Fetch child resources of tree item
-            List<WebDAVResource> files;
+            // Keep last accessed path
+            currentHost.setLastAccessedPath(path);
+            
+            // Watch before listing, so that no change is missed in between
+            closeQuietly(tableWatch);
+            Object[] token = new Object[1];
+            tableWatch = watch(path, changes -> {
+                if(token[0] != listingToken) {
+                    return;
+                }
+                if(changes.stream().anyMatch(c -> c.getKind() == ResourceChange.Kind.RESCAN)) {
+                    token[0] = listDirectory(path);
+                } else {
+                    applyToTable(changes);
+                }
+            });
+            token[0] = listDirectory(path);
+        }
+    }
+    
+    private Object listDirectory(String path) {
+        return showResources(consumer -> service.listAsync(path, LISTING_PAGE_SIZE, consumer), 
+                format("Listing resources at ''{0}'' failed", path));
+    }
+    
+    /**
+     * Applies changes to the table item by item, rather than listing the whole directory again
+     */
+    private void applyToTable(List<ResourceChange> changes) {
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < fileList.size(); i++) {
+            positions.put(fileList.get(i).getAbsolutePath(), i);
+        }
+        
+        List<ResourceTableItem> added = new ArrayList<>();
+        Set<ResourceTableItem> removed = new HashSet<>();
+        for (ResourceChange change : changes) {
+            Integer position = positions.get(change.getPath());
+            if(change.getKind() == ResourceChange.Kind.DELETED) {
+                if(position != null) {
+                    removed.add(fileList.get(position));
+                }
+            } else if(position != null) {
+                fileList.set(position, ResourceTableItem.fromDavRes(change.getResource()));
+            } else {
+                added.add(ResourceTableItem.fromDavRes(change.getResource()));
+            }
+        }
+        
+        // Removed and added at once to optimize event handling
+        if(!removed.isEmpty()) {
+            fileList.removeAll(removed);
+        }
+        if(!added.isEmpty()) {
+            fileList.addAll(added);
+        }
+    }
+    
+    private void applyToTree(TreeItem<WebDAVResource> treeItem, List<ResourceChange> changes) {
+        if(!treeItem.isExpanded()) {
+            return;
+        }
+        
+        // Changes were missed, so the whole directory is listed again
+        if(changes.stream().anyMatch(c -> c.getKind() == ResourceChange.Kind.RESCAN)) {
+            relistTreeNode(treeItem);
+            return;
+        }
+        
+        ObservableList<TreeItem<WebDAVResource>> children = treeItem.getChildren();
+        Map<String, TreeItem<WebDAVResource>> byPath = new HashMap<>();
+        children.forEach(child -> byPath.put(child.getValue().getAbsolutePath(), child));
+        
+        List<TreeItem<WebDAVResource>> added = new ArrayList<>();
+        List<TreeItem<WebDAVResource>> removed = new ArrayList<>();
+        for (ResourceChange change : changes) {
+            TreeItem<WebDAVResource> child = byPath.get(change.getPath());
+            if(change.getKind() == ResourceChange.Kind.DELETED && child != null) {
+                closeTreeWatches(child);
+                removed.add(child);
+            } else if(change.getKind() == ResourceChange.Kind.CREATED && child == null && 
+                    change.getResource().isDirectory()) {
+                added.add(createTreeNode(change.getResource()));
+            }
+        }
+        children.removeAll(removed);
+        children.addAll(added);
+    }
+    
+    /**
+     * Lists the sub-directories of an expanded tree item again, keeping the items of those still 
+     * there along with whatever is expanded below them
+     */
+    private void relistTreeNode(TreeItem<WebDAVResource> treeItem) {
+        final ListDirsTask task = new ListDirsTask(service, treeItem.getValue().getAbsolutePath(), true);
+        task.valueProperty().addListener((obs, oldVal, newVal) -> {
+            if(newVal == null || !treeItem.isExpanded()) {
+                return;
+            }
+            
+            Set<String> listed = newVal.stream().map(WebDAVResource::getAbsolutePath).collect(Collectors.toSet());
+            List<TreeItem<WebDAVResource>> removed = treeItem.getChildren().stream()
+                    .filter(child -> !listed.contains(child.getValue().getAbsolutePath()))
+                    .collect(Collectors.toList());
+            removed.forEach(this::closeTreeWatches);
+            treeItem.getChildren().removeAll(removed);
+            addTreeNodes(treeItem, newVal);
+        });
+        WebDAVUtil.startTask(task);
+    }
+    
+    /**
+     * Adds items for the given directories to a tree item, leaving out those it has already, 
+     * e.g. added by a change seen while the directories were listed
+     */
+    private void addTreeNodes(TreeItem<WebDAVResource> treeItem, List<WebDAVResource> dirs) {
+        ObservableList<TreeItem<WebDAVResource>> children = treeItem.getChildren();
+        Set<String> present = children.stream()
+                .map(child -> child.getValue().getAbsolutePath())
+                .collect(Collectors.toSet());
+        
+        // NB: Make sure all elements get added at once, 
+        // needed by double clicking on a folder in the resource table
+        children.addAll(dirs.stream()
+                .filter(dir -> !present.contains(dir.getAbsolutePath()))
+                .map(this::createTreeNode)
+                .collect(Collectors.toList()));
+    }
+    
+    /**
+     * Starts watching a directory, handling changes on the application thread
+     * @return Handle to stop watching or <code>null</code> if the directory can't be watched
+     */
+    private Closeable watch(String path, Consumer<List<ResourceChange>> handler) {
+        try {
+            return service.watch(path, changes -> Platform.runLater(() -> handler.accept(changes)));
+        } catch (WebDAVServiceException e) {
+            LOG.log(Level.WARNING, format("Watching ''{0}'' failed", path), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Stops watching the directory of the given tree item and all directories below it
+     */
+    private void closeTreeWatches(TreeItem<WebDAVResource> treeItem) {
+        for (Iterator<Map.Entry<TreeItem<WebDAVResource>, Closeable>> it = treeWatches.entrySet().iterator(); 
+                it.hasNext();) {
+            Map.Entry<TreeItem<WebDAVResource>, Closeable> entry = it.next();
+            for (TreeItem<WebDAVResource> item = entry.getKey(); item != null; item = item.getParent()) {
+                if(item == treeItem) {
+                    closeQuietly(entry.getValue());
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+    
+    private void closeWatches() {
+        closeQuietly(tableWatch);
+        tableWatch = null;
+        treeWatches.values().forEach(TreeViewHelper::closeQuietly);
+        treeWatches.clear();
+    }
+    
+    private static void closeQuietly(Closeable watch) {
+        if(watch != null) {
             try {
+                watch.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to stop watching", e);
+            }
+        }
+    }
+    
+    /**
+     * Shows the resources below the selected directory whose names match the query, or the content
+     * of the directory itself again if the query is empty
+     */
+    public void search(String query) {
+        TreeItem<WebDAVResource> selected = tree.getSelectionModel().getSelectedItem();
+        if(selected == null || selected.getValue() == null) {
+            return;
+        }
+        
+        if(query == null || query.isBlank()) {
+            onTreeItemSelect(selected);
+        } else {
+            WebDAVResource dir = selected.getValue();
+            showResources(consumer -> service.searchAsync(dir, query, LISTING_PAGE_SIZE, consumer), 
+                    format("Searching for ''{0}'' at ''{1}'' failed", query, dir.getAbsolutePath()));
+        }
+    }
+    
+    /**
+     * Replaces the content of the table with the resources delivered by the given request, page by page 
+     * as they arrive
+     * @return Token identifying the request, until the next one replaces it
+     */
+    private Object showResources(Function<Consumer<List<WebDAVResource>>, CompletableFuture<Void>> request, 
+            String failureMessage) {
+        
+        // Results of a previous request are no longer needed
+        if(pendingListing != null) {
+            pendingListing.cancel(true);
+        }
+        
+        Object token = new Object();
+        listingToken = token;
+        AtomicBoolean cleared = new AtomicBoolean();
+        pendingListing = request.apply(page -> {
+            List<ResourceTableItem> items = page.stream()
+                    .map(ResourceTableItem::fromDavRes)
+                    .collect(Collectors.toList());
+            Platform.runLater(() -> {
+                
+                // Ignore outdated results
+                if(token != listingToken) {
+                    return;
+                }
                 
-                // Keep last accessed path
-                currentHost.setLastAccessedPath(treeItem.getValue().getAbsolutePath());
+                // Previous content stays until the first page is in
+                if(!cleared.getAndSet(true)) {
+                    fileList.clear();
+                }
                 
-                // TODO This should be an async task!
-                files = service.list(treeItem.getValue().getAbsolutePath());
-            } catch (WebDAVServiceException e) {
+                // Add all elements of a page at once to optimize event handling
+                fileList.addAll(items);
+            });
+        });
+        pendingListing.whenComplete((v, e) -> Platform.runLater(() -> {
+            if(token != listingToken) {
+                return;
+            }
+            pendingListing = null;
+            
+            if(e != null) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
-                Alert dialog = ComponentUtils.createWarningDialog("Warning", 
-                        format("Listing resources at ''{0}'' failed", treeItem.getValue().getAbsolutePath()), 
-                        e.getMessage());
+                Alert dialog = ComponentUtils.createWarningDialog("Warning", failureMessage, e.getMessage());
                 dialog.showAndWait();
                 return;
             }
             
-            // Refresh file list
-            fileList.clear();
-            
-            // Add all elements at once to optimize event handling
-            fileList.addAll(files.stream().map(ResourceTableItem::fromDavRes).collect(Collectors.toList()));
-        }
+            // Empty directory or nothing found
+            if(!cleared.getAndSet(true)) {
+                fileList.clear();
+            }
+        }));
+        return token;
     }
     
     private void onTreeNodeExpand(TreeItem<WebDAVResource> treeItem) {
         if(treeItem != null && treeItem.getValue() != null) {
             WebDAVResource res = (WebDAVResource) treeItem.getValue();
+            
+            // Sub-directories appearing or disappearing are reflected right away
+            closeTreeWatches(treeItem);
+            Closeable watch = watch(res.getAbsolutePath(), changes -> applyToTree(treeItem, changes));
+            if(watch != null) {
+                treeWatches.put(treeItem, watch);
+            }
         
             final ListDirsTask task = new ListDirsTask(service,  res.getAbsolutePath(), true);
             task.valueProperty().addListener((obs, oldVal, newVal) -> {
             
-                ObservableList<TreeItem<WebDAVResource>> nodeChildren = treeItem.getChildren();
-            
-                // NB: Make sure all elements get added at once, 
-                // needed by double clicking on a folder in the resource table
-                nodeChildren.addAll(newVal.stream().map(this::createTreeNode).collect(Collectors.toList()));
+                addTreeNodes(treeItem, newVal);
             
                 // Update icon when done
                 if(treeItem != tree.getRoot()) {
@@ -274,6 +525,7 @@ public class TreeViewHelper {
     }
     
     private void onTreeNodeCollapse(TreeItem<WebDAVResource> treeItem) {
+        closeTreeWatches(treeItem);
         treeItem.getChildren().clear();
         
         // Update icon
@@ -1,5 +1,7 @@
 package mb.client.rfe;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +31,7 @@ import javafx.scene.control.ScrollPane;
 import javafx.scene.control.Separator;
 import javafx.scene.control.SplitPane;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.control.Tooltip;
@@ -43,11 +46,14 @@ import mb.client.rfe.media.MPlayer;
 import mb.client.rfe.model.ResourceHost;
 import mb.client.rfe.model.ResourceTableItem;
 import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.AsyncResourceRepositoryService;
 import mb.client.rfe.service.ConfigService;
 import mb.client.rfe.service.LocalFileSystemService;
-import mb.client.rfe.service.ResourceRepositoryService;
+import mb.client.rfe.service.RateLimiter;
+import mb.client.rfe.service.ServiceMetrics;
 import mb.client.rfe.service.WebDAVService;
 import mb.client.rfe.service.WebDAVServiceException;
+import mb.client.rfe.tasks.TransferTask;
 
 // TODO Multiselect in both views
 // TODO Support for keyboard shortcuts in grid view
@@ -72,7 +78,8 @@ public class WebDAVClient extends Application {
     private MasterDetailPane mdp;
     private MPlayer player;
     private TaskProgressView<Task<?>> tpv;
-    private ResourceRepositoryService service;
+    private ComboBox<Long> hostRateComboBox;
+    private AsyncResourceRepositoryService service;
     private ObservableList<ResourceTableItem> fileList;
     
     public WebDAVClient() {
@@ -93,7 +100,7 @@ public class WebDAVClient extends Application {
                     createRemoveHostButton(), createAddHostButton(),
                 new Separator(Orientation.VERTICAL), createViewToggle(showTable),
                 new Separator(Orientation.VERTICAL), createBreadCrumbBar(), ComponentUtils.createHBoxSpacer(), 
-                new Separator(Orientation.VERTICAL), createGoToParentButton());
+                createSearchField(), new Separator(Orientation.VERTICAL), createGoToParentButton());
         buttonBar.setSpacing(5);
         buttonBar.setPadding(new Insets(5));
         buttonBar.setAlignment(Pos.CENTER_LEFT);
@@ -106,10 +113,12 @@ public class WebDAVClient extends Application {
         mdp = new MasterDetailPane(Side.BOTTOM);
         borderPane.setCenter(mdp);
         
-        // Task progress pane
+        // Task progress pane, with the transfer rate limits on top
         tpv = new TaskProgressView<>();
         tpv.setRetainTasks(true);
-        mdp.setDetailNode(tpv);
+        tpv.setGraphicFactory(task -> task instanceof TransferTask ? 
+                ComponentUtils.createRateLimitMenuButton(((TransferTask<?>) task).getRateLimiter()) : null);
+        mdp.setDetailNode(createTaskPane());
         
         // Split pane, tree, table and grid
         treeView = createTree();
@@ -172,6 +181,7 @@ public class WebDAVClient extends Application {
         config.setProperty("col.name.sorttype", String.valueOf(table.getColumns().get(1).getSortType()));
         config.setProperty("taskslist.toggle", String.valueOf(mdp.showDetailNodeProperty().getValue()));
         config.setProperty("resourceview.table", String.valueOf(table.equals(splitPane.getItems().get(1))));
+        config.setProperty("throttle.global", String.valueOf(RateLimiter.global().getBytesPerSecond()));
         
         // Save last accessed directory
         WebDAVResource res = treeHelper.getCurrentDirectory();
@@ -182,6 +192,16 @@ public class WebDAVClient extends Application {
         destroyMediaPlayer();
         destroyServiceInstanceIfExists();
         
+        // Metrics of the session, if asked for
+        String metricsFile = config.getProperty("metrics.dump");
+        if(metricsFile != null && !metricsFile.isEmpty()) {
+            try {
+                ServiceMetrics.dumpAll(new File(metricsFile));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to dump metrics", e);
+            }
+        }
+        
         // And this is needed as there are some leftover non-daemon threads in the media player library
         System.exit(0);
     }
@@ -194,6 +214,7 @@ public class WebDAVClient extends Application {
             service = new WebDAVService(host);
         }
         service.connect();
+        hostRateComboBox.setValue(RateLimiter.forHost(service.getHost()).getBytesPerSecond());
     }
     
     private void destroyServiceInstanceIfExists() {
@@ -312,6 +333,15 @@ public class WebDAVClient extends Application {
         return button;
     }
     
+    private TextField createSearchField() {
+        TextField field = new TextField();
+        field.setPromptText("Search names, e.g. *.mp3");
+        field.setOnAction(event -> {
+            treeHelper.search(field.getText());
+        });
+        return field;
+    }
+    
     private BreadCrumbBar<WebDAVResource> createBreadCrumbBar() {
         breadCrumbBar = new BreadCrumbBar<WebDAVResource>();
         breadCrumbBar.setAutoNavigationEnabled(false);
@@ -332,6 +362,31 @@ public class WebDAVClient extends Application {
         }
     }
     
+    private BorderPane createTaskPane() {
+        ComboBox<Long> globalRate = ComponentUtils.createRateLimitComboBox(RateLimiter.global().getBytesPerSecond());
+        globalRate.valueProperty().addListener((obs, oldVal, newVal) -> {
+            RateLimiter.global().setBytesPerSecond(newVal);
+        });
+        
+        // Follows the selected host
+        hostRateComboBox = ComponentUtils.createRateLimitComboBox(0);
+        hostRateComboBox.valueProperty().addListener((obs, oldVal, newVal) -> {
+            if(service != null) {
+                RateLimiter.forHost(service.getHost()).setBytesPerSecond(newVal);
+            }
+        });
+        
+        HBox rateBar = new HBox(new Label("Limit all transfers to"), globalRate, 
+                new Separator(Orientation.VERTICAL), new Label("Limit this host to"), hostRateComboBox);
+        rateBar.setSpacing(5);
+        rateBar.setPadding(new Insets(5));
+        rateBar.setAlignment(Pos.CENTER_LEFT);
+        
+        BorderPane taskPane = new BorderPane(tpv);
+        taskPane.setTop(rateBar);
+        return taskPane;
+    }
+    
     private void createMediaPlayer() {
         player = new MPlayer();
     }
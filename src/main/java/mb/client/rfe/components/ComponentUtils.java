@@ -3,25 +3,45 @@ package mb.client.rfe.components;
 import static java.text.MessageFormat.format;
 
 import java.text.MessageFormat;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
+import org.apache.commons.io.FileUtils;
 import org.controlsfx.control.PropertySheet;
 import org.controlsfx.control.PropertySheet.Item;
 import org.controlsfx.property.BeanPropertyUtils;
 
+import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.ButtonBar.ButtonData;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.MenuButton;
+import javafx.scene.control.RadioMenuItem;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextInputDialog;
+import javafx.scene.control.ToggleGroup;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
+import javafx.util.StringConverter;
 import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.RateLimiter;
 
 public class ComponentUtils {
     
+    public static final ButtonType RETRY = new ButtonType("Retry Failed", ButtonData.OK_DONE);
+    
+    // Transfer rate limits to choose from, in bytes per second
+    private static final List<Long> RATE_LIMITS = List.of(0L, 256 * 1024L, 1024 * 1024L, 
+            5 * 1024 * 1024L, 10 * 1024 * 1024L, 50 * 1024 * 1024L);
+    
     /**
      * Shows a dialog displaying the properties of a {@link WebDAVResource}
      * @param res Resource instance
@@ -79,6 +99,17 @@ public class ComponentUtils {
                 "Note that this cannot be undone!");
     }
     
+    /**
+     * Creates a dialog to confirm resource copy
+     * @param resName Resource name to be shown to the user
+     * @return Dialog to be used for copy confirmation
+     */
+    public static Alert createResourceCopyDialog(String resName) {
+        return createConfirmationDialog("Copy Resource Confirmation", 
+                format("Are you sure you want to copy resource ''{0}''?", resName), 
+                "Existing resources are not overwritten.");
+    }
+    
     /**
      * Creates a dialog to confirm resource deletion. Reused by table view and grid view.
      * @param resName Resource name to be shown to the user
@@ -90,6 +121,25 @@ public class ComponentUtils {
                 "Note that this cannot be undone!");
     }
     
+    /**
+     * Creates a dialog listing the failures of a bulk operation, offering to retry them
+     * @param failures Failure messages keyed by resource path
+     * @return Dialog returning {@link #RETRY} if the user wants to retry the failed resources
+     */
+    public static Alert createBulkFailuresDialog(String title, Map<String, String> failures) {
+        Alert dialog = createAlertDialog(AlertType.ERROR, title, 
+                format("{0} resource(s) failed", failures.size()), "See the details for the reasons.");
+        
+        TextArea details = new TextArea(failures.entrySet().stream()
+                .map(entry -> entry.getKey() + " : " + entry.getValue())
+                .collect(Collectors.joining("\n")));
+        details.setEditable(false);
+        details.setWrapText(true);
+        dialog.getDialogPane().setExpandableContent(details);
+        dialog.getButtonTypes().setAll(RETRY, ButtonType.CLOSE);
+        return dialog;
+    }
+    
     /**
      * Creates a generic confirmation dialog
      */
@@ -127,6 +177,46 @@ public class ComponentUtils {
         return dialog;
     }
     
+    /**
+     * Creates a combo box for choosing a transfer rate limit in bytes per second, 0 being unlimited
+     */
+    public static ComboBox<Long> createRateLimitComboBox(long bytesPerSecond) {
+        ComboBox<Long> comboBox = new ComboBox<>(FXCollections.observableArrayList(RATE_LIMITS));
+        comboBox.setConverter(new StringConverter<Long>() {
+            public String toString(Long rate) {
+                return rate != null ? formatRateLimit(rate) : "";
+            }
+            
+            public Long fromString(String string) {
+                return null;
+            }
+        });
+        comboBox.setValue(bytesPerSecond);
+        return comboBox;
+    }
+    
+    /**
+     * Creates a menu button for changing the transfer rate limit of a single task
+     */
+    public static MenuButton createRateLimitMenuButton(RateLimiter limiter) {
+        MenuButton button = new MenuButton(null, Icons.speed());
+        button.setTooltip(new Tooltip("Limit transfer rate"));
+        
+        ToggleGroup group = new ToggleGroup();
+        for (long rate : RATE_LIMITS) {
+            RadioMenuItem item = new RadioMenuItem(formatRateLimit(rate));
+            item.setToggleGroup(group);
+            item.setSelected(rate == limiter.getBytesPerSecond());
+            item.setOnAction(event -> limiter.setBytesPerSecond(rate));
+            button.getItems().add(item);
+        }
+        return button;
+    }
+    
+    private static String formatRateLimit(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? FileUtils.byteCountToDisplaySize(bytesPerSecond) + "/s" : "Unlimited";
+    }
+    
     /**
      * Creates a simple growing spacer that can be used in a {@link HBox}
      */
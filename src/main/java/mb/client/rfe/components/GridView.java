@@ -44,8 +44,7 @@ import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import mb.client.rfe.model.ResourceTableItem;
 import mb.client.rfe.model.WebDAVResource;
-import mb.client.rfe.service.ResourceRepositoryService;
-import mb.client.rfe.service.WebDAVServiceException;
+import mb.client.rfe.service.AsyncResourceRepositoryService;
 import mb.client.rfe.service.WebDAVUtil;
 import mb.client.rfe.tasks.DownloadFileTask;
 import mb.client.rfe.tasks.LoadThumbsTask;
@@ -54,7 +53,7 @@ public class GridView extends TilePane {
     
     private static final Logger LOG = Logger.getLogger(GridView.class.getName());
     
-    private ResourceRepositoryService service;
+    private AsyncResourceRepositoryService service;
     private ObservableList<ResourceTableItem> fileList;
     private TreeView<WebDAVResource> tree;
     private TaskProgressView<Task<?>> tpv;
@@ -63,7 +62,7 @@ public class GridView extends TilePane {
     private SimpleStringProperty messageProperty;
     private SimpleDoubleProperty progressProperty;
 
-    public GridView(ResourceRepositoryService service, ObservableList<ResourceTableItem> fileList, 
+    public GridView(AsyncResourceRepositoryService service, ObservableList<ResourceTableItem> fileList, 
             TreeView<WebDAVResource> tree, TaskProgressView<Task<?>> tpv, double hgap, double vgap) {
         super(hgap, vgap);
         setBackground(new Background(new BackgroundFill(Color.WHITE, CornerRadii.EMPTY, Insets.EMPTY)));
@@ -138,17 +137,18 @@ public class GridView extends TilePane {
                             Alert dialog = ComponentUtils.createResourceDeletionDialog(res.getAbsolutePath());
                             Optional<ButtonType> input = dialog.showAndWait();
                             if (input.get() == ButtonType.OK){
-                                try {
-                                    service.delete(res);
-                                    fileList.remove(item);
-                                } catch (WebDAVServiceException e) {
-                                    
-                                    // Show alert
-                                    Alert alert = new Alert(AlertType.ERROR);
-                                    alert.setTitle("Error");
-                                    alert.setHeaderText(format("Failed to delete ''{0}''", res.getAbsolutePath()));
-                                    alert.showAndWait();
-                                }
+                                service.deleteAsync(res).whenComplete((v, e) -> Platform.runLater(() -> {
+                                    if(e == null) {
+                                        fileList.remove(item);
+                                    } else {
+                                        
+                                        // Show alert
+                                        Alert alert = new Alert(AlertType.ERROR);
+                                        alert.setTitle("Error");
+                                        alert.setHeaderText(format("Failed to delete ''{0}''", res.getAbsolutePath()));
+                                        alert.showAndWait();
+                                    }
+                                }));
                             }
                         },
                         null
@@ -170,7 +170,7 @@ public class GridView extends TilePane {
         return selectedItem;
     }
     
-    public void setService(ResourceRepositoryService service) {
+    public void setService(AsyncResourceRepositoryService service) {
         this.service = service;
     }
     
@@ -25,6 +25,21 @@ public class Icons {
         return icon;
     }
     
+    public static FontIcon download() {
+        FontIcon icon = new FontIcon(FontAwesomeSolid.DOWNLOAD);
+        return icon;
+    }
+    
+    public static FontIcon sync() {
+        FontIcon icon = new FontIcon(FontAwesomeSolid.SYNC);
+        return icon;
+    }
+    
+    public static FontIcon speed() {
+        FontIcon icon = new FontIcon(FontAwesomeSolid.TACHOMETER_ALT);
+        return icon;
+    }
+    
     public static FontIcon server() {
         FontIcon icon = new FontIcon(FontAwesomeSolid.SERVER);
         icon.setIconColor(Color.LIGHTBLUE);
@@ -12,13 +12,28 @@ public class ResourceContextMenu extends ContextMenu {
 
     public ResourceContextMenu(EventHandler<ActionEvent> propsHandler, EventHandler<ActionEvent> playlistHandler, 
             EventHandler<ActionEvent> deleteHandler, EventHandler<ActionEvent> createDirHandler) {
+        this(propsHandler, playlistHandler, deleteHandler, createDirHandler, null);
+    }
+    
+    public ResourceContextMenu(EventHandler<ActionEvent> propsHandler, EventHandler<ActionEvent> playlistHandler, 
+            EventHandler<ActionEvent> deleteHandler, EventHandler<ActionEvent> createDirHandler, 
+            EventHandler<ActionEvent> downloadHandler) {
+        this(propsHandler, playlistHandler, deleteHandler, createDirHandler, downloadHandler, null);
+    }
+    
+    public ResourceContextMenu(EventHandler<ActionEvent> propsHandler, EventHandler<ActionEvent> playlistHandler, 
+            EventHandler<ActionEvent> deleteHandler, EventHandler<ActionEvent> createDirHandler, 
+            EventHandler<ActionEvent> downloadHandler, EventHandler<ActionEvent> syncHandler) {
         super();
-        createMenuItems(propsHandler, playlistHandler, deleteHandler, createDirHandler);
+        createMenuItems(propsHandler, playlistHandler, deleteHandler, createDirHandler, downloadHandler, syncHandler);
     }
     
     private void createMenuItems(EventHandler<ActionEvent> propsHandler, EventHandler<ActionEvent> playlistHandler, 
-            EventHandler<ActionEvent> deleteHandler, EventHandler<ActionEvent> createDirHandler) {
+            EventHandler<ActionEvent> deleteHandler, EventHandler<ActionEvent> createDirHandler, 
+            EventHandler<ActionEvent> downloadHandler, EventHandler<ActionEvent> syncHandler) {
         createMenuItem("Add to Playlist", Icons.play(), playlistHandler);
+        createMenuItem("Download", Icons.download(), downloadHandler);
+        createMenuItem("Sync with Local Folder", Icons.sync(), syncHandler);
         createMenuItem("Create Directory", Icons.createFoler(), createDirHandler);
         getItems().add(new SeparatorMenuItem());
         createMenuItem("Delete", Icons.delete(), deleteHandler);
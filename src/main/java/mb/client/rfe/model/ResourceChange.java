@@ -0,0 +1,49 @@
+package mb.client.rfe.model;
+
+/**
+ * Change of a resource within a watched directory
+ */
+public class ResourceChange {
+
+    public enum Kind {
+        CREATED,
+        MODIFIED,
+        DELETED,
+
+        /**
+         * Changes were lost, the directory has to be listed again
+         */
+        RESCAN
+    }
+
+    private final Kind kind;
+    private final String path;
+    private final WebDAVResource resource;
+
+    /**
+     * @param path Path of the changed resource, or of the watched directory when rescanning
+     * @param resource Current state of the resource, <code>null</code> if deleted or rescanning
+     */
+    public ResourceChange(Kind kind, String path, WebDAVResource resource) {
+        this.kind = kind;
+        this.path = path;
+        this.resource = resource;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public WebDAVResource getResource() {
+        return resource;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + path;
+    }
+}
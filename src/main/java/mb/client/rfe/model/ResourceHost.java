@@ -6,7 +6,8 @@ public class ResourceHost {
     
     private URI baseURI;
     private String root, user, password, lastAccessedPath;
-    private boolean local;
+    private boolean local, minimalListing;
+    private boolean compressedListing = true;
     
     public ResourceHost() {
     }
@@ -68,6 +69,28 @@ public class ResourceHost {
         this.local = local;
     }
     
+    /**
+     * Whether listings ask only for the properties the client uses, instead of all properties
+     */
+    public boolean isMinimalListing() {
+        return minimalListing;
+    }
+
+    public void setMinimalListing(boolean minimalListing) {
+        this.minimalListing = minimalListing;
+    }
+    
+    /**
+     * Whether listing and search responses are asked to be compressed
+     */
+    public boolean isCompressedListing() {
+        return compressedListing;
+    }
+
+    public void setCompressedListing(boolean compressedListing) {
+        this.compressedListing = compressedListing;
+    }
+
     public String getLastAccessedPath() {
         return lastAccessedPath;
     }
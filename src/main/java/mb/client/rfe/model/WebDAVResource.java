@@ -5,7 +5,7 @@ import java.util.Date;
 
 public class WebDAVResource {
 
-    private String absolutePath, name, type;
+    private String absolutePath, name, type, etag;
     private long size;
     private Date created, modified;
     private boolean directory;
@@ -106,6 +106,14 @@ public class WebDAVResource {
         this.baseURI = baseURI;
     }
     
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+    
     @Override
     public int hashCode() {
         final int prime = 31;
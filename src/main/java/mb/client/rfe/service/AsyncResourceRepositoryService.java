@@ -0,0 +1,125 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import javafx.util.Callback;
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Non-blocking companion of {@link ResourceRepositoryService}.
+ * <p>
+ * Every operation runs on the executor of the service and returns a {@link CompletableFuture}.
+ * Cancelling a returned future interrupts the operation if it's already running. Note that
+ * futures derived from it (e.g. with <code>thenApply</code>) don't propagate cancellation back.
+ */
+public interface AsyncResourceRepositoryService extends ResourceRepositoryService {
+    
+    Executor getExecutor();
+    
+    void setExecutor(Executor executor);
+    
+    default CompletableFuture<List<WebDAVResource>> listAsync(String path) {
+        return ServiceFutures.supplyAsync(() -> list(path), getExecutor());
+    }
+    
+    default CompletableFuture<List<WebDAVResource>> listAsync(String path, int depth) {
+        return ServiceFutures.supplyAsync(() -> list(path, depth), getExecutor());
+    }
+    
+    /**
+     * Lists a directory, passing the resources to the consumer in pages as they arrive.
+     * The consumer is called on the executor of the service.
+     */
+    default CompletableFuture<Void> listAsync(String path, int pageSize, Consumer<List<WebDAVResource>> consumer) {
+        return ServiceFutures.supplyAsync(() -> {
+            list(path, pageSize, consumer);
+            return null;
+        }, getExecutor());
+    }
+    
+    default CompletableFuture<List<WebDAVResource>> listDirsAsync(String path) {
+        return ServiceFutures.supplyAsync(() -> listDirs(path), getExecutor());
+    }
+    
+    default CompletableFuture<List<WebDAVResource>> listFilesAsync(String path) {
+        return ServiceFutures.supplyAsync(() -> listFiles(path), getExecutor());
+    }
+    
+    /**
+     * Fetches a single resource
+     */
+    default CompletableFuture<WebDAVResource> getAsync(String path) {
+        return ServiceFutures.supplyAsync(() -> {
+            List<WebDAVResource> list = list(path, 0);
+            if(list.isEmpty()) {
+                throw new WebDAVServiceException(format("Resource ''{0}'' not found", path));
+            }
+            return list.get(0);
+        }, getExecutor());
+    }
+    
+    default CompletableFuture<InputStream> getContentAsync(WebDAVResource res) {
+        return ServiceFutures.supplyAsync(() -> getContent(res), getExecutor());
+    }
+    
+    default CompletableFuture<File> downloadAsync(WebDAVResource res, Callback<Integer, Void> callback) {
+        return ServiceFutures.supplyAsync(() -> download(res, callback), getExecutor());
+    }
+    
+    default CompletableFuture<File> downloadAsync(WebDAVResource res, File target, Callback<Integer, Void> callback) {
+        return ServiceFutures.supplyAsync(() -> download(res, target, callback), getExecutor());
+    }
+    
+    default CompletableFuture<String> uploadAsync(WebDAVResource parent, File localFile) {
+        return ServiceFutures.supplyAsync(() -> upload(parent, localFile), getExecutor());
+    }
+    
+    default CompletableFuture<String> uploadAsync(WebDAVResource parent, File localFile, 
+            Callback<Integer, Void> callback) {
+        return ServiceFutures.supplyAsync(() -> upload(parent, localFile, callback), getExecutor());
+    }
+    
+    /**
+     * Looks up resources by name, passing them to the consumer in pages as they are found.
+     * The consumer is called on the executor of the service.
+     */
+    default CompletableFuture<Void> searchAsync(WebDAVResource parent, String query, int pageSize, 
+            Consumer<List<WebDAVResource>> consumer) {
+        return ServiceFutures.supplyAsync(() -> {
+            search(parent, query, pageSize, consumer);
+            return null;
+        }, getExecutor());
+    }
+    
+    default CompletableFuture<Void> deleteAsync(WebDAVResource res) {
+        return ServiceFutures.supplyAsync(() -> {
+            delete(res);
+            return null;
+        }, getExecutor());
+    }
+    
+    default CompletableFuture<Void> moveAsync(WebDAVResource src, WebDAVResource dest) {
+        return ServiceFutures.supplyAsync(() -> {
+            move(src, dest);
+            return null;
+        }, getExecutor());
+    }
+    
+    default CompletableFuture<Void> copyAsync(WebDAVResource src, WebDAVResource dest, int depth) {
+        return ServiceFutures.supplyAsync(() -> {
+            copy(src, dest, depth);
+            return null;
+        }, getExecutor());
+    }
+    
+    default CompletableFuture<String> createDirectoryAsync(WebDAVResource parent, String dirName) {
+        return ServiceFutures.supplyAsync(() -> createDirectory(parent, dirName), getExecutor());
+    }
+}
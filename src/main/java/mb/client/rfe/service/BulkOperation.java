@@ -0,0 +1,133 @@
+package mb.client.rfe.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import mb.client.rfe.model.ResourceHost;
+
+/**
+ * Applies a repository operation to many items at once, running a bounded number of them concurrently.
+ * <p>
+ * Besides the parallelism of each operation, all bulk operations against the same host share a
+ * configured limit, so that several bulk operations started in a row don't flood it. Every item gets
+ * its own {@link Result}, failures don't stop the others.
+ */
+public class BulkOperation<T> {
+    
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    
+    private final int parallelism;
+    private final Semaphore permits;
+    private final Action<T> action;
+    
+    public BulkOperation(ResourceHost host, Action<T> action) {
+        this(host, config.getIntProperty("bulk.parallelism", 8), action);
+    }
+    
+    /**
+     * @param host Host the operations run against, <code>null</code> for the local file system
+     * @param parallelism Maximum number of concurrent operations against the host
+     */
+    public BulkOperation(ResourceHost host, int parallelism, Action<T> action) {
+        this.parallelism = parallelism;
+        this.permits = permitsFor(host);
+        this.action = action;
+    }
+    
+    /**
+     * Permits bounding concurrent operations against a host, as many as configured for all hosts
+     */
+    static Semaphore permitsFor(ResourceHost host) {
+        return hostPermits.computeIfAbsent(host != null ? host.getBaseUriString() : "local", 
+                key -> new Semaphore(config.getIntProperty("bulk.host.limit", 8)));
+    }
+    
+    /**
+     * Runs the operation for all items and waits for them to finish
+     * @param listener Notified of each result as it becomes available, one at a time
+     * @return Results in the order of the items
+     */
+    public List<Result<T>> execute(List<T> items, Consumer<Result<T>> listener) throws InterruptedException {
+        if(items.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, items.size()), 
+                WebDAVUtil.daemonThreadFactory("bulk-operation"));
+        try {
+            List<Future<Result<T>>> futures = new ArrayList<>(items.size());
+            for (T item : items) {
+                futures.add(executor.submit(RateLimiter.bindTask(() -> {
+                    Result<T> result = apply(item);
+                    synchronized (listener) {
+                        listener.accept(result);
+                    }
+                    return result;
+                })));
+            }
+            
+            List<Result<T>> results = new ArrayList<>(items.size());
+            for (Future<Result<T>> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private Result<T> apply(T item) throws InterruptedException {
+        permits.acquire();
+        try {
+            action.apply(item);
+            return new Result<>(item, null);
+        } catch (WebDAVServiceException e) {
+            return new Result<>(item, e);
+        } catch (RuntimeException e) {
+            return new Result<>(item, new WebDAVServiceException(e.toString(), e));
+        } finally {
+            permits.release();
+        }
+    }
+    
+    @FunctionalInterface
+    public interface Action<T> {
+        void apply(T item) throws WebDAVServiceException;
+    }
+    
+    public static class Result<T> {
+        
+        private final T item;
+        private final WebDAVServiceException exception;
+        
+        private Result(T item, WebDAVServiceException exception) {
+            this.item = item;
+            this.exception = exception;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public WebDAVServiceException getException() {
+            return exception;
+        }
+        
+        public boolean isSuccess() {
+            return exception == null;
+        }
+    }
+}
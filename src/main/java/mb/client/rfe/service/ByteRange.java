@@ -0,0 +1,71 @@
+package mb.client.rfe.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes within a resource, start inclusive and end exclusive
+ */
+public class ByteRange {
+    
+    private final long start, end;
+
+    public ByteRange(long start, long end) {
+        if(start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid byte range " + start + "-" + end);
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+    
+    public long length() {
+        return end - start;
+    }
+    
+    /**
+     * Value of the HTTP <code>Range</code> header requesting this range
+     */
+    public String toHeaderValue() {
+        return "bytes=" + start + "-" + (end - 1);
+    }
+    
+    /**
+     * Splits this range in a number of consecutive ranges of roughly the same length
+     */
+    public List<ByteRange> split(int parts) {
+        List<ByteRange> ranges = new ArrayList<>(parts);
+        long partLength = (length() + parts - 1) / parts;
+        for (long pos = start; pos < end; pos += partLength) {
+            ranges.add(new ByteRange(pos, Math.min(pos + partLength, end)));
+        }
+        return ranges;
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        ByteRange other = (ByteRange) obj;
+        return start == other.start && end == other.end;
+    }
+}
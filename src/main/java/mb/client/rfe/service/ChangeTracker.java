@@ -0,0 +1,292 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import mb.client.rfe.model.ResourceChange;
+import mb.client.rfe.model.ResourceChange.Kind;
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Reports changes of the children of remote directories by polling them.
+ * <p>
+ * Directories are asked for the changes since the last poll with a <code>sync-collection</code>
+ * report (RFC 6578), which costs next to nothing if there are none. Directories for which the host
+ * doesn't support it, e.g. some of them being served by another backend, are asked for their
+ * validators instead, and the directory is only listed again and
+ * compared with the previous listing if those changed. The first poll of a directory sets the
+ * baseline and reports nothing.
+ */
+public class ChangeTracker implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(ChangeTracker.class.getName());
+
+    private final Source source;
+    private final Map<String, Watched> watched = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param intervalMs Time between the end of a poll and the start of the next
+     */
+    public ChangeTracker(Source source, long intervalMs) {
+        this.source = source;
+        scheduler = Executors.newSingleThreadScheduledExecutor(WebDAVUtil.daemonThreadFactory("change-tracker"));
+        scheduler.scheduleWithFixedDelay(this::poll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts reporting changes of the children of a directory to the listener, until the returned
+     * handle is closed. The listener is called from the thread of the tracker.
+     */
+    public Closeable watch(String path, Consumer<List<ResourceChange>> listener) {
+        String key = ListingCache.toKey(path);
+        Watched dir;
+        synchronized (watched) {
+            dir = watched.computeIfAbsent(key, k -> new Watched(path));
+            dir.listeners.add(listener);
+        }
+
+        // Baseline right away, so that changes made until the first poll are not missed
+        scheduler.execute(() -> poll(dir));
+        return () -> {
+            synchronized (watched) {
+                if(dir.listeners.remove(listener) && dir.listeners.isEmpty()) {
+                    watched.remove(key);
+                }
+            }
+        };
+    }
+
+    /**
+     * Whether the host turned out not to support <code>sync-collection</code> reports for a watched directory
+     */
+    public boolean isSyncUnsupported(String path) {
+        Watched dir;
+        synchronized (watched) {
+            dir = watched.get(ListingCache.toKey(path));
+        }
+        return dir != null && dir.syncUnsupported;
+    }
+
+    /**
+     * Polls all watched directories once
+     */
+    public void poll() {
+        List<Watched> dirs;
+        synchronized (watched) {
+            dirs = new ArrayList<>(watched.values());
+        }
+        for (Watched dir : dirs) {
+            if(Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            poll(dir);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        synchronized (watched) {
+            watched.clear();
+        }
+    }
+
+    private void poll(Watched dir) {
+        synchronized (dir) {
+            try {
+                List<ResourceChange> changes = dir.syncUnsupported ? compare(dir) : sync(dir);
+                if(!changes.isEmpty()) {
+                    for (Consumer<List<ResourceChange>> listener : dir.listeners) {
+                        listener.accept(changes);
+                    }
+                }
+            } catch (WebDAVServiceException | RuntimeException e) {
+                LOG.log(Level.FINE, format("Polling ''{0}'' for changes failed", dir.path), e);
+            }
+        }
+    }
+
+    /**
+     * Applies the changes since the last sync token
+     */
+    private List<ResourceChange> sync(Watched dir) throws WebDAVServiceException {
+        SyncResult result;
+        try {
+            result = source.sync(dir.path, dir.syncToken);
+        } catch (InvalidSyncTokenException e) {
+
+            // Token expired, start over with all members and compare them with the known ones
+            LOG.fine(format("Sync token of ''{0}'' no longer valid", dir.path));
+            dir.syncToken = null;
+            result = source.sync(dir.path, null);
+        }
+        if(result == null) {
+            LOG.info(format("No sync-collection support for ''{0}'', comparing listings instead", dir.path));
+            dir.syncUnsupported = true;
+            dir.children = null;
+            return compare(dir);
+        }
+
+        List<ResourceChange> changes;
+        if(dir.syncToken == null) {
+            Map<String, WebDAVResource> children = new HashMap<>();
+            result.getMembers().forEach((path, res) -> {
+                if(res != null) {
+                    children.put(ListingCache.toKey(path), res);
+                }
+            });
+            changes = diff(dir, children);
+        } else {
+            changes = new ArrayList<>();
+            for (Map.Entry<String, WebDAVResource> member : result.getMembers().entrySet()) {
+                String key = ListingCache.toKey(member.getKey());
+                WebDAVResource res = member.getValue();
+                if(res == null) {
+                    WebDAVResource removed = dir.children.remove(key);
+                    if(removed != null) {
+                        changes.add(new ResourceChange(Kind.DELETED, removed.getAbsolutePath(), null));
+                    }
+                } else {
+                    WebDAVResource previous = dir.children.put(key, res);
+                    changes.add(new ResourceChange(previous == null ? Kind.CREATED : Kind.MODIFIED,
+                            res.getAbsolutePath(), res));
+                }
+            }
+        }
+        dir.syncToken = result.getToken();
+        return changes;
+    }
+
+    /**
+     * Lists the directory again if its validators changed and compares the listing with the previous one
+     */
+    private List<ResourceChange> compare(Watched dir) throws WebDAVServiceException {
+        String validator = source.validator(dir.path);
+        if(validator != null && validator.equals(dir.validator) && dir.children != null) {
+            return new ArrayList<>();
+        }
+
+        Map<String, WebDAVResource> children = new HashMap<>();
+        for (WebDAVResource res : source.list(dir.path)) {
+            children.put(ListingCache.toKey(res.getAbsolutePath()), res);
+        }
+        dir.validator = validator;
+        return diff(dir, children);
+    }
+
+    /**
+     * Replaces the known children of a directory, reporting the differences unless there were none known
+     */
+    private static List<ResourceChange> diff(Watched dir, Map<String, WebDAVResource> children) {
+        List<ResourceChange> changes = new ArrayList<>();
+        if(dir.children != null) {
+            children.forEach((key, res) -> {
+                WebDAVResource previous = dir.children.get(key);
+                if(previous == null) {
+                    changes.add(new ResourceChange(Kind.CREATED, res.getAbsolutePath(), res));
+                } else if(isModified(previous, res)) {
+                    changes.add(new ResourceChange(Kind.MODIFIED, res.getAbsolutePath(), res));
+                }
+            });
+            dir.children.forEach((key, res) -> {
+                if(!children.containsKey(key)) {
+                    changes.add(new ResourceChange(Kind.DELETED, res.getAbsolutePath(), null));
+                }
+            });
+        }
+        dir.children = children;
+        return changes;
+    }
+
+    private static boolean isModified(WebDAVResource previous, WebDAVResource res) {
+        if(previous.getEtag() != null && res.getEtag() != null) {
+            return !previous.getEtag().equals(res.getEtag());
+        }
+        return previous.getSize() != res.getSize() || !Objects.equals(previous.getModified(), res.getModified());
+    }
+
+    /**
+     * Access to the host
+     */
+    public interface Source {
+
+        /**
+         * Fetches the members of a directory changed since the given sync token
+         * @param token <code>null</code> for all members
+         * @return <code>null</code> if the host doesn't support <code>sync-collection</code> reports
+         * @throws InvalidSyncTokenException If the token is no longer accepted
+         */
+        SyncResult sync(String path, String token) throws WebDAVServiceException;
+
+        /**
+         * Returns a value which changes whenever the children of a directory do, if the host provides one
+         */
+        String validator(String path) throws WebDAVServiceException;
+
+        /**
+         * Lists the children of a directory, bypassing any cache
+         */
+        List<WebDAVResource> list(String path) throws WebDAVServiceException;
+    }
+
+    public static class SyncResult {
+
+        private final Map<String, WebDAVResource> members;
+        private final String token;
+
+        /**
+         * @param members Changed members by path, deleted ones with a <code>null</code> resource
+         */
+        public SyncResult(Map<String, WebDAVResource> members, String token) {
+            this.members = members;
+            this.token = token;
+        }
+
+        public Map<String, WebDAVResource> getMembers() {
+            return members;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    public static class InvalidSyncTokenException extends WebDAVServiceException {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidSyncTokenException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static class Watched {
+
+        private final String path;
+        private final List<Consumer<List<ResourceChange>>> listeners = new CopyOnWriteArrayList<>();
+        private String syncToken;
+        private String validator;
+        private volatile boolean syncUnsupported;
+
+        // Known children by path, null until the baseline is taken
+        private Map<String, WebDAVResource> children;
+
+        private Watched(String path) {
+            this.path = path;
+        }
+    }
+}
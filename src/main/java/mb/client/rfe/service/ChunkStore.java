@@ -0,0 +1,530 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Index of the content of downloaded files, so that downloading content again takes whatever is
+ * already on disk instead of fetching it from the server.
+ * <p>
+ * Downloaded files are split into chunks at content-defined boundaries, so that files differing by
+ * a few inserted or removed bytes still share most of their chunks. A manifest listing the chunks
+ * is kept per version of a resource, identified by its URI, strong ETag and size, along with the
+ * file it was downloaded to. Chunks are not copied, they are read from the downloaded files as long
+ * as those haven't changed, and verified by their hash. Servers don't tell the chunks of versions
+ * never downloaded before, so only known versions are assembled from disk.
+ * <p>
+ * Manifests are kept in memory and in an append-only log, compacted once most of it is outdated.
+ * Manifests of files changed since are no longer used as sources of chunks, and dropped for good
+ * when the store is opened. The oldest manifests make room once the configured number of chunks
+ * is exceeded.
+ */
+public class ChunkStore {
+
+    private static final Logger LOG = Logger.getLogger(ChunkStore.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int HASH_SIZE = 32;
+    private static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+
+    // Cut points where the top 20 bits of the rolling hash are zero, about every MiB past the minimum
+    private static final long CUT_MASK = 0xfffff00000000000L;
+
+    // Random but fixed, as chunk boundaries must be the same on every run
+    private static final long[] GEAR = new Random(0x5eed).longs(256).toArray();
+    private static final Map<File, ChunkStore> openStores = new HashMap<>();
+
+    private final File file;
+    private final int maxChunks;
+
+    // Oldest first
+    private final Map<String, Manifest> manifests = new LinkedHashMap<>();
+
+    // Manifests which may hold a chunk, by chunk hash
+    private final Map<ByteBuffer, List<Manifest>> holders = new HashMap<>();
+    private long chunkCount;
+    private long liveBytes;
+    private RandomAccessFile raf;
+
+    // Services having opened the store and not closed it yet, guarded by openStores
+    private int references;
+
+    private ChunkStore(File file) {
+        this.file = file;
+        maxChunks = config.getIntProperty("download.store.chunks", 100 * 1000);
+    }
+
+    /**
+     * Opens the store in the given file, creating it if missing. All hosts share the store,
+     * so it's only opened once and only closed once closed by all services.
+     */
+    public static ChunkStore open(File file) throws IOException {
+        synchronized (openStores) {
+            File key = file.getAbsoluteFile();
+            ChunkStore store = openStores.get(key);
+            if(store == null) {
+                store = new ChunkStore(key);
+                Files.createDirectories(key.getParentFile().toPath());
+                store.raf = new RandomAccessFile(key, "rw");
+                store.load();
+                store.dropStale();
+                store.compactIfOutdated();
+                openStores.put(key, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (openStores) {
+            if(--references > 0) {
+                return;
+            }
+            openStores.remove(file);
+        }
+        synchronized (this) {
+            raf.close();
+        }
+    }
+
+    /**
+     * Key of a version of a resource, or <code>null</code> if it can't be told from other versions.
+     * Weak ETags don't promise identical bytes, so they don't identify a version.
+     */
+    public static String versionOf(String uri, String etag, long size) {
+        if(etag == null || etag.startsWith("W/")) {
+            return null;
+        }
+        return uri + "\n" + etag + "\n" + size;
+    }
+
+    public synchronized boolean contains(String version) {
+        return manifests.containsKey(version);
+    }
+
+    public synchronized int size() {
+        return manifests.size();
+    }
+
+    /**
+     * Writes all chunks of a known version found on disk to their positions in the target file
+     * @return The ranges still missing from the target, <code>null</code> if the version is unknown
+     */
+    public List<ByteRange> assemble(String version, File target) throws IOException {
+        Manifest manifest;
+        synchronized (this) {
+            manifest = manifests.get(version);
+        }
+        if(manifest == null) {
+            return null;
+        }
+
+        List<ByteRange> missing = new ArrayList<>();
+        Map<Manifest, RandomAccessFile> sources = new HashMap<>();
+        try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.setLength(manifest.size);
+            for (int i = 0; i < manifest.hashes.length; i++) {
+                byte[] chunk = find(manifest.hashes[i], manifest.lengths[i], sources);
+                long start = manifest.offsets[i];
+                if(chunk != null) {
+                    out.seek(start);
+                    out.write(chunk);
+                } else if(!missing.isEmpty() && missing.get(missing.size() - 1).getEnd() == start) {
+                    ByteRange last = missing.remove(missing.size() - 1);
+                    missing.add(new ByteRange(last.getStart(), start + manifest.lengths[i]));
+                } else {
+                    missing.add(new ByteRange(start, start + manifest.lengths[i]));
+                }
+            }
+        } finally {
+            for (RandomAccessFile source : sources.values()) {
+                if(source != null) {
+                    source.close();
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Checks the given ranges of a file against the chunks of a known version, typically after
+     * fetching them from the server
+     */
+    public boolean verify(String version, File file, List<ByteRange> ranges) throws IOException {
+        Manifest manifest;
+        synchronized (this) {
+            manifest = manifests.get(version);
+        }
+        if(manifest == null || file.length() != manifest.size) {
+            return false;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            for (int i = 0; i < manifest.hashes.length; i++) {
+                long start = manifest.offsets[i];
+                if(ranges.stream().anyMatch(range -> range.getStart() <= start && start < range.getEnd())) {
+                    byte[] chunk = new byte[manifest.lengths[i]];
+                    in.seek(start);
+                    in.readFully(chunk);
+                    if(!Arrays.equals(manifest.hashes[i], digest().digest(chunk))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a downloaded file into chunks and records it as holding the given version
+     */
+    public void record(String version, File file) throws IOException {
+        File source = file.getAbsoluteFile();
+        List<byte[]> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        long modified = source.lastModified();
+        try (InputStream is = new FileInputStream(source)) {
+            split(is, hashes, lengths);
+        }
+
+        append(new Manifest(version, source.getPath(), source.length(), modified,
+                hashes.toArray(new byte[0][]), lengths.stream().mapToInt(Integer::intValue).toArray()));
+        LOG.fine(format("Recorded {0} chunks of ''{1}''", hashes.size(), source));
+    }
+
+    /**
+     * Records a file assembled from the chunks of a known version as holding it, without splitting
+     * it again
+     * @return <code>false</code> if the version is unknown
+     */
+    public boolean relocate(String version, File file) throws IOException {
+        Manifest known;
+        synchronized (this) {
+            known = manifests.get(version);
+        }
+        if(known == null) {
+            return false;
+        }
+
+        File target = file.getAbsoluteFile();
+        append(new Manifest(version, target.getPath(), target.length(), target.lastModified(),
+                known.hashes, known.lengths));
+        LOG.fine(format("Recorded {0} chunks of ''{1}''", known.hashes.length, target));
+        return true;
+    }
+
+    private synchronized void append(Manifest manifest) throws IOException {
+        byte[] record = manifest.toBytes();
+        raf.seek(raf.length());
+        raf.write(record);
+        put(manifest, record.length);
+        compactIfOutdated();
+    }
+
+    /**
+     * Splits content at the points where a rolling hash of the last 64 bytes matches the cut mask,
+     * so that the same content ends up in the same chunks wherever it is
+     */
+    static void split(InputStream is, List<byte[]> hashes, List<Integer> lengths) throws IOException {
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[1024 * 1024];
+        long hash = 0;
+        int length = 0;
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            int start = 0;
+            int i = 0;
+            while (i < read) {
+
+                // Bytes before the last 64 ahead of the minimum size can't affect the hash at any cut point
+                if(length < MIN_CHUNK_SIZE - 64) {
+                    int skip = Math.min(read - i, MIN_CHUNK_SIZE - 64 - length);
+                    i += skip;
+                    length += skip;
+                    continue;
+                }
+
+                hash = (hash << 1) + GEAR[buffer[i++] & 0xff];
+                length++;
+                if(length >= MIN_CHUNK_SIZE && (hash & CUT_MASK) == 0 || length >= MAX_CHUNK_SIZE) {
+                    digest.update(buffer, start, i - start);
+                    hashes.add(digest.digest());
+                    lengths.add(length);
+                    start = i;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, start, read - start);
+        }
+        if(length > 0) {
+            hashes.add(digest.digest());
+            lengths.add(length);
+        }
+    }
+
+    /**
+     * Reads a chunk from any file still holding it, keeping the files opened for further chunks
+     */
+    private byte[] find(byte[] hash, int length, Map<Manifest, RandomAccessFile> sources) throws IOException {
+        List<Manifest> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<>(holders.getOrDefault(ByteBuffer.wrap(hash), new ArrayList<>()));
+        }
+
+        for (Manifest candidate : candidates) {
+            if(!sources.containsKey(candidate)) {
+
+                // Files changed since they were recorded are of no use
+                RandomAccessFile source = null;
+                if(candidate.isIntact()) {
+                    source = new RandomAccessFile(candidate.path, "r");
+                } else {
+                    dropHolder(candidate);
+                }
+                sources.put(candidate, source);
+            }
+            RandomAccessFile source = sources.get(candidate);
+            if(source == null) {
+                continue;
+            }
+
+            for (int i = 0; i < candidate.hashes.length; i++) {
+                if(Arrays.equals(candidate.hashes[i], hash)) {
+                    byte[] chunk = new byte[length];
+                    source.seek(candidate.offsets[i]);
+                    source.readFully(chunk);
+                    if(Arrays.equals(hash, digest().digest(chunk))) {
+                        return chunk;
+                    }
+
+                    // Changed without a trace in size or modification time
+                    dropHolder(candidate);
+                    source.close();
+                    sources.put(candidate, null);
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops using the file of a manifest as a source of chunks. The manifest itself stays until the store
+     * is opened again, as the version it describes might still be assembled from other files.
+     */
+    private synchronized void dropHolder(Manifest manifest) {
+        LOG.fine(format("''{0}'' changed since recorded, no longer used", manifest.path));
+        removeHolder(manifest);
+    }
+
+    private void put(Manifest manifest, int recordLength) {
+        Manifest previous = manifests.get(manifest.version);
+        if(previous != null) {
+            remove(previous);
+        }
+
+        manifest.recordLength = recordLength;
+        manifests.put(manifest.version, manifest);
+        liveBytes += recordLength;
+        chunkCount += manifest.hashes.length;
+        for (byte[] hash : manifest.hashes) {
+            List<Manifest> list = holders.computeIfAbsent(ByteBuffer.wrap(hash), key -> new ArrayList<>(1));
+            if(!list.contains(manifest)) {
+                list.add(manifest);
+            }
+        }
+
+        // The oldest versions make room, the latest one is kept however many chunks it has
+        while (chunkCount > maxChunks && manifests.size() > 1) {
+            remove(manifests.values().iterator().next());
+        }
+    }
+
+    private void remove(Manifest manifest) {
+        manifests.remove(manifest.version);
+        liveBytes -= manifest.recordLength;
+        chunkCount -= manifest.hashes.length;
+        removeHolder(manifest);
+    }
+
+    private void removeHolder(Manifest manifest) {
+        for (byte[] hash : manifest.hashes) {
+            List<Manifest> list = holders.get(ByteBuffer.wrap(hash));
+            if(list != null) {
+                list.remove(manifest);
+                if(list.isEmpty()) {
+                    holders.remove(ByteBuffer.wrap(hash));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the manifests of files changed since they were recorded
+     */
+    private void dropStale() {
+        List<Manifest> stale = new ArrayList<>();
+        for (Manifest manifest : manifests.values()) {
+            if(!manifest.isIntact()) {
+                stale.add(manifest);
+            }
+        }
+        stale.forEach(this::remove);
+        if(!stale.isEmpty()) {
+            LOG.fine(format("Dropped {0} manifests of changed files from ''{1}''", stale.size(), file));
+        }
+    }
+
+    /**
+     * Replays the log, keeping the latest manifest of every version
+     */
+    private void load() throws IOException {
+        long offset = 0;
+        long length = raf.length();
+        while (offset < length) {
+            try {
+                raf.seek(offset);
+                int bodyLength = raf.readInt();
+                if(bodyLength < 0 || offset + 4 + bodyLength > length) {
+                    throw new EOFException();
+                }
+
+                String version = raf.readUTF();
+                String path = raf.readUTF();
+                long size = raf.readLong();
+                long modified = raf.readLong();
+                int count = raf.readInt();
+                byte[][] hashes = new byte[count][HASH_SIZE];
+                int[] lengths = new int[count];
+                for (int i = 0; i < count; i++) {
+                    raf.readFully(hashes[i]);
+                    lengths[i] = raf.readInt();
+                }
+                put(new Manifest(version, path, size, modified, hashes, lengths), 4 + bodyLength);
+                offset += 4 + bodyLength;
+            } catch (EOFException e) {
+
+                // Incomplete last record of an interrupted write
+                LOG.warning(format("Dropping incomplete record at {0} of ''{1}''", offset, file));
+                raf.setLength(offset);
+                break;
+            }
+        }
+    }
+
+    private void compactIfOutdated() throws IOException {
+        if(raf.length() > COMPACTION_MIN_SIZE && raf.length() > 2 * liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with the current manifests only
+     */
+    private void compact() throws IOException {
+        LOG.fine(format("Compacting ''{0}'' from {1} to {2} bytes", file, raf.length(), liveBytes));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            for (Manifest manifest : manifests.values()) {
+                out.write(manifest.toBytes());
+            }
+        }
+
+        raf.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Chunks of a version of a resource, along with the file they were downloaded to
+     */
+    private static class Manifest {
+
+        private final String version;
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final byte[][] hashes;
+        private final int[] lengths;
+        private final long[] offsets;
+        private int recordLength;
+
+        private Manifest(String version, String path, long size, long modified, byte[][] hashes, int[] lengths) {
+            this.version = version;
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hashes = hashes;
+            this.lengths = lengths;
+            offsets = new long[lengths.length];
+            for (int i = 1; i < lengths.length; i++) {
+                offsets[i] = offsets[i - 1] + lengths[i - 1];
+            }
+        }
+
+        /**
+         * Whether the file the manifest was recorded from is unchanged
+         */
+        private boolean isIntact() {
+            File source = new File(path);
+            return source.length() == size && source.lastModified() == modified;
+        }
+
+        /**
+         * Record of the manifest in the log, written in one go so that a crash leaves at most one
+         * incomplete record at the end
+         */
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(0);
+            out.writeUTF(version);
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(hashes.length);
+            for (int i = 0; i < hashes.length; i++) {
+                out.write(hashes[i]);
+                out.writeInt(lengths[i]);
+            }
+
+            byte[] record = bos.toByteArray();
+            ByteBuffer.wrap(record).putInt(0, record.length - 4);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import mb.client.rfe.model.ResourceHost;
+
+/**
+ * Stops requests to a host which keeps failing, so that callers fail right away instead of
+ * waiting for timeouts.
+ * <p>
+ * After a number of consecutive failures the breaker opens and rejects all requests for a while.
+ * Then a single request is let through as a probe, closing the breaker again if it succeeds, and
+ * opening it for twice as long if it fails, up to a maximum.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final Map<String, CircuitBreaker> byHost = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long maxOpenNanos;
+    private State state = State.CLOSED;
+    private int failures;
+    private long currentOpenNanos;
+    private long openUntil;
+    private boolean probing;
+
+    /**
+     * @param failureThreshold Consecutive failures opening the breaker
+     * @param openMs Time the breaker stays open the first time
+     * @param maxOpenMs Longest time the breaker stays open
+     */
+    public CircuitBreaker(String host, int failureThreshold, long openMs, long maxOpenMs) {
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+        maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(maxOpenMs);
+        currentOpenNanos = openNanos;
+    }
+
+    /**
+     * Returns the breaker of a host, shared by all its services
+     */
+    public static CircuitBreaker forHost(ResourceHost host) {
+        return byHost.computeIfAbsent(host.getBaseUriString(), key -> new CircuitBreaker(key,
+                config.getIntProperty("breaker.failures", 5),
+                config.getIntProperty("breaker.open", 5 * 1000),
+                config.getIntProperty("breaker.open.max", 60 * 1000)));
+    }
+
+    /**
+     * Asks for permission to make a request, which must be followed by reporting its outcome
+     * @throws HostUnavailableException If the breaker is open, or another request is probing the host
+     */
+    public synchronized void acquire() throws HostUnavailableException {
+        if(state == State.OPEN) {
+            long waitNanos = openUntil - System.nanoTime();
+            if(waitNanos > 0) {
+                throw new HostUnavailableException(format("''{0}'' is unavailable, retrying in {1} s",
+                        host, TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1));
+            }
+            state = State.HALF_OPEN;
+        }
+        if(state == State.HALF_OPEN) {
+            if(probing) {
+                throw new HostUnavailableException(format("''{0}'' is unavailable, checking it again", host));
+            }
+            probing = true;
+        }
+    }
+
+    /**
+     * Reports a request the host answered, whatever the answer
+     */
+    public synchronized void onSuccess() {
+        if(state != State.CLOSED) {
+            LOG.info(format("''{0}'' available again", host));
+        }
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+        currentOpenNanos = openNanos;
+    }
+
+    /**
+     * Reports a request the host didn't answer, or answered as being unavailable
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if(state == State.HALF_OPEN) {
+            currentOpenNanos = Math.min(currentOpenNanos * 2, maxOpenNanos);
+            open();
+        } else if(state == State.CLOSED && failures >= failureThreshold) {
+            open();
+        }
+        probing = false;
+    }
+
+    /**
+     * Reports a request telling nothing about the host, such as one cancelled on the way, letting
+     * another request probe the host if this one was meant to
+     */
+    public synchronized void onNeutral() {
+        probing = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        LOG.warning(format("''{0}'' failed {1} times in a row, pausing requests for {2} ms",
+                host, failures, TimeUnit.NANOSECONDS.toMillis(currentOpenNanos)));
+        state = State.OPEN;
+        openUntil = System.nanoTime() + currentOpenNanos;
+    }
+
+    /**
+     * Whether a failure was caused by the host being unavailable
+     */
+    public static boolean isHostUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof HostUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Thrown instead of making a request while the host is considered unavailable
+     */
+    public static class HostUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public HostUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
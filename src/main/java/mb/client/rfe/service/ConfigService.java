@@ -36,7 +36,21 @@ public class ConfigService {
 	public String getProperty(String key) {
 		return getProperties().getProperty(key);
 	}
-	
+
+	public String getProperty(String key, String defaultValue) {
+		return getProperties().getProperty(key, defaultValue);
+	}
+
+	public int getIntProperty(String key, int defaultValue) {
+		String val = getProperty(key);
+		try {
+			return val != null ? Integer.parseInt(val.trim()) : defaultValue;
+		} catch (NumberFormatException e) {
+			LOG.log(Level.WARNING, "Invalid integer value for property " + key, e);
+			return defaultValue;
+		}
+	}
+
 	public String getOrCreateProperty(String key, String defaultValue) {
 		String val = null;
 		synchronized (ConfigService.class) {
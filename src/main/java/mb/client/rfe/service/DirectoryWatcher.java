@@ -0,0 +1,207 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import mb.client.rfe.model.ResourceChange;
+import mb.client.rfe.model.ResourceChange.Kind;
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Reports changes of the children of local directories, based on a {@link WatchService}.
+ * <p>
+ * Events are collected for a short window after the first one and then reported as a single batch
+ * per directory, so a directory changing constantly is reported at most once per window. Each
+ * resource changed within a window is read once at the end of it and reported with its state at
+ * that time, resources created and deleted within the same window are not reported at all.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    private final Function<Path, WebDAVResource> resolver;
+    private final long windowMs;
+    private final Map<Path, Registration> registrations = new HashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param resolver Reads the current state of a resource, returns <code>null</code> if it doesn't exist
+     * @param windowMs Time events are collected for before being reported
+     */
+    public DirectoryWatcher(Function<Path, WebDAVResource> resolver, long windowMs) {
+        this.resolver = resolver;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Starts reporting changes of the children of a directory to the listener, until the returned
+     * handle is closed. The listener is called from the thread of the watcher.
+     */
+    public synchronized Closeable watch(Path dir, Consumer<List<ResourceChange>> listener) throws IOException {
+        if(watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            thread = WebDAVUtil.daemonThreadFactory("directory-watcher").newThread(this::run);
+            thread.start();
+        }
+
+        Registration registration = registrations.get(dir);
+        if(registration == null) {
+            registration = new Registration(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            registrations.put(dir, registration);
+        }
+        registration.listeners.add(listener);
+        return () -> unwatch(dir, listener);
+    }
+
+    /**
+     * Number of directories currently watched
+     */
+    public synchronized int getWatchedCount() {
+        return registrations.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        registrations.clear();
+        if(watchService != null) {
+            thread.interrupt();
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private synchronized void unwatch(Path dir, Consumer<List<ResourceChange>> listener) {
+        Registration registration = registrations.get(dir);
+        if(registration != null && registration.listeners.remove(listener) && registration.listeners.isEmpty()) {
+            registration.key.cancel();
+            registrations.remove(dir);
+        }
+    }
+
+    private void run() {
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+
+        long flushAt = Long.MAX_VALUE;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = flushAt == Long.MAX_VALUE ? service.take() :
+                    service.poll(Math.max(0, flushAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if(key != null) {
+                    collect(key);
+                    key.reset();
+                    if(flushAt == Long.MAX_VALUE) {
+                        flushAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                    }
+                }
+                if(System.nanoTime() >= flushAt) {
+                    flush();
+                    flushAt = Long.MAX_VALUE;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher closed
+        }
+    }
+
+    private synchronized void collect(WatchKey key) {
+        Path dir = (Path) key.watchable();
+        Registration registration = registrations.get(dir);
+        if(registration == null || registration.key != key) {
+            key.pollEvents();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                registration.overflow = true;
+            } else {
+
+                // Whether the first event was a creation tells a new resource from a changed one
+                registration.pending.putIfAbsent(dir.resolve((Path) event.context()),
+                        event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+            }
+        }
+    }
+
+    private void flush() {
+        Map<Path, Registration> due = new HashMap<>();
+        synchronized (this) {
+            registrations.forEach((dir, registration) -> {
+                if(registration.overflow || !registration.pending.isEmpty()) {
+                    Registration copy = new Registration(registration.key);
+                    copy.listeners.addAll(registration.listeners);
+                    copy.pending.putAll(registration.pending);
+                    copy.overflow = registration.overflow;
+                    due.put(dir, copy);
+                    registration.pending.clear();
+                    registration.overflow = false;
+                }
+            });
+        }
+
+        // Resources are read without holding the lock, as that might take a while on network file systems
+        due.forEach((dir, registration) -> {
+            List<ResourceChange> changes = new ArrayList<>();
+            if(registration.overflow) {
+                changes.add(new ResourceChange(Kind.RESCAN, dir.toString(), null));
+            } else {
+                registration.pending.forEach((path, created) -> {
+                    WebDAVResource res = resolver.apply(path);
+                    if(res != null) {
+                        changes.add(new ResourceChange(created ? Kind.CREATED : Kind.MODIFIED, path.toString(), res));
+                    } else if(!created) {
+                        changes.add(new ResourceChange(Kind.DELETED, path.toString(), null));
+                    }
+                });
+            }
+
+            if(!changes.isEmpty()) {
+                for (Consumer<List<ResourceChange>> listener : registration.listeners) {
+                    try {
+                        listener.accept(changes);
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, format("Reporting changes of ''{0}'' failed", dir), e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static class Registration {
+
+        private final WatchKey key;
+        private final List<Consumer<List<ResourceChange>>> listeners = new ArrayList<>();
+
+        // Changed resources along with whether they were created
+        private final Map<Path, Boolean> pending = new LinkedHashMap<>();
+        private boolean overflow;
+
+        private Registration(WatchKey key) {
+            this.key = key;
+        }
+    }
+}
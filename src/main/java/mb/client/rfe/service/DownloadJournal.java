@@ -0,0 +1,214 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of the byte ranges of a download which are already on disk, so that an interrupted
+ * download can be continued later on.
+ * <p>
+ * Data is written to <code>&lt;name&gt;.part</code> and the journal is stored next to it in
+ * <code>&lt;name&gt;.part.journal</code>, holding the href, ETag and size of the resource and the
+ * committed ranges. The partial file is only moved to its final name once complete.
+ */
+public class DownloadJournal {
+
+    private static final Logger LOG = Logger.getLogger(DownloadJournal.class.getName());
+    private static final String PART_SUFFIX = ".part";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final long PERSIST_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+    private final File target, partFile, journalFile;
+    private String href, etag;
+    private long size;
+    private final TreeMap<Long, Long> committed;
+    private long bytesSincePersist;
+
+    private DownloadJournal(File target) {
+        this.target = target;
+        partFile = new File(target.getPath() + PART_SUFFIX);
+        journalFile = new File(partFile.getPath() + JOURNAL_SUFFIX);
+        committed = new TreeMap<>();
+    }
+
+    /**
+     * Opens the journal of a download to the given target file, loading the state of a previous attempt if present
+     */
+    public static DownloadJournal open(File target) {
+        DownloadJournal journal = new DownloadJournal(target);
+        if(journal.journalFile.exists() && journal.partFile.exists()) {
+            try {
+                journal.load();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, format("Discarding unreadable download journal ''{0}''", journal.journalFile), e);
+                journal.discard();
+            }
+        }
+        return journal;
+    }
+
+    public File getPartFile() {
+        return partFile;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public synchronized boolean hasPartialData() {
+        return !committed.isEmpty();
+    }
+
+    /**
+     * Checks if the partial data belongs to the given version of the resource.
+     * Without an ETag there's no way to tell, so it never matches.
+     */
+    public boolean matches(String href, String etag, long size) {
+        return etag != null && Objects.equals(this.href, href) && etag.equals(this.etag) && this.size == size;
+    }
+
+    /**
+     * Drops any partial data and starts over for the given version of the resource
+     */
+    public synchronized void reset(String href, String etag, long size) throws IOException {
+        discard();
+        this.href = href;
+        this.etag = etag;
+        this.size = size;
+        persist();
+    }
+
+    public synchronized long getCommittedBytes() {
+        return committed.entrySet().stream().mapToLong(e -> e.getValue() - e.getKey()).sum();
+    }
+
+    /**
+     * Ranges which still have to be downloaded
+     */
+    public synchronized List<ByteRange> getMissingRanges() {
+        List<ByteRange> missing = new ArrayList<>();
+        long pos = 0;
+        for (Map.Entry<Long, Long> range : committed.entrySet()) {
+            if(range.getKey() > pos) {
+                missing.add(new ByteRange(pos, range.getKey()));
+            }
+            pos = Math.max(pos, range.getValue());
+        }
+        if(pos < size) {
+            missing.add(new ByteRange(pos, size));
+        }
+        return missing;
+    }
+
+    /**
+     * Records a range as written to the partial file
+     * @return <code>true</code> if enough data was committed since the journal was last persisted
+     */
+    public synchronized boolean commit(long start, long end) {
+        long newStart = start, newEnd = end;
+
+        // Merge with an overlapping or adjacent range before
+        Map.Entry<Long, Long> floor = committed.floorEntry(start);
+        if(floor != null && floor.getValue() >= start) {
+            newStart = floor.getKey();
+            newEnd = Math.max(newEnd, floor.getValue());
+            committed.remove(floor.getKey());
+        }
+
+        // Merge with overlapping or adjacent ranges after
+        Map.Entry<Long, Long> next;
+        while ((next = committed.ceilingEntry(newStart)) != null && next.getKey() <= newEnd) {
+            newEnd = Math.max(newEnd, next.getValue());
+            committed.remove(next.getKey());
+        }
+        committed.put(newStart, newEnd);
+
+        bytesSincePersist += end - start;
+        return bytesSincePersist >= PERSIST_INTERVAL_BYTES;
+    }
+
+    /**
+     * Writes the journal to disk. Callers are responsible for flushing the partial file first.
+     */
+    public synchronized void persist() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("href", href != null ? href : "");
+        props.setProperty("size", String.valueOf(size));
+        if(etag != null) {
+            props.setProperty("etag", etag);
+        }
+        props.setProperty("ranges", committed.entrySet().stream()
+                .map(e -> e.getKey() + "-" + e.getValue())
+                .collect(Collectors.joining(",")));
+
+        // Write aside and replace, so that a crash never leaves a truncated journal
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp)) {
+            props.store(fos, null);
+        }
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        bytesSincePersist = 0;
+    }
+
+    /**
+     * Moves the completed partial file to its final name and removes the journal
+     */
+    public synchronized void complete() throws IOException {
+        Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /**
+     * Removes the partial file along with the journal
+     */
+    public synchronized void discard() {
+        committed.clear();
+        bytesSincePersist = 0;
+        partFile.delete();
+        journalFile.delete();
+    }
+
+    private void load() throws IOException {
+        Properties props = new Properties();
+        try(FileInputStream fis = new FileInputStream(journalFile)) {
+            props.load(fis);
+        }
+
+        href = props.getProperty("href");
+        etag = props.getProperty("etag");
+        size = Long.parseLong(props.getProperty("size", "0"));
+
+        String ranges = props.getProperty("ranges", "");
+        for (String range : ranges.split(",")) {
+            if(!range.isBlank()) {
+                String[] bounds = range.split("-");
+                commit(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+            }
+        }
+        bytesSincePersist = 0;
+
+        // The partial file is preallocated to the full size, anything else means it can't be trusted
+        if(partFile.length() != size) {
+            committed.clear();
+        }
+    }
+}
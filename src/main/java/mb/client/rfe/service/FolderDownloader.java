@@ -0,0 +1,291 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Downloads a remote directory tree, preserving its structure.
+ * <p>
+ * The tree is discovered by a {@link ResourceCrawler} while files are already being downloaded, and
+ * discovery waits whenever the downloads fall behind. The crawl bypasses cached listings, which might
+ * miss recent changes. Downloads run concurrently, bounded per host by the permits shared with
+ * {@link BulkOperation}. Files already present locally with the same size and modification time are
+ * skipped, downloaded files get the modification time of the resource.
+ */
+public class FolderDownloader {
+
+    private static final ConfigService config = ConfigService.getInstance();
+
+    // Local and remote modification times often have a precision of a second only
+    private static final long MTIME_TOLERANCE_MS = 1000;
+
+    private final ResourceRepositoryService service;
+    private final int parallelism;
+
+    public FolderDownloader(ResourceRepositoryService service) {
+        this(service, config.getIntProperty("bulk.parallelism", 8));
+    }
+
+    /**
+     * @param parallelism Maximum number of concurrent downloads
+     */
+    public FolderDownloader(ResourceRepositoryService service, int parallelism) {
+        this.service = service;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Downloads the directory into a directory of the same name below the given local directory and
+     * waits for it to finish. Failing files and directories are recorded in the returned summary,
+     * without stopping the rest.
+     * @param listener Notified of changes of the summary, possibly from several threads
+     */
+    public Summary download(WebDAVResource dir, File targetDir, Listener listener)
+            throws WebDAVServiceException, InterruptedException {
+        Path localRoot = targetDir.toPath().resolve(dir.getName()).toAbsolutePath().normalize();
+        createDirectories(localRoot);
+        String rootPath = pathOf(dir.getAbsolutePath());
+
+        Summary summary = new Summary();
+        Semaphore hostPermits = BulkOperation.permitsFor(service.getHost());
+
+        // Only a few files are queued ahead of the downloads, so that discovery waits for them
+        Semaphore queued = new Semaphore(parallelism * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                WebDAVUtil.daemonThreadFactory("folder-download"));
+
+        ResourceCrawler.Crawl crawl = new ResourceCrawler(service, true).crawl(dir.getAbsolutePath());
+        try (Stream<WebDAVResource> stream = crawl.stream()) {
+            for (Iterator<WebDAVResource> it = stream.iterator(); it.hasNext();) {
+                WebDAVResource res = it.next();
+                try {
+                    Path target = localPathOf(rootPath, res, localRoot);
+                    if(res.isDirectory()) {
+                        createDirectories(target);
+                        continue;
+                    }
+
+                    summary.discoveredFiles.incrementAndGet();
+                    summary.discoveredBytes.addAndGet(res.getSize());
+                    listener.changed(summary);
+
+                    queued.acquire();
+                    executor.execute(RateLimiter.bindTask(() -> {
+                        try {
+                            hostPermits.acquire();
+                            try {
+                                downloadFile(res, target, summary, listener);
+                            } finally {
+                                hostPermits.release();
+                            }
+                        } catch (InterruptedException e) {
+                            // Download cancelled
+                        } finally {
+                            queued.release();
+                        }
+                    }));
+                } catch (WebDAVServiceException e) {
+                    summary.failures.put(res.getAbsolutePath(), e);
+                    listener.changed(summary);
+                }
+            }
+
+            // The crawl ends early when interrupted
+            if(Thread.interrupted()) {
+                throw new InterruptedException("Folder download interrupted");
+            }
+            summary.failures.putAll(crawl.getFailures());
+            summary.discoveryComplete = true;
+            listener.changed(summary);
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        return summary;
+    }
+
+    private void downloadFile(WebDAVResource res, Path target, Summary summary, Listener listener) {
+        long[] received = new long[1];
+        try {
+            if(isUpToDate(target.toFile(), res)) {
+                summary.skipped.incrementAndGet();
+                summary.bytesDone.addAndGet(res.getSize());
+                return;
+            }
+
+            service.download(res, target.toFile(), bytesRead -> {
+                received[0] += bytesRead;
+                summary.bytesDone.addAndGet(bytesRead);
+                summary.bytesTransferred.addAndGet(bytesRead);
+                listener.changed(summary);
+                return null;
+            });
+            if(res.getModified() != null) {
+                target.toFile().setLastModified(res.getModified().getTime());
+            }
+            summary.downloaded.incrementAndGet();
+        } catch (WebDAVServiceException e) {
+            summary.failures.put(res.getAbsolutePath(), e);
+            summary.bytesDone.addAndGet(Math.max(0, res.getSize() - received[0]));
+        } finally {
+            listener.changed(summary);
+        }
+    }
+
+    private static boolean isUpToDate(File file, WebDAVResource res) {
+        return file.isFile() && file.length() == res.getSize() && res.getModified() != null &&
+                Math.abs(file.lastModified() - res.getModified().getTime()) <= MTIME_TOLERANCE_MS;
+    }
+
+    /**
+     * Maps a resource below the root directory to a local path below the local root, refusing
+     * anything that would end up outside of it
+     */
+    private Path localPathOf(String rootPath, WebDAVResource res, Path localRoot) throws WebDAVServiceException {
+        String path = pathOf(res.getAbsolutePath());
+        String separator = isRemote() ? "/" : File.separator;
+        if(!path.startsWith(rootPath + separator)) {
+            throw new WebDAVServiceException(format("''{0}'' is not below ''{1}''", path, rootPath));
+        }
+
+        Path local = localRoot;
+        for (String segment : path.substring(rootPath.length() + separator.length()).split(Pattern.quote(separator))) {
+            local = local.resolve(isRemote() ? WebDAVUtil.decodeUrlPath(segment) : segment);
+        }
+
+        local = local.normalize();
+        if(!local.startsWith(localRoot) || local.equals(localRoot)) {
+            throw new WebDAVServiceException(format("Refusing to download ''{0}'' to ''{1}''", path, local));
+        }
+        return local;
+    }
+
+    /**
+     * Path of a resource without a trailing slash, reduced to the encoded URI path for remote resources,
+     * as those might be either absolute URIs or hrefs
+     */
+    private String pathOf(String absolutePath) throws WebDAVServiceException {
+        String path = absolutePath;
+        if(isRemote()) {
+            try {
+                path = URI.create(absolutePath).getRawPath();
+            } catch (IllegalArgumentException e) {
+                throw new WebDAVServiceException(format("Invalid resource path ''{0}''", absolutePath), e);
+            }
+        }
+        return ListingCache.toKey(path);
+    }
+
+    private boolean isRemote() {
+        return service.getHost() != null;
+    }
+
+    private static void createDirectories(Path dir) throws WebDAVServiceException {
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to create directory ''{0}''", dir), e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        void changed(Summary summary);
+    }
+
+    /**
+     * Progress and outcome of a download
+     */
+    public static class Summary {
+
+        private final long startedAt = System.nanoTime();
+        private final AtomicInteger discoveredFiles = new AtomicInteger();
+        private final AtomicLong discoveredBytes = new AtomicLong();
+        private final AtomicInteger downloaded = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicLong bytesDone = new AtomicLong();
+        private final AtomicLong bytesTransferred = new AtomicLong();
+        private final Map<String, WebDAVServiceException> failures = new ConcurrentHashMap<>();
+        private volatile boolean discoveryComplete;
+
+        /**
+         * Files found so far, the total once discovery is complete
+         */
+        public int getDiscoveredFiles() {
+            return discoveredFiles.get();
+        }
+
+        public long getDiscoveredBytes() {
+            return discoveredBytes.get();
+        }
+
+        public boolean isDiscoveryComplete() {
+            return discoveryComplete;
+        }
+
+        public int getDownloaded() {
+            return downloaded.get();
+        }
+
+        /**
+         * Files which were already present locally
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Bytes downloaded, skipped or given up on
+         */
+        public long getBytesDone() {
+            return bytesDone.get();
+        }
+
+        /**
+         * Average download rate since the start
+         */
+        public long getBytesPerSecond() {
+            long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            return bytesTransferred.get() * 1000 / elapsedMs;
+        }
+
+        /**
+         * Estimated seconds left or <code>-1</code> while the total is not known yet
+         */
+        public long getSecondsLeft() {
+            long rate = getBytesPerSecond();
+            if(!discoveryComplete || rate == 0) {
+                return -1;
+            }
+            return Math.max(0, getDiscoveredBytes() - getBytesDone()) / rate;
+        }
+
+        /**
+         * Resources which couldn't be listed or downloaded, by remote path
+         */
+        public Map<String, WebDAVServiceException> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+    }
+}
@@ -0,0 +1,754 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Keeps a local directory tree and a remote one in step in both directions.
+ * <p>
+ * Both trees are scanned and compared with the state recorded at the end of the previous run. A resource
+ * changed on one side only is transferred to the other, a resource gone from one side only is deleted from
+ * the other. Local files count as changed if their size or modification time differ from the recorded ones,
+ * remote files if their ETag does, or their size and modification time for hosts without ETags. Files
+ * present on both sides without a recorded state, or changed on both sides, are compared by content hash
+ * if they have the same size. Files which turn out to differ are reported as conflicts and left alone.
+ * <p>
+ * The remote tree is scanned without cached listings, which might not show changes made by others.
+ * Nothing is deleted if either tree couldn't be scanned completely. Transfers and deletions run concurrently,
+ * bounded per host like any {@link BulkOperation}.
+ */
+public class FolderSync {
+
+    private static final Logger LOG = Logger.getLogger(FolderSync.class.getName());
+    private static final String DIRECTORY_CONTENT_TYPE = "httpd/unix-directory";
+    private static final int STATE_VERSION = 1;
+
+    private final ResourceRepositoryService service;
+    private final File stateDir;
+
+    public FolderSync(ResourceRepositoryService service) {
+        this(service, new File("sync"));
+    }
+
+    /**
+     * @param stateDir Directory the state of earlier runs is kept in
+     */
+    public FolderSync(ResourceRepositoryService service, File stateDir) {
+        this.service = service;
+        this.stateDir = stateDir;
+    }
+
+    /**
+     * Brings the local directory and the remote one in step and waits for it to finish. Failing resources
+     * are recorded in the returned summary, without stopping the rest.
+     * @param listener Notified of changes of the summary, possibly from several threads
+     */
+    public Summary sync(File localDir, WebDAVResource remoteDir, Listener listener)
+            throws WebDAVServiceException, InterruptedException {
+        Path localRoot = localDir.toPath().toAbsolutePath().normalize();
+        File stateFile = stateFileOf(localRoot, remoteDir);
+        Map<String, State> previous = loadState(stateFile);
+
+        Summary summary = new Summary();
+        listener.changed(summary);
+        Map<String, LocalFile> local = scanLocal(localRoot, summary);
+        Map<String, WebDAVResource> remote = scanRemote(remoteDir, summary);
+        boolean complete = summary.failures.isEmpty();
+        summary.scanned = true;
+        listener.changed(summary);
+
+        // Resources not acted upon keep their state, so that failed ones are judged the same way next time
+        Map<String, State> state = new ConcurrentHashMap<>(previous);
+        NavigableMap<String, Action> plan = plan(local, remote, previous, state, complete, summary);
+        for (Map.Entry<String, Action> entry : plan.entrySet()) {
+            if(entry.getValue() == Action.UPLOAD) {
+                summary.totalBytes.addAndGet(local.get(entry.getKey()).size);
+            } else if(entry.getValue() == Action.DOWNLOAD) {
+                summary.totalBytes.addAndGet(remote.get(entry.getKey()).getSize());
+            }
+        }
+        listener.changed(summary);
+
+        Map<String, WebDAVResource> remoteDirs = new ConcurrentHashMap<>();
+        remoteDirs.put("", remoteDir);
+        remote.forEach((rel, res) -> {
+            if(res.isDirectory()) {
+                remoteDirs.put(rel, res);
+            }
+        });
+
+        compareContent(select(plan, Action.COMPARE), local, remote, localRoot, state, summary, listener);
+        createLocalDirectories(select(plan, Action.CREATE_LOCAL_DIR), remote, localRoot, state, summary);
+        createRemoteDirectories(select(plan, Action.CREATE_REMOTE_DIR), local, remoteDirs, state, summary);
+        listener.changed(summary);
+
+        Set<String> uploaded = ConcurrentHashMap.newKeySet();
+        List<String> transfers = select(plan, Action.UPLOAD);
+        transfers.addAll(select(plan, Action.DOWNLOAD));
+        run(transfers, rel -> {
+            if(plan.get(rel) == Action.UPLOAD) {
+                upload(rel, localRoot, remote.get(rel), remoteDirs, summary, listener);
+                uploaded.add(rel);
+            } else {
+                download(rel, remote.get(rel), localRoot, state, summary, listener);
+            }
+        }, summary, listener);
+
+        List<String> deletions = select(plan, Action.DELETE_LOCAL);
+        deletions.addAll(select(plan, Action.DELETE_REMOTE));
+        run(deletions, rel -> {
+            if(plan.get(rel) == Action.DELETE_LOCAL) {
+                deleteLocal(localRoot.resolve(rel).toFile());
+                summary.deletedLocally.incrementAndGet();
+            } else {
+                service.delete(remote.get(rel));
+                summary.deletedRemotely.incrementAndGet();
+            }
+            state.keySet().removeIf(key -> key.equals(rel) || key.startsWith(rel + "/"));
+        }, summary, listener);
+
+        recordUploads(uploaded, localRoot, remoteDirs, state, summary);
+        saveState(stateFile, state);
+        listener.changed(summary);
+        return summary;
+    }
+
+    /**
+     * Decides what to do with every resource. Resources needing no action get their state right away.
+     */
+    private NavigableMap<String, Action> plan(Map<String, LocalFile> local, Map<String, WebDAVResource> remote,
+            Map<String, State> previous, Map<String, State> state, boolean complete, Summary summary) {
+        NavigableMap<String, Action> plan = new TreeMap<>();
+        Set<String> paths = new TreeSet<>(local.keySet());
+        paths.addAll(remote.keySet());
+        paths.addAll(previous.keySet());
+
+        for (String rel : paths) {
+            LocalFile file = local.get(rel);
+            WebDAVResource res = remote.get(rel);
+            State known = previous.get(rel);
+
+            if(file != null && res != null) {
+                if(file.directory != res.isDirectory()) {
+                    summary.conflicts.put(rel, "File on one side, directory on the other");
+                } else if(file.directory) {
+                    state.put(rel, new State(file, res));
+                } else {
+                    boolean localChanged = known == null || known.isLocalChanged(file);
+                    boolean remoteChanged = known == null || known.isRemoteChanged(res);
+                    if(!localChanged && !remoteChanged) {
+                        summary.unchanged.incrementAndGet();
+                    } else if(!remoteChanged) {
+                        plan.put(rel, Action.UPLOAD);
+                    } else if(!localChanged) {
+                        plan.put(rel, Action.DOWNLOAD);
+                    } else {
+                        plan.put(rel, Action.COMPARE);
+                    }
+                }
+            } else if(file != null) {
+                if(known != null && !known.isLocalChanged(file) && complete) {
+                    plan.put(rel, Action.DELETE_LOCAL);
+                } else {
+                    plan.put(rel, file.directory ? Action.CREATE_REMOTE_DIR : Action.UPLOAD);
+                }
+            } else if(res != null) {
+                if(known != null && !known.isRemoteChanged(res) && complete) {
+                    plan.put(rel, Action.DELETE_REMOTE);
+                } else {
+                    plan.put(rel, res.isDirectory() ? Action.CREATE_LOCAL_DIR : Action.DOWNLOAD);
+                }
+            } else {
+                state.remove(rel);
+            }
+        }
+
+        // A deleted directory is only deleted on the other side as a whole if nothing in it is kept,
+        // otherwise it's restored. Everything in it goes along with it.
+        for (String rel : new ArrayList<>(plan.keySet())) {
+            Action action = plan.get(rel);
+            if(action != Action.DELETE_LOCAL && action != Action.DELETE_REMOTE) {
+                continue;
+            }
+            NavigableMap<String, Action> below = plan.subMap(rel + "/", true, rel + "0", false);
+            if(below.values().stream().allMatch(a -> a == action)) {
+                below.clear();
+            } else if(action == Action.DELETE_LOCAL && local.get(rel).directory) {
+                plan.put(rel, Action.CREATE_REMOTE_DIR);
+            } else if(action == Action.DELETE_REMOTE && remote.get(rel).isDirectory()) {
+                plan.put(rel, Action.CREATE_LOCAL_DIR);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Compares files present on both sides by content, recording the identical ones as in step
+     */
+    private void compareContent(List<String> paths, Map<String, LocalFile> local, Map<String, WebDAVResource> remote,
+            Path localRoot, Map<String, State> state, Summary summary, Listener listener) throws InterruptedException {
+        run(paths, rel -> {
+            LocalFile file = local.get(rel);
+            WebDAVResource res = remote.get(rel);
+            if(file.size != res.getSize()) {
+                summary.conflicts.put(rel, "Changed on both sides");
+            } else if(!Arrays.equals(digestOf(localRoot.resolve(rel).toFile()), digestOf(res))) {
+                summary.conflicts.put(rel, "Changed on both sides, content differs");
+            } else {
+                state.put(rel, new State(file, res));
+                summary.unchanged.incrementAndGet();
+            }
+        }, summary, listener);
+    }
+
+    private void createLocalDirectories(List<String> paths, Map<String, WebDAVResource> remote, Path localRoot,
+            Map<String, State> state, Summary summary) {
+        for (String rel : paths) {
+            Path dir = localRoot.resolve(rel);
+            try {
+                Files.createDirectories(dir);
+                state.put(rel, new State(new LocalFile(true, 0, 0), remote.get(rel)));
+            } catch (IOException e) {
+                summary.failures.put(rel, new WebDAVServiceException(format("Failed to create ''{0}''", dir), e));
+            }
+        }
+    }
+
+    /**
+     * Creates remote directories level by level, so that parents exist before their children are created
+     */
+    private void createRemoteDirectories(List<String> paths, Map<String, LocalFile> local,
+            Map<String, WebDAVResource> remoteDirs, Map<String, State> state, Summary summary)
+            throws InterruptedException {
+        Map<Integer, List<String>> levels = new TreeMap<>();
+        for (String rel : paths) {
+            levels.computeIfAbsent(rel.split("/").length, key -> new ArrayList<>()).add(rel);
+        }
+
+        for (List<String> level : levels.values()) {
+            new BulkOperation<String>(service.getHost(), rel -> {
+                WebDAVResource parent = remoteParentOf(rel, remoteDirs);
+                String name = nameOf(rel);
+                String path = service.createDirectory(parent, name);
+                WebDAVResource dir = new WebDAVResource(path, name, DIRECTORY_CONTENT_TYPE, 0, null, null,
+                        true, true, parent.getBaseURI());
+                remoteDirs.put(rel, dir);
+                state.put(rel, new State(local.get(rel), dir));
+            }).execute(level, result -> {
+                if(!result.isSuccess()) {
+                    summary.failures.put(result.getItem(), result.getException());
+                }
+            });
+        }
+    }
+
+    private void upload(String rel, Path localRoot, WebDAVResource existing, Map<String, WebDAVResource> remoteDirs,
+            Summary summary, Listener listener) throws WebDAVServiceException {
+
+        // Unlike a PUT, the local file system service refuses to replace files
+        if(existing != null && service.getHost() == null) {
+            service.delete(existing);
+        }
+
+        service.upload(remoteParentOf(rel, remoteDirs), localRoot.resolve(rel).toFile(), bytesSent -> {
+            summary.bytesDone.addAndGet(bytesSent);
+            listener.changed(summary);
+            return null;
+        });
+        summary.uploaded.incrementAndGet();
+    }
+
+    private void download(String rel, WebDAVResource res, Path localRoot, Map<String, State> state,
+            Summary summary, Listener listener) throws WebDAVServiceException {
+        File target = localRoot.resolve(rel).toFile();
+        service.download(res, target, bytesRead -> {
+            summary.bytesDone.addAndGet(bytesRead);
+            listener.changed(summary);
+            return null;
+        });
+        if(res.getModified() != null) {
+            target.setLastModified(res.getModified().getTime());
+        }
+        state.put(rel, new State(new LocalFile(false, target.length(), target.lastModified()), res));
+        summary.downloaded.incrementAndGet();
+    }
+
+    /**
+     * Records the state of uploaded files, listing their remote directories once to learn their ETags
+     */
+    private void recordUploads(Set<String> uploaded, Path localRoot, Map<String, WebDAVResource> remoteDirs,
+            Map<String, State> state, Summary summary) {
+        Map<String, List<String>> byParent = new HashMap<>();
+        uploaded.forEach(rel -> byParent.computeIfAbsent(parentOf(rel), key -> new ArrayList<>()).add(rel));
+
+        String rootPath = null;
+        try {
+            rootPath = rawPathOf(remoteDirs.get("").getAbsolutePath());
+        } catch (WebDAVServiceException e) {
+            // Not possible, the root has been crawled already
+        }
+        for (Map.Entry<String, List<String>> entry : byParent.entrySet()) {
+            Map<String, WebDAVResource> listed = new HashMap<>();
+            try {
+                for (WebDAVResource res : service.listUncached(remoteDirs.get(entry.getKey()).getAbsolutePath())) {
+                    listed.put(relativePathOf(rootPath, res), res);
+                }
+            } catch (WebDAVServiceException e) {
+                LOG.fine(format("Listing ''{0}'' after uploading failed, checking again next time", entry.getKey()));
+            }
+
+            for (String rel : entry.getValue()) {
+                File file = localRoot.resolve(rel).toFile();
+                WebDAVResource res = listed.get(rel);
+                if(res != null) {
+                    state.put(rel, new State(new LocalFile(false, file.length(), file.lastModified()), res));
+                } else {
+
+                    // Without a remote state the file is compared by content next time
+                    state.remove(rel);
+                }
+            }
+        }
+    }
+
+    private void run(List<String> paths, BulkOperation.Action<String> action, Summary summary, Listener listener)
+            throws InterruptedException {
+        new BulkOperation<String>(service.getHost(), action).execute(paths, result -> {
+            if(!result.isSuccess()) {
+                summary.failures.put(result.getItem(), result.getException());
+            }
+            listener.changed(summary);
+        });
+    }
+
+    private Map<String, LocalFile> scanLocal(Path root, Summary summary) throws WebDAVServiceException {
+        Map<String, LocalFile> files = new HashMap<>();
+        try {
+            Files.createDirectories(root);
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if(!dir.equals(root)) {
+                        files.put(relativePathOf(root, dir), new LocalFile(true, 0, 0));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(attrs.isRegularFile()) {
+                        files.put(relativePathOf(root, file),
+                                new LocalFile(false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    summary.failures.put(relativePathOf(root, file),
+                            new WebDAVServiceException(format("Failed to read ''{0}''", file), e));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to scan ''{0}''", root), e);
+        }
+        return files;
+    }
+
+    private Map<String, WebDAVResource> scanRemote(WebDAVResource dir, Summary summary)
+            throws WebDAVServiceException, InterruptedException {
+        String rootPath = rawPathOf(dir.getAbsolutePath());
+        Map<String, WebDAVResource> resources = new HashMap<>();
+        ResourceCrawler.Crawl crawl = new ResourceCrawler(service, true).crawl(dir.getAbsolutePath());
+        try (Stream<WebDAVResource> stream = crawl.stream()) {
+            for (Iterator<WebDAVResource> it = stream.iterator(); it.hasNext();) {
+                WebDAVResource res = it.next();
+                try {
+                    resources.put(relativePathOf(rootPath, res), res);
+                } catch (WebDAVServiceException e) {
+                    summary.failures.put(res.getAbsolutePath(), e);
+                }
+            }
+        }
+
+        // The crawl ends early when interrupted
+        if(Thread.interrupted()) {
+            throw new InterruptedException("Sync interrupted");
+        }
+        summary.failures.putAll(crawl.getFailures());
+        return resources;
+    }
+
+    /**
+     * Path of a resource relative to the root directory, with decoded segments separated by slashes
+     */
+    private String relativePathOf(String rootPath, WebDAVResource res) throws WebDAVServiceException {
+        String path = rawPathOf(res.getAbsolutePath());
+        String separator = isRemote() ? "/" : File.separator;
+        if(!path.startsWith(rootPath + separator)) {
+            throw new WebDAVServiceException(format("''{0}'' is not below ''{1}''", path, rootPath));
+        }
+
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.substring(rootPath.length() + separator.length()).split(Pattern.quote(separator))) {
+            String name = isRemote() ? WebDAVUtil.decodeUrlPath(segment) : segment;
+            if(name.isEmpty() || name.equals(".") || name.equals("..") || name.contains("/")) {
+                throw new WebDAVServiceException(format("Refusing to sync ''{0}''", path));
+            }
+            segments.add(name);
+        }
+        return String.join("/", segments);
+    }
+
+    private static String relativePathOf(Path root, Path path) {
+        List<String> segments = new ArrayList<>();
+        root.relativize(path).forEach(segment -> segments.add(segment.toString()));
+        return String.join("/", segments);
+    }
+
+    /**
+     * Path of a resource without a trailing slash, reduced to the encoded URI path for remote resources
+     */
+    private String rawPathOf(String absolutePath) throws WebDAVServiceException {
+        String path = absolutePath;
+        if(isRemote()) {
+            try {
+                path = URI.create(absolutePath).getRawPath();
+            } catch (IllegalArgumentException e) {
+                throw new WebDAVServiceException(format("Invalid resource path ''{0}''", absolutePath), e);
+            }
+        }
+        return ListingCache.toKey(path);
+    }
+
+    private static WebDAVResource remoteParentOf(String rel, Map<String, WebDAVResource> remoteDirs)
+            throws WebDAVServiceException {
+        WebDAVResource parent = remoteDirs.get(parentOf(rel));
+        if(parent == null) {
+            throw new WebDAVServiceException(format("Remote directory ''{0}'' couldn''t be created", parentOf(rel)));
+        }
+        return parent;
+    }
+
+    private static String parentOf(String rel) {
+        int idx = rel.lastIndexOf('/');
+        return idx > 0 ? rel.substring(0, idx) : "";
+    }
+
+    private static String nameOf(String rel) {
+        return rel.substring(rel.lastIndexOf('/') + 1);
+    }
+
+    private boolean isRemote() {
+        return service.getHost() != null;
+    }
+
+    private static List<String> select(Map<String, Action> plan, Action action) {
+        List<String> paths = new ArrayList<>();
+        plan.forEach((rel, a) -> {
+            if(a == action) {
+                paths.add(rel);
+            }
+        });
+        return paths;
+    }
+
+    private static void deleteLocal(File file) throws WebDAVServiceException {
+        try {
+            if(file.isDirectory()) {
+                FileUtils.deleteDirectory(file);
+            } else {
+                Files.delete(file.toPath());
+            }
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to delete ''{0}''", file), e);
+        }
+    }
+
+    private static byte[] digestOf(File file) throws WebDAVServiceException {
+        try (InputStream is = new FileInputStream(file)) {
+            return digestOf(is);
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to read ''{0}''", file), e);
+        }
+    }
+
+    private byte[] digestOf(WebDAVResource res) throws WebDAVServiceException {
+        InputStream is = service.getContent(res);
+        try {
+            return digestOf(is);
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to read ''{0}''", res.getAbsolutePath()), e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static byte[] digestOf(InputStream is) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * The state of a pair of directories is kept in a file named after a hash of both paths
+     */
+    private File stateFileOf(Path localRoot, WebDAVResource remoteDir) {
+        String key = localRoot + "\n" + (isRemote() ? service.getHost().getBaseUriString() : "") +
+                remoteDir.getAbsolutePath();
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(stateDir, name + ".db");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, State> loadState(File file) {
+        Map<String, State> state = new HashMap<>();
+        if(!file.isFile()) {
+            return state;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != STATE_VERSION) {
+                return state;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String rel = in.readUTF();
+                boolean directory = in.readBoolean();
+                long localSize = in.readLong();
+                long localModified = in.readLong();
+                String etag = in.readBoolean() ? in.readUTF() : null;
+                state.put(rel, new State(directory, localSize, localModified, etag, in.readLong(), in.readLong()));
+            }
+        } catch (EOFException e) {
+
+            // Written completely or not at all, as it's replaced atomically
+            LOG.warning(format("Ignoring truncated sync state ''{0}''", file));
+            state.clear();
+        } catch (IOException e) {
+            LOG.warning(format("Ignoring unreadable sync state ''{0}'': {1}", file, e.getMessage()));
+            state.clear();
+        }
+        return state;
+    }
+
+    private static void saveState(File file, Map<String, State> state) throws WebDAVServiceException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(STATE_VERSION);
+                out.writeInt(state.size());
+                for (Map.Entry<String, State> entry : state.entrySet()) {
+                    State s = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeBoolean(s.directory);
+                    out.writeLong(s.localSize);
+                    out.writeLong(s.localModified);
+                    out.writeBoolean(s.etag != null);
+                    if(s.etag != null) {
+                        out.writeUTF(s.etag);
+                    }
+                    out.writeLong(s.remoteSize);
+                    out.writeLong(s.remoteModified);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to save sync state ''{0}''", file), e);
+        }
+    }
+
+    private enum Action {
+        UPLOAD, DOWNLOAD, COMPARE, CREATE_LOCAL_DIR, CREATE_REMOTE_DIR, DELETE_LOCAL, DELETE_REMOTE
+    }
+
+    private static class LocalFile {
+
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+
+        private LocalFile(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Both sides of a resource as they were when last in step
+     */
+    private static class State {
+
+        private final boolean directory;
+        private final long localSize;
+        private final long localModified;
+        private final String etag;
+        private final long remoteSize;
+        private final long remoteModified;
+
+        private State(boolean directory, long localSize, long localModified, String etag, long remoteSize,
+                long remoteModified) {
+            this.directory = directory;
+            this.localSize = localSize;
+            this.localModified = localModified;
+            this.etag = etag;
+            this.remoteSize = remoteSize;
+            this.remoteModified = remoteModified;
+        }
+
+        private State(LocalFile file, WebDAVResource res) {
+            this(file.directory, file.size, file.modified, res.getEtag(), res.getSize(),
+                    res.getModified() != null ? res.getModified().getTime() : 0);
+        }
+
+        private boolean isLocalChanged(LocalFile file) {
+            return file.directory != directory || !directory && (file.size != localSize || file.modified != localModified);
+        }
+
+        private boolean isRemoteChanged(WebDAVResource res) {
+            if(res.isDirectory() || directory) {
+                return res.isDirectory() != directory;
+            }
+            if(etag != null && res.getEtag() != null) {
+                return !etag.equals(res.getEtag());
+            }
+            return res.getSize() != remoteSize ||
+                    (res.getModified() != null ? res.getModified().getTime() : 0) != remoteModified;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        void changed(Summary summary);
+    }
+
+    /**
+     * Progress and outcome of a sync
+     */
+    public static class Summary {
+
+        private volatile boolean scanned;
+        private final AtomicLong totalBytes = new AtomicLong();
+        private final AtomicLong bytesDone = new AtomicLong();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger uploaded = new AtomicInteger();
+        private final AtomicInteger downloaded = new AtomicInteger();
+        private final AtomicInteger deletedLocally = new AtomicInteger();
+        private final AtomicInteger deletedRemotely = new AtomicInteger();
+        private final Map<String, String> conflicts = new ConcurrentHashMap<>();
+        private final Map<String, WebDAVServiceException> failures = new ConcurrentHashMap<>();
+
+        /**
+         * Whether both sides have been scanned and the changes are known
+         */
+        public boolean isScanned() {
+            return scanned;
+        }
+
+        /**
+         * Bytes to be transferred in either direction
+         */
+        public long getTotalBytes() {
+            return totalBytes.get();
+        }
+
+        public long getBytesDone() {
+            return bytesDone.get();
+        }
+
+        /**
+         * Files already in step
+         */
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        public int getUploaded() {
+            return uploaded.get();
+        }
+
+        public int getDownloaded() {
+            return downloaded.get();
+        }
+
+        public int getDeletedLocally() {
+            return deletedLocally.get();
+        }
+
+        public int getDeletedRemotely() {
+            return deletedRemotely.get();
+        }
+
+        /**
+         * Files changed on both sides, left alone, with the reason by relative path
+         */
+        public Map<String, String> getConflicts() {
+            return Collections.unmodifiableMap(conflicts);
+        }
+
+        /**
+         * Resources which couldn't be scanned, transferred or deleted, by relative or remote path
+         */
+        public Map<String, WebDAVServiceException> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+    }
+}
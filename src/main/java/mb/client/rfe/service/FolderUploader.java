@@ -0,0 +1,289 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Uploads local files and whole directory trees into a remote directory.
+ * <p>
+ * The local trees are scanned first. Directories are then created level by level, so that a
+ * directory always exists before anything is created in it, while the directories of one level
+ * are created concurrently. Files are uploaded through a {@link BulkOperation}, sharing its per host
+ * bound. Files already present with the same size and a modification time not older than the
+ * local one are skipped, so that an interrupted upload can simply be started again.
+ * Symbolic links and other special files are ignored.
+ */
+public class FolderUploader {
+
+    private static final String DIRECTORY_CONTENT_TYPE = "httpd/unix-directory";
+
+    // Remote modification times often have a precision of a second only
+    private static final long MTIME_TOLERANCE_MS = 1000;
+
+    private final ResourceRepositoryService service;
+
+    public FolderUploader(ResourceRepositoryService service) {
+        this.service = service;
+    }
+
+    /**
+     * Uploads the given files and directories into the remote directory and waits for it to finish.
+     * Failing files and directories are recorded in the returned summary, without stopping the rest.
+     * @param listener Notified of changes of the summary, possibly from several threads
+     */
+    public Summary upload(WebDAVResource parent, List<File> files, Listener listener)
+            throws WebDAVServiceException, InterruptedException {
+        Entry root = new Entry(null, null);
+        root.remote = new RemoteDir(parent, childrenOf(parent));
+
+        Summary summary = new Summary();
+        List<List<Entry>> levels = new ArrayList<>();
+        List<Entry> fileEntries = new ArrayList<>();
+        for (File file : files) {
+            scan(root, file.toPath(), levels, fileEntries, summary);
+        }
+        summary.totalFiles = fileEntries.size();
+        summary.totalBytes = fileEntries.stream().mapToLong(e -> e.file.length()).sum();
+        listener.changed(summary);
+
+        // Parents before children
+        for (List<Entry> level : levels) {
+            new BulkOperation<Entry>(service.getHost(), entry -> createDirectory(entry, summary))
+                .execute(level, result -> {
+                    if(!result.isSuccess()) {
+                        summary.failures.put(result.getItem().file, result.getException());
+                        listener.changed(summary);
+                    }
+                });
+        }
+
+        new BulkOperation<Entry>(service.getHost(), entry -> uploadFile(entry, summary, listener))
+            .execute(fileEntries, result -> {
+                if(!result.isSuccess()) {
+                    summary.failures.put(result.getItem().file, result.getException());
+                    summary.bytesDone.addAndGet(result.getItem().file.length() - result.getItem().bytesSent);
+                }
+                listener.changed(summary);
+            });
+        return summary;
+    }
+
+    private void scan(Entry root, Path start, List<List<Entry>> levels, List<Entry> fileEntries, Summary summary)
+            throws WebDAVServiceException {
+        Deque<Entry> parents = new ArrayDeque<>();
+        parents.push(root);
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    Entry entry = new Entry(dir.toFile(), parents.peek());
+                    int depth = parents.size() - 1;
+                    if(levels.size() <= depth) {
+                        levels.add(new ArrayList<>());
+                    }
+                    levels.get(depth).add(entry);
+                    parents.push(entry);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    parents.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(attrs.isRegularFile()) {
+                        fileEntries.add(new Entry(file.toFile(), parents.peek()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    summary.failures.put(file.toFile(),
+                            new WebDAVServiceException(format("Failed to read ''{0}''", file), e));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to scan ''{0}''", start), e);
+        }
+    }
+
+    private void createDirectory(Entry entry, Summary summary) throws WebDAVServiceException {
+        RemoteDir parent = remoteParentOf(entry);
+        String name = entry.file.getName();
+
+        WebDAVResource existing = parent.children.get(name);
+        if(existing != null) {
+            if(!existing.isDirectory()) {
+                throw new WebDAVServiceException(format("''{0}'' already exists and is not a directory",
+                        existing.getAbsolutePath()));
+            }
+            entry.remote = new RemoteDir(existing, childrenOf(existing));
+        } else {
+
+            // A new directory is known to be empty, no need to list it
+            String path = service.createDirectory(parent.res, name);
+            entry.remote = new RemoteDir(new WebDAVResource(path, name, DIRECTORY_CONTENT_TYPE, 0, null, null,
+                    true, true, parent.res.getBaseURI()), Collections.emptyMap());
+        }
+
+        if(entry.parent.parent == null) {
+            summary.topLevelPaths.add(entry.remote.res.getAbsolutePath());
+        }
+    }
+
+    private void uploadFile(Entry entry, Summary summary, Listener listener) throws WebDAVServiceException {
+        RemoteDir parent = remoteParentOf(entry);
+        File file = entry.file;
+
+        String path;
+        WebDAVResource existing = parent.children.get(file.getName());
+        if(existing != null && isUpToDate(existing, file)) {
+            path = existing.getAbsolutePath();
+            summary.skipped.incrementAndGet();
+            summary.bytesDone.addAndGet(file.length());
+        } else {
+            path = service.upload(parent.res, file, bytesSent -> {
+                entry.bytesSent += bytesSent;
+                summary.bytesDone.addAndGet(bytesSent);
+                listener.changed(summary);
+                return null;
+            });
+            summary.uploaded.incrementAndGet();
+        }
+
+        if(entry.parent.parent == null) {
+            summary.topLevelPaths.add(path);
+        }
+    }
+
+    private static RemoteDir remoteParentOf(Entry entry) throws WebDAVServiceException {
+        RemoteDir parent = entry.parent.remote;
+        if(parent == null) {
+            throw new WebDAVServiceException(format("Directory ''{0}'' couldn''t be created", entry.parent.file));
+        }
+        return parent;
+    }
+
+    private static boolean isUpToDate(WebDAVResource res, File file) {
+        return !res.isDirectory() && res.getSize() == file.length() && res.getModified() != null &&
+                res.getModified().getTime() + MTIME_TOLERANCE_MS >= file.lastModified();
+    }
+
+    private Map<String, WebDAVResource> childrenOf(WebDAVResource dir) throws WebDAVServiceException {
+        Map<String, WebDAVResource> children = new HashMap<>();
+        
+        // A cached listing might claim files to be there which are long gone
+        for (WebDAVResource child : service.listUncached(dir.getAbsolutePath())) {
+            children.put(child.getName(), child);
+        }
+        return children;
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        void changed(Summary summary);
+    }
+
+    /**
+     * Local file or directory along with the remote directory it ended up as
+     */
+    private static class Entry {
+
+        private final File file;
+        private final Entry parent;
+        private volatile RemoteDir remote;
+        private long bytesSent;
+
+        private Entry(File file, Entry parent) {
+            this.file = file;
+            this.parent = parent;
+        }
+    }
+
+    private static class RemoteDir {
+
+        private final WebDAVResource res;
+        private final Map<String, WebDAVResource> children;
+
+        private RemoteDir(WebDAVResource res, Map<String, WebDAVResource> children) {
+            this.res = res;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Progress and outcome of an upload
+     */
+    public static class Summary {
+
+        private volatile int totalFiles;
+        private volatile long totalBytes;
+        private final AtomicInteger uploaded = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicLong bytesDone = new AtomicLong();
+        private final Map<File, WebDAVServiceException> failures = new ConcurrentHashMap<>();
+        private final List<String> topLevelPaths = Collections.synchronizedList(new ArrayList<>());
+
+        public int getTotalFiles() {
+            return totalFiles;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public int getUploaded() {
+            return uploaded.get();
+        }
+
+        /**
+         * Files which were already present remotely
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Bytes uploaded, skipped or given up on
+         */
+        public long getBytesDone() {
+            return bytesDone.get();
+        }
+
+        /**
+         * Files and directories which couldn't be read, created or uploaded
+         */
+        public Map<File, WebDAVServiceException> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Remote paths of the uploaded files and directories themselves, not including their content
+         */
+        public List<String> getTopLevelPaths() {
+            synchronized (topLevelPaths) {
+                return new ArrayList<>(topLevelPaths);
+            }
+        }
+    }
+}
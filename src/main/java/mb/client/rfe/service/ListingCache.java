@@ -0,0 +1,201 @@
+package mb.client.rfe.service;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Per-host cache of directory listings keyed by the href of the listed directory.
+ * <p>
+ * Entries are bounded by count (least recently used entries go first) and by age.
+ * Each entry keeps the <code>getetag</code> and <code>getlastmodified</code> values of
+ * the directory itself, so that it can be cheaply revalidated with a depth 0 PROPFIND.
+ * As many servers leave those alone when an existing child changes, a revalidated entry
+ * still expires once it was fetched longer ago than the TTL.
+ * <p>
+ * Every invalidation starts a new generation. Listings fetched in an earlier generation are
+ * not cached anymore, so that a fetch started before a change can't put back what it replaced.
+ */
+public class ListingCache {
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final long revalidateAfterMs;
+    private final Map<String, Entry> entries;
+    private long generation;
+
+    /**
+     * @param maxEntries Maximum number of cached listings
+     * @param ttlMs Time after which an entry is dropped and has to be fetched again
+     * @param revalidateAfterMs Time after which an entry is still served, but should be revalidated
+     */
+    @SuppressWarnings("serial")
+    public ListingCache(int maxEntries, long ttlMs, long revalidateAfterMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.revalidateAfterMs = revalidateAfterMs;
+
+        // Access ordered map, so that the eldest entry is the least recently used one
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ListingCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached listing of a directory or <code>null</code> if missing or expired
+     */
+    public synchronized Entry get(String path) {
+        String key = toKey(path);
+        Entry entry = entries.get(key);
+        if(entry != null && entry.getAge() > ttlMs) {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    public synchronized Entry put(String path, List<WebDAVResource> resources, String etag, Date lastModified) {
+        Entry entry = new Entry(resources, etag, lastModified);
+        entries.put(toKey(path), entry);
+        return entry;
+    }
+
+    /**
+     * Caches a listing unless anything was invalidated since the given generation
+     * @return <code>null</code> if the listing was not cached
+     */
+    public synchronized Entry put(String path, List<WebDAVResource> resources, String etag, Date lastModified,
+            long generation) {
+        return generation == this.generation ? put(path, resources, etag, lastModified) : null;
+    }
+
+    /**
+     * Generation to pass on when caching a listing, taken before fetching it
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Removes the listing of the given path and the listings of all its descendants
+     */
+    public synchronized void invalidate(String path) {
+        generation++;
+        String key = toKey(path);
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+            String k = it.next();
+            if(k.equals(key) || k.startsWith(key + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public boolean needsRevalidation(Entry entry) {
+        return entry.getTimeSinceValidated() > revalidateAfterMs;
+    }
+
+    /**
+     * Normalizes a path to a cache key, so that <code>/dir</code> and <code>/dir/</code> hit the same entry
+     */
+    static String toKey(String path) {
+        return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    static String parentOf(String path) {
+        String key = toKey(path);
+        int idx = key.lastIndexOf('/');
+        return idx > 0 ? key.substring(0, idx) : "/";
+    }
+
+    public static class Entry {
+
+        private final List<WebDAVResource> resources;
+        private final String etag;
+        private final Date lastModified;
+        private final long fetchedAt;
+        private volatile long validatedAt;
+        private volatile boolean revalidating;
+
+        private Entry(List<WebDAVResource> resources, String etag, Date lastModified) {
+            this.resources = Collections.unmodifiableList(resources);
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = System.currentTimeMillis();
+            this.validatedAt = fetchedAt;
+        }
+
+        public List<WebDAVResource> getResources() {
+            return resources;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public Date getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Time since the listing was fetched, which revalidation doesn't reset
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - fetchedAt;
+        }
+
+        public long getTimeSinceValidated() {
+            return System.currentTimeMillis() - validatedAt;
+        }
+
+        /**
+         * Checks if the directory validators still match the ones of this entry.
+         * Returns <code>false</code> if there's nothing to compare with.
+         */
+        public boolean isValid(String currentEtag, Date currentLastModified) {
+            if(etag != null && currentEtag != null) {
+                return etag.equals(currentEtag);
+            } else if(lastModified != null && currentLastModified != null) {
+                return Objects.equals(lastModified, currentLastModified);
+            }
+            return false;
+        }
+
+        /**
+         * Marks the entry as validated, postponing the next revalidation but not its expiry
+         */
+        public void touch() {
+            validatedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Makes sure only one background revalidation runs per entry
+         */
+        public synchronized boolean startRevalidation() {
+            if(revalidating) {
+                return false;
+            }
+            revalidating = true;
+            return true;
+        }
+
+        public synchronized void endRevalidation() {
+            revalidating = false;
+        }
+    }
+}
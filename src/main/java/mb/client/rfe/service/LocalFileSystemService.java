@@ -2,32 +2,65 @@ package mb.client.rfe.service;
 
 import static java.text.MessageFormat.format;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.github.sardine.DavResource;
 
 import javafx.util.Callback;
+import mb.client.rfe.model.ResourceChange;
 import mb.client.rfe.model.ResourceHost;
 import mb.client.rfe.model.WebDAVResource;
 
-public class LocalFileSystemService implements ResourceRepositoryService {
+public class LocalFileSystemService implements AsyncResourceRepositoryService {
     private static final Logger LOG = Logger.getLogger(LocalFileSystemService.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    
+    // Content types by lower case file name extension
+    private static final Map<String, String> contentTypes = new ConcurrentHashMap<>();
+    
+    private SingleFlight<String, List<WebDAVResource>> pendingListings = new SingleFlight<>();
+    private SearchIndex searchIndex = SearchIndex.forHost(null);
+    private ServiceMetrics metrics = ServiceMetrics.forHost(null);
+    private DirectoryWatcher watcher;
+    private Executor executor = ServiceFutures.defaultExecutor();
 
     @Override
     public void connect() {
@@ -40,33 +73,121 @@ public class LocalFileSystemService implements ResourceRepositoryService {
 
     @Override
     public List<WebDAVResource> list(String path, int depth) throws WebDAVServiceException {
+        
+        // Concurrent requests for the same directory and depth share a single listing
+        return metrics.time("LIST", () -> pendingListings.execute(path + "#" + depth, () -> doList(path, depth)));
+    }
+    
+    @Override
+    public void list(String path, int pageSize, Consumer<List<WebDAVResource>> consumer) throws WebDAVServiceException {
+        
+        // Pages are handed out while the directory is still being read
+        List<WebDAVResource> resources = new ArrayList<>();
+        List<WebDAVResource> page = new ArrayList<>(pageSize);
+        metrics.time("LIST", () -> {
+            readDirectory(path, res -> {
+                resources.add(res);
+                page.add(res);
+                if(page.size() >= pageSize) {
+                    consumer.accept(new ArrayList<>(page));
+                    page.clear();
+                }
+            });
+            return null;
+        });
+        if(!page.isEmpty()) {
+            consumer.accept(page);
+        }
+        searchIndex.putListing(path, resources);
+    }
+    
+    /**
+     * Number of listing requests which were served by an identical request already in flight
+     */
+    public long getCoalescedRequestCount() {
+        return pendingListings.getDeduplicatedCount();
+    }
+    
+    private List<WebDAVResource> doList(String path, int depth) throws WebDAVServiceException {
+        if(depth > 0) { 
+            List<WebDAVResource> resources = new ArrayList<>();
+            readDirectory(path, resources::add);
+            searchIndex.putListing(path, resources);
+            return resources;
+        }
+        
         try {
-            if(depth > 0) { 
-                return Files.list(Paths.get(path)).filter(p -> Files.exists(p)).map(p -> {
-                    WebDAVResource res = null;
-                    try {
-                        res = resourceFromPath(p);
-                    } catch (Exception e) {
-                        LOG.log(Level.SEVERE, "Reading file attributes", e);
-                    }
-                    return res;
-                }).collect(Collectors.toList());
-            } else {
-                return Arrays.asList(resourceFromPath(Paths.get(path)));
-            }
+            return Arrays.asList(resourceFromPath(Paths.get(path)));
         } catch (Exception e) {
             throw new WebDAVServiceException(e);
         }
     }
     
+    /**
+     * Reads a directory in a single pass with a single attribute read per entry, as every call counts on 
+     * mounted network file systems. Entries which can't be read, like broken links, are left out.
+     */
+    private void readDirectory(String path, Consumer<WebDAVResource> consumer) throws WebDAVServiceException {
+        Path dir = Paths.get(path);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            
+            // Entries of a directory stream all have the directory as parent
+            URI parentURI = new URI(WebDAVUtil.encodeUrlPath(dir.toString()));
+            for (Path p : stream) {
+                if(Thread.currentThread().isInterrupted()) {
+                    throw new WebDAVServiceException(format("Listing ''{0}'' interrupted", path));
+                }
+                
+                BasicFileAttributes attribs;
+                try {
+                    attribs = Files.readAttributes(p, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, format("Skipping unreadable ''{0}''", p), e);
+                    continue;
+                }
+                consumer.accept(resourceFromPath(p, attribs, parentURI));
+            }
+        } catch (IOException | DirectoryIteratorException | URISyntaxException e) {
+            throw new WebDAVServiceException(format("Listing ''{0}'' failed", path), e);
+        }
+    }
+    
     private WebDAVResource resourceFromPath(Path p) throws IOException, URISyntaxException {
-        BasicFileAttributes attribs = Files.readAttributes(p, BasicFileAttributes.class);
-        String contentType = Files.probeContentType(p);
-        return new WebDAVResource(p.toString(), p.getFileName().toString(),
-                contentType != null ? contentType : "application/octet-stream", Files.size(p),
-                new Date(attribs.creationTime().toMillis()),
+        return resourceFromPath(p, Files.readAttributes(p, BasicFileAttributes.class), 
+                new URI(WebDAVUtil.encodeUrlPath(p.getParent().toString())));
+    }
+    
+    private static WebDAVResource resourceFromPath(Path p, BasicFileAttributes attribs, URI parentURI) {
+        return new WebDAVResource(p.toString(), p.getFileName().toString(), contentTypeOf(p, attribs), 
+                attribs.size(), new Date(attribs.creationTime().toMillis()),
                 new Date(attribs.lastModifiedTime().toMillis()), 
-                attribs.isDirectory(), true, new URI(WebDAVUtil.encodeUrlPath(p.getParent().toString())));
+                attribs.isDirectory(), true, parentURI);
+    }
+    
+    /**
+     * Content type by file name extension, probing only the first file of each extension, as probing 
+     * might run file type detectors reading the file
+     */
+    private static String contentTypeOf(Path p, BasicFileAttributes attribs) {
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if(attribs.isDirectory()) {
+            return contentTypes.computeIfAbsent("/", key -> probeContentType(p));
+        } else if(dot > 0 && dot < name.length() - 1) {
+            return contentTypes.computeIfAbsent(name.substring(dot + 1).toLowerCase(Locale.ROOT), 
+                    key -> probeContentType(p));
+        }
+        return probeContentType(p);
+    }
+    
+    private static String probeContentType(Path p) {
+        String contentType = null;
+        try {
+            contentType = Files.probeContentType(p);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, format("Probing content type of ''{0}'' failed", p), e);
+        }
+        return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
     }
 
     @Override
@@ -81,11 +202,14 @@ public class LocalFileSystemService implements ResourceRepositoryService {
 
     @Override
     public InputStream getContent(WebDAVResource res) throws WebDAVServiceException {
-        try {
-            return new FileInputStream(new File(res.getAbsolutePath()));
-        } catch (FileNotFoundException e) {
-            throw new WebDAVServiceException(e);
-        }
+        return metrics.time("OPEN", () -> {
+            try {
+                return new ThrottledInputStream(new FileInputStream(new File(res.getAbsolutePath())), 
+                        RateLimiter.forTransfer(null));
+            } catch (FileNotFoundException e) {
+                throw new WebDAVServiceException(e);
+            }
+        });
     }
 
     @Override
@@ -93,15 +217,61 @@ public class LocalFileSystemService implements ResourceRepositoryService {
         return new File(res.getAbsolutePath());
     }
 
+    @Override
+    public File download(WebDAVResource res, File target, Callback<Integer, Void> callback) throws WebDAVServiceException {
+        return metrics.time("COPY_OUT", () -> doDownload(res, target, callback));
+    }
+    
+    private File doDownload(WebDAVResource res, File target, Callback<Integer, Void> callback) throws WebDAVServiceException {
+        Path srcPath = Paths.get(res.getAbsolutePath());
+        try {
+            Files.createDirectories(target.getAbsoluteFile().getParentFile().toPath());
+            try (FileChannel in = FileChannel.open(srcPath, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, 
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                TransferPipeline.transfer(in, out, callback, RateLimiter.forTransfer(null));
+            }
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Copying ''{0}'' to ''{1}'' failed", srcPath, target), e);
+        }
+        metrics.addBytesReceived(target.length());
+        return target;
+    }
+
     @Override
     public String upload(WebDAVResource parent, File localFile) throws WebDAVServiceException {
+        return upload(parent, localFile, bytesCopied -> null);
+    }
+
+    @Override
+    public String upload(WebDAVResource parent, File localFile, Callback<Integer, Void> callback) 
+            throws WebDAVServiceException {
+        return metrics.time("COPY_IN", () -> doUpload(parent, localFile, callback));
+    }
+    
+    private String doUpload(WebDAVResource parent, File localFile, Callback<Integer, Void> callback) 
+            throws WebDAVServiceException {
         Path srcPath = Paths.get(localFile.getAbsolutePath());
         Path destPath = Paths.get(parent.getAbsolutePath() + "/" + localFile.getName());
-        try {
-            Files.copy(srcPath, destPath);
+        
+        // Copy chunk by chunk rather than in one go, so that progress is reported and the copy can be cancelled
+        try (FileChannel in = FileChannel.open(srcPath, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            TransferPipeline.transfer(in, out, callback, RateLimiter.forTransfer(null));
+        } catch (FileAlreadyExistsException e) {
+            throw new WebDAVServiceException(format("''{0}'' already exists", destPath), e);
         } catch (IOException e) {
+            
+            // Don't leave a partial copy behind
+            try {
+                Files.deleteIfExists(destPath);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, format("Failed to remove partial copy ''{0}''", destPath), ex);
+            }
             throw new WebDAVServiceException(format("Copying ''{0}'' to ''{1}'' failed", srcPath, destPath), e);
         }
+        indexCreated(parent, destPath);
+        metrics.addBytesSent(localFile.length());
         return destPath.toString();
     }
 
@@ -113,40 +283,221 @@ public class LocalFileSystemService implements ResourceRepositoryService {
 
     @Override
     public void delete(WebDAVResource res) throws WebDAVServiceException {
-        try {
-            Files.delete(Paths.get(res.getAbsolutePath()));
-        } catch (IOException e) {
-            throw new WebDAVServiceException(e);
-        }
+        metrics.time("DELETE", () -> {
+            try {
+                Files.delete(Paths.get(res.getAbsolutePath()));
+                searchIndex.remove(parentOf(res.getAbsolutePath()), res.getAbsolutePath());
+            } catch (IOException e) {
+                throw new WebDAVServiceException(e);
+            }
+            return null;
+        });
     }
 
     @Override
     public void move(WebDAVResource src, WebDAVResource dest) throws WebDAVServiceException {
         Path srcPath = Paths.get(src.getAbsolutePath());
         Path destPath = Paths.get(dest.getAbsolutePath() + "/" + src.getName());
+        metrics.time("MOVE", () -> {
+            try {
+                Files.move(srcPath, destPath);
+                searchIndex.remove(parentOf(src.getAbsolutePath()), src.getAbsolutePath());
+            } catch (IOException e) {
+                throw new WebDAVServiceException(format("Moving ''{0}'' to ''{1}'' failed", srcPath, destPath), e);
+            }
+            return null;
+        });
+        indexCreated(dest, destPath);
+    }
+
+    @Override
+    public void copy(WebDAVResource src, WebDAVResource dest, int depth) throws WebDAVServiceException {
+        metrics.time("COPY", () -> {
+            doCopy(src, dest, depth);
+            return null;
+        });
+    }
+    
+    private void doCopy(WebDAVResource src, WebDAVResource dest, int depth) throws WebDAVServiceException {
+        Path srcPath = Paths.get(src.getAbsolutePath());
+        Path destPath = Paths.get(dest.getAbsolutePath() + "/" + src.getName());
+        if(destPath.startsWith(srcPath)) {
+            throw new WebDAVServiceException(format("Cannot copy ''{0}'' into itself", srcPath));
+        }
+        if(Files.exists(destPath, LinkOption.NOFOLLOW_LINKS)) {
+            throw new WebDAVServiceException(format("''{0}'' already exists", destPath));
+        }
+        
+        // Either everything is copied or nothing is left behind
+        boolean copied = false;
         try {
-            Files.move(srcPath, destPath);
+            copyTree(srcPath, destPath, depth);
+            copied = true;
+        } finally {
+            if(!copied) {
+                removePartialCopy(destPath);
+            }
+        }
+    }
+    
+    private void copyTree(Path srcPath, Path destPath, int depth) throws WebDAVServiceException {
+        
+        // Directories and links are created up front in parent-first order, files are copied in parallel afterwards.
+        // Links are copied as links, as neither following them nor copying them as files would reproduce the source.
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(srcPath, depth < 0 ? Integer.MAX_VALUE : 0)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                Path target = destPath.resolve(srcPath.relativize(path).toString());
+                if(Files.isSymbolicLink(path)) {
+                    Files.copy(path, target, LinkOption.NOFOLLOW_LINKS);
+                } else if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createDirectory(target);
+                } else {
+                    files.add(path);
+                }
+            }
         } catch (IOException e) {
-            throw new WebDAVServiceException(format("Moving ''{0}'' to ''{1}'' failed", srcPath, destPath), e);
+            throw new WebDAVServiceException(format("Copying ''{0}'' to ''{1}'' failed", srcPath, destPath), e);
+        }
+        
+        ExecutorService copyExecutor = Executors.newFixedThreadPool(config.getIntProperty("copy.parallelism", 4), 
+                WebDAVUtil.daemonThreadFactory("local-copy"));
+        try {
+            List<Future<?>> futures = new ArrayList<>(files.size());
+            for (Path file : files) {
+                Path target = destPath.resolve(srcPath.relativize(file).toString());
+                futures.add(copyExecutor.submit(() -> {
+                    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                            FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        TransferPipeline.transfer(in, out, bytesCopied -> null);
+                    }
+                    return null;
+                }));
+            }
+            
+            // The first failure stops the remaining copies
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new WebDAVServiceException(format("Copying ''{0}'' to ''{1}'' failed", srcPath, destPath), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDAVServiceException(format("Copying ''{0}'' to ''{1}'' interrupted", srcPath, destPath), e);
+        } finally {
+            copyExecutor.shutdownNow();
+            
+            // Copies still running would write into what is about to be removed
+            try {
+                copyExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void removePartialCopy(Path destPath) {
+        try (Stream<Path> walk = Files.walk(destPath)) {
+            List<Path> paths = walk.collect(Collectors.toList());
+            Collections.reverse(paths);
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOG.log(Level.WARNING, format("Failed to remove partial copy ''{0}''", destPath), e);
         }
     }
 
     @Override
     public String createDirectory(WebDAVResource parent, String dirName) throws WebDAVServiceException {
+        Path dir = metrics.time("MKDIR", () -> {
+            try {
+                return Files.createDirectory(Paths.get(parent.getAbsolutePath(), dirName));
+            } catch (IOException e) {
+                throw new WebDAVServiceException(e);
+            }
+        });
+        indexCreated(parent, dir);
+        searchIndex.putListing(dir.toString(), Collections.emptyList());
+        return dir.toString();
+    }
+    
+    /**
+     * Makes a new file or directory searchable right away rather than once its parent is listed again
+     */
+    private void indexCreated(WebDAVResource parent, Path path) {
         try {
-            return Files.createDirectory(Paths.get(parent.getAbsolutePath(), dirName)).toString();
+            searchIndex.add(parent.getAbsolutePath(), resourceFromPath(path));
+        } catch (IOException | URISyntaxException e) {
+            LOG.log(Level.FINE, format("Failed to index ''{0}''", path), e);
+        }
+    }
+    
+    private static String parentOf(String path) {
+        Path parent = Paths.get(path).getParent();
+        return parent != null ? parent.toString() : path;
+    }
+
+    @Override
+    public Closeable watch(String path, Consumer<List<ResourceChange>> listener) throws WebDAVServiceException {
+        synchronized (this) {
+            if(watcher == null) {
+                watcher = new DirectoryWatcher(this::resourceIfExists, config.getIntProperty("watch.window", 300));
+            }
+        }
+        
+        try {
+            return watcher.watch(Paths.get(path), changes -> {
+                
+                // Keep the index current as well, no need to list the directory again
+                for (ResourceChange change : changes) {
+                    if(change.getKind() == ResourceChange.Kind.DELETED) {
+                        searchIndex.remove(path, change.getPath());
+                    } else if(change.getResource() != null) {
+                        searchIndex.add(path, change.getResource());
+                    }
+                }
+                listener.accept(changes);
+            });
         } catch (IOException e) {
-            throw new WebDAVServiceException(e);
+            throw new WebDAVServiceException(format("Failed to watch ''{0}''", path), e);
+        }
+    }
+    
+    private WebDAVResource resourceIfExists(Path path) {
+        try {
+            return resourceFromPath(path);
+        } catch (IOException | URISyntaxException e) {
+            return null;
         }
     }
 
     @Override
-    public void disconnect() throws WebDAVServiceException {
+    public synchronized void disconnect() throws WebDAVServiceException {
+        if(watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                throw new WebDAVServiceException(e);
+            } finally {
+                watcher = null;
+            }
+        }
     }
 
     @Override
     public ResourceHost getHost() {
         return null;
     }
+    
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+    
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
 
 }
@@ -0,0 +1,348 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Persistent store of directory listings of a host, so that they can be shown right away after a
+ * restart and browsed while the host is unreachable.
+ * <p>
+ * The store is an append-only log of records. A listing record holds the listed directory along with
+ * its validators and all its children, an invalidation record drops a directory and its descendants.
+ * Only the offsets of the current listings are kept in memory, listings are read from disk when
+ * asked for. The log is compacted when opened, if most of it is outdated.
+ */
+public class MetadataStore implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(MetadataStore.class.getName());
+    private static final byte LISTING = 1;
+    private static final byte INVALIDATION = 2;
+    private static final int HEADER_SIZE = 5;
+    private static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+    private static final Map<File, MetadataStore> openStores = new HashMap<>();
+
+    private final File file;
+    private final URI baseURI;
+    private final Map<String, Long> offsets;
+    private long liveBytes;
+    private RandomAccessFile raf;
+
+    // Services having opened the store and not closed it yet, guarded by openStores
+    private int references;
+
+    private MetadataStore(File file, URI baseURI) {
+        this.file = file;
+        this.baseURI = baseURI;
+        offsets = new HashMap<>();
+    }
+
+    /**
+     * Opens the store in the given file, creating it if missing. Services of the same host
+     * share the store, so it's only opened once and only closed once closed by all of them.
+     * @param baseURI Base URI of the resources restored from the store
+     */
+    public static MetadataStore open(File file, URI baseURI) throws IOException {
+        synchronized (openStores) {
+            File key = file.getAbsoluteFile();
+            MetadataStore store = openStores.get(key);
+            if(store == null) {
+                store = new MetadataStore(key, baseURI);
+                Files.createDirectories(key.getParentFile().toPath());
+                store.raf = new RandomAccessFile(key, "rw");
+                store.load();
+                if(store.raf.length() > COMPACTION_MIN_SIZE && store.raf.length() > 2 * store.liveBytes) {
+                    store.compact();
+                }
+                openStores.put(key, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    /**
+     * Returns the stored listing of a directory or <code>null</code> if there's none
+     */
+    public synchronized Listing get(String path) throws IOException {
+        Long offset = offsets.get(ListingCache.toKey(path));
+        if(offset == null) {
+            return null;
+        }
+
+        raf.seek(offset);
+        raf.readByte();
+        byte[] body = new byte[raf.readInt()];
+        raf.readFully(body);
+        return readListing(new DataInputStream(new ByteArrayInputStream(body)));
+    }
+
+    public synchronized void put(String path, List<WebDAVResource> resources, String etag, Date lastModified)
+            throws IOException {
+        String key = ListingCache.toKey(path);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF(key);
+        out.writeLong(System.currentTimeMillis());
+        writeNullable(out, etag);
+        writeDate(out, lastModified);
+        out.writeInt(resources.size());
+        for (WebDAVResource res : resources) {
+            out.writeUTF(res.getAbsolutePath());
+            writeNullable(out, res.getName());
+            writeNullable(out, res.getType());
+            out.writeLong(res.getSize());
+            writeDate(out, res.getCreated());
+            writeDate(out, res.getModified());
+            out.writeBoolean(res.isDirectory());
+            out.writeBoolean(res.isEmpty());
+            writeNullable(out, res.getEtag());
+        }
+
+        long offset = append(LISTING, bos.toByteArray());
+        Long previous = offsets.put(key, offset);
+        if(previous != null) {
+            liveBytes -= recordSizeAt(previous);
+        }
+        liveBytes += HEADER_SIZE + bos.size();
+    }
+
+    /**
+     * Drops the listing of the given path
+     * @param descendants Whether the listings of all its descendants go as well
+     */
+    public synchronized void invalidate(String path, boolean descendants) throws IOException {
+        String key = ListingCache.toKey(path);
+        if(removeFromIndex(key, descendants)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeUTF(key);
+            out.writeBoolean(descendants);
+            append(INVALIDATION, bos.toByteArray());
+        }
+    }
+
+    /**
+     * Paths of all stored listings
+     */
+    public synchronized List<String> getPaths() {
+        return new ArrayList<>(offsets.keySet());
+    }
+
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (openStores) {
+            if(--references > 0) {
+                return;
+            }
+            openStores.remove(file);
+        }
+        synchronized (this) {
+            raf.close();
+        }
+    }
+
+    private long append(byte type, byte[] body) throws IOException {
+        long offset = raf.length();
+        raf.seek(offset);
+
+        // Single write, so that a crash leaves at most one incomplete record at the end
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_SIZE + body.length);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(type);
+        out.writeInt(body.length);
+        out.write(body);
+        raf.write(bos.toByteArray());
+        return offset;
+    }
+
+    private boolean removeFromIndex(String key, boolean descendants) throws IOException {
+        if(!descendants) {
+            Long offset = offsets.remove(key);
+            if(offset != null) {
+                liveBytes -= recordSizeAt(offset);
+            }
+            return offset != null;
+        }
+
+        boolean removed = false;
+        for (Iterator<Map.Entry<String, Long>> it = offsets.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Long> entry = it.next();
+            if(entry.getKey().equals(key) || entry.getKey().startsWith(key + "/")) {
+                liveBytes -= recordSizeAt(entry.getValue());
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private long recordSizeAt(long offset) throws IOException {
+        raf.seek(offset + 1);
+        return HEADER_SIZE + raf.readInt();
+    }
+
+    /**
+     * Replays the log, keeping the offsets of the listings still current
+     */
+    private void load() throws IOException {
+        long offset = 0;
+        long length = raf.length();
+        while (offset < length) {
+            try {
+                raf.seek(offset);
+                byte type = raf.readByte();
+                int bodyLength = raf.readInt();
+                if(bodyLength < 0 || offset + HEADER_SIZE + bodyLength > length) {
+                    throw new EOFException();
+                }
+
+                String key = raf.readUTF();
+                if(type == LISTING) {
+                    Long previous = offsets.put(key, offset);
+                    if(previous != null) {
+                        liveBytes -= recordSizeAt(previous);
+                    }
+                    liveBytes += HEADER_SIZE + bodyLength;
+                } else {
+                    removeFromIndex(key, raf.readBoolean());
+                }
+                offset += HEADER_SIZE + bodyLength;
+            } catch (EOFException e) {
+
+                // Incomplete last record of an interrupted write
+                LOG.warning(format("Dropping incomplete record at {0} of ''{1}''", offset, file));
+                raf.setLength(offset);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with the current listings only
+     */
+    private void compact() throws IOException {
+        LOG.fine(format("Compacting ''{0}'' from {1} to {2} bytes", file, raf.length(), liveBytes));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Map<String, Long> newOffsets = new HashMap<>();
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                byte[] record = new byte[(int) recordSizeAt(entry.getValue())];
+                raf.seek(entry.getValue());
+                raf.readFully(record);
+                newOffsets.put(entry.getKey(), out.getFilePointer());
+                out.write(record);
+            }
+        }
+
+        raf.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        raf = new RandomAccessFile(file, "rw");
+        offsets.clear();
+        offsets.putAll(newOffsets);
+    }
+
+    private Listing readListing(DataInputStream in) throws IOException {
+        in.readUTF();
+        long storedAt = in.readLong();
+        String etag = readNullable(in);
+        Date lastModified = readDate(in);
+        int count = in.readInt();
+        List<WebDAVResource> resources = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String href = in.readUTF();
+            String name = readNullable(in);
+            String type = readNullable(in);
+            long size = in.readLong();
+            Date created = readDate(in);
+            Date modified = readDate(in);
+            boolean directory = in.readBoolean();
+            boolean empty = in.readBoolean();
+            WebDAVResource res = new WebDAVResource(href, name, type, size, created, modified,
+                    directory, empty, baseURI);
+            res.setEtag(readNullable(in));
+            resources.add(res);
+        }
+        return new Listing(resources, etag, lastModified, storedAt);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date != null ? date.getTime() : Long.MIN_VALUE);
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time != Long.MIN_VALUE ? new Date(time) : null;
+    }
+
+    public static class Listing {
+
+        private final List<WebDAVResource> resources;
+        private final String etag;
+        private final Date lastModified;
+        private final long storedAt;
+
+        private Listing(List<WebDAVResource> resources, String etag, Date lastModified, long storedAt) {
+            this.resources = resources;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+        }
+
+        public List<WebDAVResource> getResources() {
+            return resources;
+        }
+
+        /**
+         * ETag of the listed directory itself
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public Date getLastModified() {
+            return lastModified;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Date;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.http.HttpResponse;
+
+import com.github.sardine.impl.handler.ValidatingResponseHandler;
+import com.github.sardine.util.SardineUtil;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * StAX based parser of PROPFIND multistatus responses, handing out each resource as soon as 
+ * its <code>response</code> element has been read instead of building the whole document first.
+ * Resources are built the same way as through {@link WebDAVUtil#webDAVResourceFromSardineResource}.
+ */
+public class MultistatusParser extends ValidatingResponseHandler<Void> {
+    
+    private static final Logger LOG = Logger.getLogger(MultistatusParser.class.getName());
+    private static final String DAV_NS = "DAV:";
+    private static final String DIRECTORY_CONTENT_TYPE = "httpd/unix-directory";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final XMLInputFactory factory = createFactory();
+    
+    private final ResourceHost host;
+    private final Consumer<WebDAVResource> consumer;
+    
+    public MultistatusParser(ResourceHost host, Consumer<WebDAVResource> consumer) {
+        this.host = host;
+        this.consumer = consumer;
+    }
+    
+    @Override
+    public Void handleResponse(HttpResponse response) throws IOException {
+        validateResponse(response);
+        try (InputStream is = response.getEntity().getContent()) {
+            parse(is);
+        }
+        return null;
+    }
+    
+    /**
+     * Parses a multistatus document, passing each resource to the consumer
+     */
+    public void parse(InputStream is) throws IOException {
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    if(reader.next() == XMLStreamConstants.START_ELEMENT && isDav(reader, "response")) {
+                        WebDAVResource res = readResponse(reader);
+                        if(res != null) {
+                            consumer.accept(res);
+                        }
+                        
+                        // Stop reading as soon as nobody is waiting for the rest
+                        if(Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("Listing cancelled");
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid multistatus response", e);
+        }
+    }
+    
+    private WebDAVResource readResponse(XMLStreamReader reader) throws XMLStreamException {
+        String href = null;
+        Props props = new Props();
+        
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                if(depth == 1 && isDav(reader, "href")) {
+                    href = reader.getElementText().trim();
+                } else if(depth == 1 && isDav(reader, "propstat")) {
+                    readPropstat(reader, props);
+                } else {
+                    depth++;
+                }
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        
+        if(href == null) {
+            return null;
+        }
+        
+        String name;
+        try {
+            name = nameOf(new URI(href).getPath());
+        } catch (URISyntaxException e) {
+            LOG.warning(format("Ignoring resource with invalid href ''{0}''", href));
+            return null;
+        }
+        
+        String contentType = props.collection ? DIRECTORY_CONTENT_TYPE : 
+            (props.contentType != null ? props.contentType : DEFAULT_CONTENT_TYPE);
+        WebDAVResource res = new WebDAVResource(href, name, contentType, props.contentLength, 
+                parseDate(props.creation), parseDate(props.modified), 
+                DIRECTORY_CONTENT_TYPE.equals(contentType), true, host.getBaseURI());
+        res.setEtag(props.etag);
+        return res;
+    }
+    
+    private void readPropstat(XMLStreamReader reader, Props target) throws XMLStreamException {
+        Props props = new Props();
+        String status = null;
+        boolean inProp = false;
+        
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                if(depth == 1 && isDav(reader, "status")) {
+                    status = reader.getElementText().trim();
+                } else if(inProp && depth == 2 && DAV_NS.equals(reader.getNamespaceURI()) && readProp(reader, props)) {
+                    
+                    // Direct child of prop consumed, anything else (dead properties included) is skipped
+                    continue;
+                } else {
+                    inProp |= depth == 1 && isDav(reader, "prop");
+                    depth++;
+                }
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                if(--depth == 1) {
+                    inProp = false;
+                }
+            }
+        }
+        
+        // Properties reported as missing don't count
+        if(status == null || status.contains(" 2")) {
+            target.merge(props);
+        }
+    }
+    
+    /**
+     * Reads a property if it's one resources are built from
+     * @return <code>true</code> if the element was consumed
+     */
+    private boolean readProp(XMLStreamReader reader, Props props) throws XMLStreamException {
+        switch (reader.getLocalName()) {
+        case "getcontentlength":
+            String length = reader.getElementText().trim();
+            try {
+                props.contentLength = length.isEmpty() ? -1 : Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                props.contentLength = -1;
+            }
+            return true;
+        case "getcontenttype":
+            props.contentType = emptyToNull(reader.getElementText());
+            return true;
+        case "getlastmodified":
+            props.modified = emptyToNull(reader.getElementText());
+            return true;
+        case "creationdate":
+            props.creation = emptyToNull(reader.getElementText());
+            return true;
+        case "getetag":
+            props.etag = emptyToNull(reader.getElementText());
+            return true;
+        case "resourcetype":
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    if(depth == 1 && isDav(reader, "collection")) {
+                        props.collection = true;
+                    }
+                    depth++;
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+    
+    private static boolean isDav(XMLStreamReader reader, String localName) {
+        return DAV_NS.equals(reader.getNamespaceURI()) && localName.equals(reader.getLocalName());
+    }
+    
+    private static String nameOf(String path) {
+        if(path == null) {
+            return null;
+        }
+        if(path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+    
+    private static Date parseDate(String value) {
+        return value != null ? SardineUtil.parseDate(value) : null;
+    }
+    
+    private static String emptyToNull(String value) {
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+    
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+    
+    private static class Props {
+        private long contentLength = -1;
+        private String contentType, modified, creation, etag;
+        private boolean collection;
+        
+        private void merge(Props other) {
+            if(other.contentLength != -1) {
+                contentLength = other.contentLength;
+            }
+            contentType = other.contentType != null ? other.contentType : contentType;
+            modified = other.modified != null ? other.modified : modified;
+            creation = other.creation != null ? other.creation : creation;
+            etag = other.etag != null ? other.etag : etag;
+            collection |= other.collection;
+        }
+    }
+}
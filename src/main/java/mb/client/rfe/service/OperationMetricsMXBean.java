@@ -0,0 +1,23 @@
+package mb.client.rfe.service;
+
+/**
+ * Latencies and errors of an operation of a host as exported over JMX
+ */
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    long getErrors();
+
+    double getErrorRate();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+}
@@ -0,0 +1,37 @@
+package mb.client.rfe.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+import javafx.util.Callback;
+
+/**
+ * Reports the number of bytes read to a progress callback. Reading fails as soon as the 
+ * current thread is interrupted, which aborts any transfer the stream is feeding.
+ */
+public class ProgressInputStream extends ProxyInputStream {
+    
+    private final Callback<Integer, Void> callback;
+
+    public ProgressInputStream(InputStream proxy, Callback<Integer, Void> callback) {
+        super(proxy);
+        this.callback = callback;
+    }
+
+    @Override
+    protected void beforeRead(int n) throws IOException {
+        if(Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Transfer cancelled");
+        }
+    }
+
+    @Override
+    protected void afterRead(int n) throws IOException {
+        if(n > 0) {
+            callback.call(n);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import mb.client.rfe.model.ResourceHost;
+
+/**
+ * Token bucket limiting the number of bytes transferred per second, unlimited while its rate is 0.
+ * <p>
+ * Tokens aren't counted one by one. Instead the bucket keeps the time until which the bytes taken
+ * so far are paid for, advanced by each chunk transferred with a compare and set. Concurrent
+ * transfers share a bucket without locking, and as a late wake-up only shortens the next wait the
+ * average rate stays accurate at high rates however imprecisely threads sleep. After idling, up to
+ * {@value #BURST_MS} ms worth of bytes go through without waiting.
+ * <p>
+ * A transfer is limited by the global bucket, the one of its host and the one of the task it runs
+ * for, if any, whichever is the slowest. Rates can be changed at any time, including by transfers
+ * waiting for them.
+ */
+public class RateLimiter {
+
+    private static final Logger LOG = Logger.getLogger(RateLimiter.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final long BURST_MS = 100;
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(BURST_MS);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int MIN_CHUNK_SIZE = 8 * 1024;
+
+    private static final RateLimiter global = new RateLimiter("global", config.getIntProperty("throttle.global", 0));
+    private static final Map<String, RateLimiter> byHost = new ConcurrentHashMap<>();
+    private static final ThreadLocal<RateLimiter> currentTask = new ThreadLocal<>();
+
+    private final String name;
+    private final AtomicLong paidUntil = new AtomicLong(System.nanoTime() - BURST_NANOS);
+    private volatile long bytesPerSecond;
+
+    // Changes with the rate, so that transfers waiting on the old rate stop doing so
+    private volatile int generation;
+
+    /**
+     * @param bytesPerSecond Rate, 0 for unlimited
+     */
+    public RateLimiter(String name, long bytesPerSecond) {
+        this.name = name;
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Returns the bucket all transfers go through
+     */
+    public static RateLimiter global() {
+        return global;
+    }
+
+    /**
+     * Returns the bucket of a host, shared by all its services
+     * @param host <code>null</code> for the local file system
+     */
+    public static RateLimiter forHost(ResourceHost host) {
+        return byHost.computeIfAbsent(host != null ? host.getBaseUriString() : "local",
+                key -> new RateLimiter(key, config.getIntProperty("throttle.host", 0)));
+    }
+
+    /**
+     * Returns the buckets a transfer of the current thread against a host goes through
+     * @param host <code>null</code> for the local file system
+     */
+    public static List<RateLimiter> forTransfer(ResourceHost host) {
+        List<RateLimiter> limiters = new ArrayList<>(3);
+        limiters.add(global);
+        limiters.add(forHost(host));
+        RateLimiter task = currentTask.get();
+        if(task != null) {
+            limiters.add(task);
+        }
+        return limiters;
+    }
+
+    /**
+     * Runs a call with all transfers made by it on the current thread limited by the given bucket
+     */
+    public static <T> T withTask(RateLimiter limiter, Callable<T> call) throws Exception {
+        RateLimiter previous = currentTask.get();
+        currentTask.set(limiter);
+        try {
+            return call.call();
+        } finally {
+            currentTask.set(previous);
+        }
+    }
+
+    /**
+     * Binds a runnable to the task bucket of the current thread, for handing a part of a task over
+     * to another thread
+     */
+    public static Runnable bindTask(Runnable runnable) {
+        RateLimiter task = currentTask.get();
+        return () -> {
+            RateLimiter previous = currentTask.get();
+            currentTask.set(task);
+            try {
+                runnable.run();
+            } finally {
+                currentTask.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Binds a callable to the task bucket of the current thread, for handing a part of a task over
+     * to another thread
+     */
+    public static <T> Callable<T> bindTask(Callable<T> callable) {
+        RateLimiter task = currentTask.get();
+        return () -> {
+            RateLimiter previous = currentTask.get();
+            currentTask.set(task);
+            try {
+                return callable.call();
+            } finally {
+                currentTask.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Takes the bytes from all buckets, waiting until the slowest of them allows them through
+     */
+    public static void acquire(List<RateLimiter> limiters, long bytes) throws InterruptedIOException {
+        long deadline = 0;
+        boolean limited = false;
+        int[] generations = new int[limiters.size()];
+        for (int i = 0; i < generations.length; i++) {
+            RateLimiter limiter = limiters.get(i);
+            generations[i] = limiter.generation;
+            long paid = limiter.reserve(bytes);
+            if(paid != Long.MIN_VALUE && (!limited || paid - deadline > 0)) {
+                deadline = paid;
+                limited = true;
+            }
+        }
+        if(!limited) {
+            return;
+        }
+
+        // Wait in slices to notice rate changes, with the time overslept being made up by the next wait
+        long waitNanos;
+        while ((waitNanos = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(Math.min(waitNanos, MAX_PARK_NANOS));
+            if(Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Transfer cancelled");
+            }
+            for (int i = 0; i < generations.length; i++) {
+                if(limiters.get(i).generation != generations[i]) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Size of the chunks to transfer at once, small enough to be transferred in about
+     * {@value #BURST_MS} ms by the slowest of the buckets, so that the transfer doesn't stall
+     * for long at low rates
+     */
+    public static int chunkSize(List<RateLimiter> limiters, int maxSize) {
+        long size = maxSize;
+        for (RateLimiter limiter : limiters) {
+            long rate = limiter.bytesPerSecond;
+            if(rate > 0) {
+                size = Math.min(size, Math.max(MIN_CHUNK_SIZE, rate * BURST_MS / 1000));
+            }
+        }
+        return (int) size;
+    }
+
+    /**
+     * Takes the bytes from this bucket
+     * @return Time at which they are paid for, {@link Long#MIN_VALUE} if unlimited
+     */
+    long reserve(long bytes) {
+        long rate = bytesPerSecond;
+        if(rate <= 0) {
+            return Long.MIN_VALUE;
+        }
+
+        long costNanos = (long) (bytes * 1e9 / rate);
+        while (true) {
+            long now = System.nanoTime();
+            long paid = paidUntil.get();
+
+            // Time spent idle refills the bucket, but no more than the burst
+            long start = paid - (now - BURST_NANOS) > 0 ? paid : now - BURST_NANOS;
+            long next = start + costNanos;
+            if(paidUntil.compareAndSet(paid, next)) {
+                return next;
+            }
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Changes the rate, starting over with an empty bucket if it differs
+     * @param bytesPerSecond 0 for unlimited
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        bytesPerSecond = Math.max(0, bytesPerSecond);
+        if(bytesPerSecond == this.bytesPerSecond) {
+            return;
+        }
+        
+        LOG.info(format("Rate of ''{0}'' set to {1}", name,
+                bytesPerSecond > 0 ? bytesPerSecond + " bytes/s" : "unlimited"));
+        paidUntil.set(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        generation++;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
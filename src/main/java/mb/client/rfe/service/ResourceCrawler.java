@@ -0,0 +1,307 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Walks a subtree of a {@link ResourceRepositoryService} and emits every resource below it as a stream.
+ * <p>
+ * Directories are listed by a bounded number of concurrent requests. Listed resources go through
+ * a bounded buffer, so listing stops while the consumer falls behind. WebDAV hosts are first asked
+ * for a single <code>Depth: infinity</code> listing, which is parsed as it arrives and held back by
+ * the buffer in the same way. Hosts rejecting such listings are remembered and walked one directory
+ * at a time from then on, while a listing failing otherwise only falls back for the crawl at hand.
+ * Directories are listed from cached listings where available, unless the crawl is meant to see the
+ * tree as it is right now.
+ */
+public class ResourceCrawler {
+
+    private static final Logger LOG = Logger.getLogger(ResourceCrawler.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final Map<String, Boolean> infinityUnsupported = new ConcurrentHashMap<>();
+
+    private final ResourceRepositoryService service;
+    private final int parallelism;
+    private final int bufferSize;
+    private final boolean tryInfinity;
+    private final boolean uncached;
+
+    public ResourceCrawler(ResourceRepositoryService service) {
+        this(service, false);
+    }
+
+    /**
+     * @param uncached Whether directories are listed as they are right now, bypassing cached listings
+     */
+    public ResourceCrawler(ResourceRepositoryService service, boolean uncached) {
+        this(service, config.getIntProperty("crawl.parallelism", 4), config.getIntProperty("crawl.buffer", 1000),
+                Boolean.parseBoolean(config.getProperty("crawl.depth.infinity", "true")), uncached);
+    }
+
+    /**
+     * @param parallelism Maximum number of directories listed at the same time
+     * @param bufferSize Number of resources held until the consumer picks them up
+     * @param tryInfinity Whether WebDAV hosts should be asked for a <code>Depth: infinity</code> listing first
+     */
+    public ResourceCrawler(ResourceRepositoryService service, int parallelism, int bufferSize, boolean tryInfinity) {
+        this(service, parallelism, bufferSize, tryInfinity, false);
+    }
+
+    /**
+     * @param parallelism Maximum number of directories listed at the same time
+     * @param bufferSize Number of resources held until the consumer picks them up
+     * @param tryInfinity Whether WebDAV hosts should be asked for a <code>Depth: infinity</code> listing first
+     * @param uncached Whether directories are listed as they are right now, bypassing cached listings
+     */
+    public ResourceCrawler(ResourceRepositoryService service, int parallelism, int bufferSize, boolean tryInfinity,
+            boolean uncached) {
+        this.service = service;
+        this.parallelism = parallelism;
+        this.bufferSize = bufferSize;
+        this.tryInfinity = tryInfinity;
+        this.uncached = uncached;
+    }
+
+    /**
+     * Starts crawling the subtree below the given directory
+     */
+    public Crawl crawl(String path) {
+        Crawl crawl = new Crawl(path);
+        crawl.start();
+        return crawl;
+    }
+
+    /**
+     * A running crawl. Closing it, or the stream obtained from it, stops all listings in flight.
+     */
+    public class Crawl implements AutoCloseable {
+
+        private final Object END = new Object();
+        private final String root;
+        private final BlockingQueue<Object> buffer;
+        private final ExecutorService executor;
+        private final AtomicInteger pending;
+        private final AtomicBoolean cancelled;
+        private final Map<String, WebDAVServiceException> failures;
+
+        // Resources emitted by a depth infinity listing which failed halfway, not to be emitted again
+        private volatile Set<String> emittedBefore;
+
+        private Crawl(String root) {
+            this.root = root;
+            buffer = new ArrayBlockingQueue<>(bufferSize);
+            executor = Executors.newFixedThreadPool(parallelism, WebDAVUtil.daemonThreadFactory("crawler"));
+            pending = new AtomicInteger();
+            cancelled = new AtomicBoolean();
+            failures = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Resources below the root directory in no particular order. Can only be consumed once.
+         */
+        public Stream<WebDAVResource> stream() {
+            Spliterator<WebDAVResource> spliterator = new Spliterators.AbstractSpliterator<WebDAVResource>(
+                    Long.MAX_VALUE, Spliterator.NONNULL) {
+                public boolean tryAdvance(Consumer<? super WebDAVResource> action) {
+                    WebDAVResource res = next();
+                    if(res == null) {
+                        return false;
+                    }
+                    action.accept(res);
+                    return true;
+                }
+            };
+            return StreamSupport.stream(spliterator, false).onClose(this::close);
+        }
+
+        public void cancel() {
+            if(cancelled.compareAndSet(false, true)) {
+                executor.shutdownNow();
+
+                // Wakes up a consumer waiting for the next element, whichever thread cancels
+                do {
+                    buffer.clear();
+                } while (!buffer.offer(END));
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        /**
+         * Directories which couldn't be listed and were skipped
+         */
+        public Map<String, WebDAVServiceException> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+
+        private void start() {
+            pending.incrementAndGet();
+            submit(() -> {
+                if(!listInfinity()) {
+                    listDirectory(root);
+                }
+            });
+        }
+
+        private WebDAVResource next() {
+            if(cancelled.get()) {
+                return null;
+            }
+
+            try {
+                Object item = buffer.take();
+                if(item == END || cancelled.get()) {
+                    executor.shutdown();
+                    return null;
+                }
+                return (WebDAVResource) item;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                return null;
+            }
+        }
+
+        /**
+         * Tries to get the whole subtree in a single request, which is streamed into the buffer
+         * @return <code>true</code> if the host answered the request
+         */
+        private boolean listInfinity() throws InterruptedException {
+            if(!tryInfinity || !(service instanceof WebDAVService) || service.getHost() == null) {
+                return false;
+            }
+
+            String hostKey = service.getHost().getBaseUriString();
+            if(infinityUnsupported.containsKey(hostKey)) {
+                return false;
+            }
+
+            Set<String> emitted = ConcurrentHashMap.newKeySet();
+            try {
+                boolean supported = ((WebDAVService) service).listTree(root, res -> {
+                    try {
+                        emit(res);
+                        emitted.add(ListingCache.toKey(res.getAbsolutePath()));
+                    } catch (InterruptedException e) {
+
+                        // Seen by the listing, which stops
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                if(!supported) {
+                    LOG.info(format("Depth infinity listings rejected by ''{0}''", hostKey));
+                    infinityUnsupported.put(hostKey, Boolean.TRUE);
+                }
+                return supported;
+            } catch (WebDAVServiceException e) {
+                if(Thread.currentThread().isInterrupted() || cancelled.get()) {
+                    throw new InterruptedException("Crawl cancelled");
+                }
+
+                // Walked one directory at a time instead, leaving out what has been emitted already
+                LOG.log(Level.FINE, format("Depth infinity listing of ''{0}'' failed after {1} resources", 
+                        root, emitted.size()), e);
+                if(!emitted.isEmpty()) {
+                    emittedBefore = emitted;
+                }
+                return false;
+            }
+        }
+
+        private void listDirectory(String path) throws InterruptedException {
+            List<WebDAVResource> children;
+            try {
+                children = uncached ? service.listUncached(path) : service.list(path, 1);
+            } catch (WebDAVServiceException e) {
+                if(cancelled.get()) {
+                    return;
+                }
+                LOG.log(Level.WARNING, format("Skipping ''{0}'' which couldn''t be listed", path), e);
+                failures.put(path, e);
+                return;
+            }
+
+            Set<String> skipped = emittedBefore;
+            for (WebDAVResource child : children) {
+                if(child == null) {
+                    continue;
+                }
+
+                // Sub-directories are queued before their entries are emitted, so listing goes on
+                // while the consumer catches up
+                if(child.isDirectory()) {
+                    pending.incrementAndGet();
+                    submit(() -> listDirectory(child.getAbsolutePath()));
+                }
+                if(skipped == null || !skipped.contains(ListingCache.toKey(child.getAbsolutePath()))) {
+                    emit(child);
+                }
+            }
+        }
+
+        private void emit(Object item) throws InterruptedException {
+            if(!cancelled.get()) {
+                buffer.put(item);
+            }
+        }
+
+        private void submit(CrawlStep step) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        step.run();
+                    } catch (InterruptedException e) {
+                        // Crawl cancelled
+                    } finally {
+
+                        // Last directory done
+                        if(pending.decrementAndGet() == 0) {
+                            try {
+                                emit(END);
+                            } catch (InterruptedException e) {
+                                // Crawl cancelled
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+
+                // Crawl cancelled in the meantime
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface CrawlStep {
+        void run() throws InterruptedException;
+    }
+}
@@ -1,12 +1,15 @@
 package mb.client.rfe.service;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.InputStream;
 import java.util.List;
+import java.util.function.Consumer;
 
 import com.github.sardine.DavResource;
 
 import javafx.util.Callback;
+import mb.client.rfe.model.ResourceChange;
 import mb.client.rfe.model.ResourceHost;
 import mb.client.rfe.model.WebDAVResource;
 
@@ -18,6 +21,16 @@ public interface ResourceRepositoryService {
 
     List<WebDAVResource> list(String path, int depth) throws WebDAVServiceException;
 
+    void list(String path, int pageSize, Consumer<List<WebDAVResource>> consumer) throws WebDAVServiceException;
+
+    /**
+     * Lists the children of a directory as they are right now, bypassing any cached listing, for deciding
+     * what to transfer. Services not caching listings list the directory as usual.
+     */
+    default List<WebDAVResource> listUncached(String path) throws WebDAVServiceException {
+        return list(path, 1);
+    }
+
     List<WebDAVResource> listDirs(String path) throws WebDAVServiceException;
 
     List<WebDAVResource> listFiles(String path) throws WebDAVServiceException;
@@ -26,16 +39,47 @@ public interface ResourceRepositoryService {
 
     File download(WebDAVResource res, Callback<Integer, Void> callback) throws WebDAVServiceException;
 
+    /**
+     * Downloads a file resource to the given local file, replacing it if present
+     */
+    File download(WebDAVResource res, File target, Callback<Integer, Void> callback) throws WebDAVServiceException;
+
     String upload(WebDAVResource parent, File localFile) throws WebDAVServiceException;
 
+    String upload(WebDAVResource parent, File localFile, Callback<Integer, Void> callback) throws WebDAVServiceException;
+
     List<DavResource> search(WebDAVResource parent, String query) throws WebDAVServiceException;
 
+    /**
+     * Looks up resources below a directory by name in the {@link SearchIndex} of the host, passing them
+     * to the consumer in pages as they are found. Parts of the directory not indexed yet are crawled.
+     * @param query Part of the name or a glob with <code>*</code> and <code>?</code>
+     */
+    default void search(WebDAVResource parent, String query, int pageSize, Consumer<List<WebDAVResource>> consumer)
+            throws WebDAVServiceException {
+        SearchIndex.forHost(getHost()).search(this, parent.getAbsolutePath(), query, pageSize, consumer);
+    }
+
     void delete(WebDAVResource res) throws WebDAVServiceException;
 
     void move(WebDAVResource src, WebDAVResource dest) throws WebDAVServiceException;
 
+    /**
+     * Copies a resource into a directory
+     * @param depth <code>0</code> to copy a directory without its content, negative for the whole subtree
+     */
+    void copy(WebDAVResource src, WebDAVResource dest, int depth) throws WebDAVServiceException;
+
     String createDirectory(WebDAVResource parent, String dirName) throws WebDAVServiceException;
 
+    /**
+     * Reports changes of the children of a directory in batches until the returned handle is closed.
+     * The listener is called from a background thread. Services unable to detect changes report none.
+     */
+    default Closeable watch(String path, Consumer<List<ResourceChange>> listener) throws WebDAVServiceException {
+        return () -> {};
+    }
+
     void disconnect() throws WebDAVServiceException;
 
     ResourceHost getHost();
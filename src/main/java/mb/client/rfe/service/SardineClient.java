@@ -0,0 +1,496 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.StatusLine;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import com.github.sardine.impl.SardineException;
+import com.github.sardine.impl.SardineImpl;
+import com.github.sardine.impl.handler.VoidResponseHandler;
+import com.github.sardine.impl.methods.HttpCopy;
+import com.github.sardine.impl.methods.HttpPropFind;
+
+/**
+ * Sardine client exposing the requests which the {@link com.github.sardine.Sardine} interface 
+ * only offers in a fully buffered form.
+ * <p>
+ * Compressed responses are only asked for by listing and search requests, whose XML bodies 
+ * compress very well. Everything else uses the identity encoding, as range requests and 
+ * content lengths of downloads rely on it.
+ */
+public class SardineClient extends SardineImpl {
+    
+    private static final Logger LOG = Logger.getLogger(SardineClient.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final Set<String> COMPRESSED_METHODS = Set.of("PROPFIND", "REPORT", "SEARCH");
+    
+    // Requests without side effects, which are safe to send again
+    private static final Set<String> RETRYABLE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "PROPFIND", "REPORT", "SEARCH");
+    
+    private static final String ALLPROP_BODY = 
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<D:propfind xmlns:D=\"DAV:\"><D:allprop/></D:propfind>";
+    private static final String MINIMAL_BODY = 
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<D:propfind xmlns:D=\"DAV:\"><D:prop>" +
+            "<D:getcontentlength/><D:getlastmodified/><D:creationdate/><D:displayname/>" +
+            "<D:getcontenttype/><D:resourcetype/><D:getetag/>" +
+            "</D:prop></D:propfind>";
+    
+    private volatile boolean listingCompression = true;
+    private volatile ServiceMetrics metrics;
+    private volatile CircuitBreaker breaker;
+    private final AtomicLong listingBytesReceived = new AtomicLong();
+    private final AtomicLong listingBytesDecoded = new AtomicLong();
+    
+    // NB: Set by the super constructor, so it must not have an initializer
+    private HttpClientConnectionManager connectionManager;
+    
+    public SardineClient(String username, String password) {
+        super(username, password);
+    }
+    
+    /**
+     * Whether listing and search responses should be compressed
+     */
+    public void setListingCompression(boolean listingCompression) {
+        this.listingCompression = listingCompression;
+    }
+    
+    /**
+     * Sets the breaker requests are made through, failing fast while the host is unavailable
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+    
+    /**
+     * Sets where requests, transferred bytes and the state of the connection pool are recorded. 
+     * The pool is reported until the client is shut down.
+     */
+    public void setMetrics(ServiceMetrics metrics) {
+        this.metrics = metrics;
+        if(connectionManager instanceof PoolingHttpClientConnectionManager) {
+            metrics.addPoolStats(this, ((PoolingHttpClientConnectionManager) connectionManager)::getTotalStats);
+        }
+    }
+    
+    @Override
+    public void shutdown() throws IOException {
+        if(metrics != null) {
+            metrics.removePoolStats(this);
+        }
+        super.shutdown();
+    }
+    
+    /**
+     * Bytes of listing and search responses as received, compressed or not
+     */
+    public long getListingBytesReceived() {
+        return listingBytesReceived.get();
+    }
+    
+    /**
+     * Bytes of listing and search responses after decompression
+     */
+    public long getListingBytesDecoded() {
+        return listingBytesDecoded.get();
+    }
+    
+    @Override
+    protected HttpClientBuilder configure(ProxySelector selector, CredentialsProvider credentials) {
+        
+        // NB: Called by the super constructor, the interceptors may only access fields once requests are made.
+        // Timeouts are bounded, so that an unresponsive host doesn't hold up worker threads indefinitely.
+        return super.configure(selector, credentials)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setExpectContinueEnabled(false)
+                        .setConnectTimeout(config.getIntProperty("http.timeout.connect", 10 * 1000))
+                        .setConnectionRequestTimeout(config.getIntProperty("http.timeout.pool", 30 * 1000))
+                        .setSocketTimeout(config.getIntProperty("http.timeout.socket", 60 * 1000))
+                        .build())
+                .disableContentCompression()
+                .addInterceptorLast((HttpRequestInterceptor) this::requestCompression)
+                .addInterceptorLast((HttpResponseInterceptor) this::countReceived)
+                .addInterceptorLast((HttpResponseInterceptor) this::decodeListing);
+    }
+    
+    @Override
+    protected HttpClientConnectionManager createDefaultConnectionManager(Registry<ConnectionSocketFactory> registry) {
+        connectionManager = super.createDefaultConnectionManager(registry);
+        return connectionManager;
+    }
+    
+    /**
+     * Makes a request through the circuit breaker, retrying read-only requests after failures 
+     * of the connection or the host with a jittered exponential backoff. Streamed responses are 
+     * only retried if they didn't get to their handler, which might have passed on part of them.
+     */
+    @Override
+    protected <T> T execute(HttpClientContext context, HttpRequestBase request, ResponseHandler<T> responseHandler) 
+            throws IOException {
+        CircuitBreaker breaker = this.breaker;
+        StreamingHandler<?> streaming = responseHandler instanceof StreamingHandler ? 
+                (StreamingHandler<?>) responseHandler : null;
+        boolean retryable = RETRYABLE_METHODS.contains(request.getMethod()) && isRepeatable(request);
+        int maxRetries = config.getIntProperty("retry.max", 2);
+        for (int attempt = 0;; attempt++) {
+            if(breaker != null) {
+                breaker.acquire();
+            }
+            
+            try {
+                T result = timed(context, request, responseHandler);
+                boolean hostFailure = result instanceof HttpResponse && 
+                        isUnavailableStatus(((HttpResponse) result).getStatusLine().getStatusCode());
+                report(breaker, hostFailure);
+                if(!hostFailure || !retryable || attempt >= maxRetries) {
+                    return result;
+                }
+                EntityUtils.consumeQuietly(((HttpResponse) result).getEntity());
+            } catch (IOException e) {
+                if(isNeutral(e, streaming)) {
+                    if(breaker != null) {
+                        breaker.onNeutral();
+                    }
+                    throw e;
+                }
+                
+                boolean hostFailure = !(e instanceof SardineException) || 
+                        isUnavailableStatus(((SardineException) e).getStatusCode());
+                report(breaker, hostFailure);
+                boolean handled = streaming != null && streaming.isHandling();
+                if(!hostFailure || !retryable || handled || attempt >= maxRetries || 
+                        Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                LOG.fine(format("{0} {1} failed, retrying: {2}", request.getMethod(), request.getURI(), e.getMessage()));
+            } catch (RuntimeException e) {
+                
+                // The host answered, the answer couldn't be handled
+                if(breaker != null) {
+                    breaker.onNeutral();
+                }
+                throw e;
+            }
+            
+            // Full jitter, so that clients failing at the same time don't retry at the same time
+            long backoff = Math.min(config.getIntProperty("retry.backoff.max", 4 * 1000), 
+                    (long) config.getIntProperty("retry.backoff", 250) << attempt);
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(format("{0} {1} interrupted", request.getMethod(), request.getURI()));
+            }
+            request.reset();
+        }
+    }
+    
+    /**
+     * Whether a failure tells nothing about the host, as the request was cancelled, or the response
+     * was received fine but couldn't be handled. Timeouts are interruptions as well, but count.
+     */
+    private static boolean isNeutral(IOException e, StreamingHandler<?> streaming) {
+        if(Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException && 
+                !(e instanceof SocketTimeoutException) && !(e instanceof ConnectTimeoutException)) {
+            return true;
+        }
+        if(e instanceof SardineException) {
+            int status = ((SardineException) e).getStatusCode();
+            return status >= 200 && status < 300;
+        }
+        return streaming != null && streaming.isHandling() && !streaming.isReadFailed();
+    }
+    
+    private static void report(CircuitBreaker breaker, boolean hostFailure) {
+        if(breaker != null) {
+            if(hostFailure) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+        }
+    }
+    
+    private static boolean isUnavailableStatus(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+    
+    private static boolean isRepeatable(HttpRequestBase request) {
+        if(request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+    
+    /**
+     * Times a request. Streamed responses are timed until their headers arrive, 
+     * all others until they are handled.
+     */
+    private <T> T timed(HttpClientContext context, HttpRequestBase request, ResponseHandler<T> responseHandler) 
+            throws IOException {
+        ServiceMetrics metrics = this.metrics;
+        if(metrics == null) {
+            return super.execute(context, request, responseHandler);
+        }
+        
+        if(request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if(entity != null && entity.getContentLength() > 0) {
+                metrics.addBytesSent(entity.getContentLength());
+            }
+        }
+        
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = super.execute(context, request, responseHandler);
+            failed = result instanceof HttpResponse && ((HttpResponse) result).getStatusLine().getStatusCode() >= 400;
+            return result;
+        } finally {
+            metrics.record(request.getMethod(), System.nanoTime() - start, failed);
+        }
+    }
+    
+    /**
+     * Sends a PROPFIND and passes the response to the handler without buffering it
+     * @param minimal Ask only for the properties resources are built from instead of all properties
+     */
+    public <T> T propfind(String url, int depth, boolean minimal, ResponseHandler<T> handler) throws IOException {
+        HttpPropFind request = new HttpPropFind(url);
+        request.setDepth(depth < 0 ? "infinity" : String.valueOf(depth));
+        request.setEntity(new StringEntity(minimal ? MINIMAL_BODY : ALLPROP_BODY, 
+                ContentType.create("text/xml", StandardCharsets.UTF_8)));
+        return execute(request, new StreamingHandler<>(handler));
+    }
+    
+    /**
+     * Copies a resource on the server
+     * @param depth <code>0</code> to copy a collection without its members, negative for the whole subtree
+     */
+    public void copy(String sourceUrl, String destinationUrl, boolean overwrite, int depth) throws IOException {
+        HttpCopy request = new HttpCopy(sourceUrl, destinationUrl, overwrite);
+        request.setHeader("Depth", depth < 0 ? "infinity" : "0");
+        execute(request, new VoidResponseHandler());
+    }
+    
+    private void requestCompression(HttpRequest request, HttpContext context) {
+        if(listingCompression && COMPRESSED_METHODS.contains(request.getRequestLine().getMethod()) && 
+                !request.containsHeader("Accept-Encoding")) {
+            request.addHeader("Accept-Encoding", "gzip, deflate");
+        }
+    }
+    
+    private void countReceived(HttpResponse response, HttpContext context) {
+        ServiceMetrics metrics = this.metrics;
+        HttpEntity entity = response.getEntity();
+        if(metrics != null && entity != null) {
+            response.setEntity(new HttpEntityWrapper(entity) {
+                public InputStream getContent() throws IOException {
+                    return new ProgressInputStream(wrappedEntity.getContent(), bytes -> {
+                        metrics.addBytesReceived(bytes);
+                        return null;
+                    });
+                }
+                
+                public void writeTo(OutputStream out) throws IOException {
+                    try (InputStream in = getContent()) {
+                        in.transferTo(out);
+                    }
+                }
+            });
+        }
+    }
+    
+    private void decodeListing(HttpResponse response, HttpContext context) {
+        HttpRequest request = HttpClientContext.adapt(context).getRequest();
+        HttpEntity entity = response.getEntity();
+        if(request == null || entity == null || 
+                !COMPRESSED_METHODS.contains(request.getRequestLine().getMethod())) {
+            return;
+        }
+        
+        Header encodingHeader = entity.getContentEncoding();
+        String encoding = encodingHeader != null ? encodingHeader.getValue().trim().toLowerCase(Locale.ROOT) : "identity";
+        if(!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate") && 
+                !encoding.equals("identity")) {
+            return;
+        }
+        
+        response.setEntity(new DecodingEntity(entity, encoding));
+        if(!encoding.equals("identity")) {
+            response.removeHeaders("Content-Length");
+            response.removeHeaders("Content-Encoding");
+            response.removeHeaders("Content-MD5");
+        }
+    }
+    
+    /**
+     * Decompresses a response body while it's read, counting bytes before and after
+     */
+    private class DecodingEntity extends HttpEntityWrapper {
+        
+        private final String encoding;
+        private InputStream content;
+        
+        private DecodingEntity(HttpEntity entity, String encoding) {
+            super(entity);
+            this.encoding = encoding;
+        }
+        
+        @Override
+        public InputStream getContent() throws IOException {
+            
+            // The stream can only be set up once, as decompressing consumes the header
+            if(content == null || !wrappedEntity.isStreaming()) {
+                content = decode();
+            }
+            return content;
+        }
+        
+        private InputStream decode() throws IOException {
+            InputStream received = new ProgressInputStream(wrappedEntity.getContent(), bytes -> {
+                listingBytesReceived.addAndGet(bytes);
+                return null;
+            });
+            
+            InputStream decoded;
+            switch (encoding) {
+                case "gzip":
+                case "x-gzip":
+                    decoded = new GZIPInputStream(received);
+                    break;
+                case "deflate":
+                    decoded = new DeflateInputStream(received);
+                    break;
+                default:
+                    decoded = received;
+            }
+            return new ProgressInputStream(decoded, bytes -> {
+                listingBytesDecoded.addAndGet(bytes);
+                return null;
+            });
+        }
+        
+        @Override
+        public long getContentLength() {
+            return encoding.equals("identity") ? super.getContentLength() : -1;
+        }
+        
+        @Override
+        public Header getContentEncoding() {
+            return encoding.equals("identity") ? super.getContentEncoding() : null;
+        }
+        
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                in.transferTo(out);
+            }
+        }
+    }
+    
+    /**
+     * Passes a response on to a handler consuming it as it arrives, keeping track of whether it got
+     * that far and of whether reading it failed, as opposed to handling it. Responses of an unavailable
+     * host fail before getting to the handler.
+     */
+    private static class StreamingHandler<T> implements ResponseHandler<T> {
+        
+        private final ResponseHandler<T> handler;
+        private volatile boolean handling;
+        private volatile boolean readFailed;
+        
+        private StreamingHandler(ResponseHandler<T> handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public T handleResponse(HttpResponse response) throws IOException {
+            StatusLine status = response.getStatusLine();
+            if(isUnavailableStatus(status.getStatusCode())) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new SardineException(format("Unexpected response ({0} {1})", status.getStatusCode(), 
+                        status.getReasonPhrase()), status.getStatusCode(), status.getReasonPhrase());
+            }
+            
+            HttpEntity entity = response.getEntity();
+            if(entity != null) {
+                response.setEntity(new HttpEntityWrapper(entity) {
+                    public InputStream getContent() throws IOException {
+                        return new FilterInputStream(super.getContent()) {
+                            public int read() throws IOException {
+                                try {
+                                    return super.read();
+                                } catch (IOException e) {
+                                    readFailed = true;
+                                    throw e;
+                                }
+                            }
+                            
+                            public int read(byte[] b, int off, int len) throws IOException {
+                                try {
+                                    return super.read(b, off, len);
+                                } catch (IOException e) {
+                                    readFailed = true;
+                                    throw e;
+                                }
+                            }
+                        };
+                    }
+                });
+            }
+            handling = true;
+            return handler.handleResponse(response);
+        }
+        
+        private boolean isHandling() {
+            return handling;
+        }
+        
+        private boolean isReadFailed() {
+            return readFailed;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+
+/**
+ * Client-side index of resource names of a host, fed by the directory listings the services fetch.
+ * <p>
+ * The index holds the children of every directory listed so far. A listing replaces the children
+ * known for its directory, so the index is as current as the last listing. Lookups scan the names
+ * of all indexed directories below the searched one, which takes well under a second for millions
+ * of names, so no further structure is maintained.
+ * <p>
+ * Queries containing <code>*</code> or <code>?</code> are matched as globs against the whole name,
+ * any other query as a substring. Matching ignores case.
+ */
+public class SearchIndex {
+
+    private static final Logger LOG = Logger.getLogger(SearchIndex.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final Map<String, SearchIndex> indexes = new ConcurrentHashMap<>();
+
+    // Children by directory, arrays are replaced rather than modified, so that lookups need no locking
+    private final Map<String, Entry[]> listings = new ConcurrentHashMap<>();
+
+    /**
+     * Index shared by all services of the host, <code>null</code> for the local file system
+     */
+    public static SearchIndex forHost(ResourceHost host) {
+        return indexes.computeIfAbsent(host != null ? host.getBaseUriString() : "local", key -> new SearchIndex());
+    }
+
+    /**
+     * Replaces the known children of a directory
+     */
+    public void putListing(String dirPath, List<WebDAVResource> children) {
+        listings.put(toKey(dirPath), children.stream()
+                .filter(res -> res != null && res.getName() != null)
+                .map(Entry::new)
+                .toArray(Entry[]::new));
+    }
+
+    /**
+     * Replaces everything known below a directory with the resources of a recursive listing of it
+     */
+    public void putTree(String dirPath, List<WebDAVResource> resources) {
+        Tree tree = newTree(dirPath);
+        resources.forEach(tree::add);
+        tree.commit();
+    }
+
+    /**
+     * Starts collecting the resources of a recursive listing of a directory as they arrive
+     */
+    public Tree newTree(String dirPath) {
+        return new Tree(toKey(dirPath));
+    }
+
+    /**
+     * Adds a single resource to the known children of a directory, replacing one with the same path
+     */
+    public void add(String dirPath, WebDAVResource res) {
+        String path = toKey(res.getAbsolutePath());
+        listings.compute(toKey(dirPath), (key, entries) -> {
+            List<Entry> updated = new ArrayList<>();
+            if(entries != null) {
+                for (Entry entry : entries) {
+                    if(!entry.key.equals(path)) {
+                        updated.add(entry);
+                    }
+                }
+            }
+            updated.add(new Entry(res));
+            return updated.toArray(new Entry[0]);
+        });
+    }
+
+    /**
+     * Removes a resource from the children of a directory, along with everything known below it
+     */
+    public void remove(String dirPath, String path) {
+        String removed = toKey(path);
+        listings.computeIfPresent(toKey(dirPath), (key, entries) -> {
+            List<Entry> updated = new ArrayList<>(entries.length);
+            for (Entry entry : entries) {
+                if(!entry.key.equals(removed)) {
+                    updated.add(entry);
+                }
+            }
+            return updated.toArray(new Entry[0]);
+        });
+        listings.keySet().removeIf(key -> isSameOrBelow(key, removed));
+    }
+
+    /**
+     * Checks if the children of the given directory are known
+     */
+    public boolean contains(String dirPath) {
+        return listings.containsKey(toKey(dirPath));
+    }
+
+    /**
+     * Checks if the children of the given directory and of all directories below it are known
+     */
+    public boolean isComplete(String dirPath) {
+        String root = toKey(dirPath);
+        if(!listings.containsKey(root)) {
+            return false;
+        }
+        for (Map.Entry<String, Entry[]> listing : listings.entrySet()) {
+            if(isSameOrBelow(listing.getKey(), root)) {
+                for (Entry entry : listing.getValue()) {
+                    if(entry.directory && !listings.containsKey(entry.key)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of indexed resources
+     */
+    public long size() {
+        return listings.values().stream().mapToLong(entries -> entries.length).sum();
+    }
+
+    public void clear() {
+        listings.clear();
+    }
+
+    /**
+     * Looks up resources below a directory by name like {@link #search(String, String, int, int, Consumer)},
+     * then crawls the directory with the given service if parts of it have not been listed yet. Crawled
+     * listings end up in the index through the service, so later searches are answered from the index.
+     * The number of results is limited by the <code>search.limit</code> property.
+     * @return Number of resources found
+     */
+    public int search(ResourceRepositoryService service, String dirPath, String query, int pageSize,
+            Consumer<List<WebDAVResource>> consumer) {
+        int limit = config.getIntProperty("search.limit", 10000);
+        Set<String> found = new HashSet<>();
+        search(dirPath, query, limit, pageSize, page -> {
+            page.forEach(res -> found.add(toKey(res.getAbsolutePath())));
+            consumer.accept(page);
+        });
+        if(found.size() >= limit || Thread.currentThread().isInterrupted() || isComplete(dirPath)) {
+            return found.size();
+        }
+
+        Predicate<String> matcher = matcher(query);
+        List<WebDAVResource> page = new ArrayList<>(pageSize);
+        ResourceCrawler.Crawl crawl = new ResourceCrawler(service).crawl(dirPath);
+        try (Stream<WebDAVResource> stream = crawl.stream()) {
+            for (Iterator<WebDAVResource> it = stream.iterator(); it.hasNext() && found.size() < limit;) {
+                WebDAVResource res = it.next();
+                if(res.getName() != null && matcher.test(res.getName().toLowerCase(Locale.ROOT)) &&
+                        found.add(toKey(res.getAbsolutePath()))) {
+                    page.add(res);
+                    if(page.size() >= pageSize) {
+                        consumer.accept(page);
+                        page = new ArrayList<>(pageSize);
+                    }
+                }
+            }
+        }
+        if(!page.isEmpty()) {
+            consumer.accept(page);
+        }
+        crawl.getFailures().forEach((path, e) ->
+            LOG.log(Level.FINE, format("Listing ''{0}'' failed while searching", path), e));
+        return found.size();
+    }
+
+    /**
+     * Looks up resources below a directory by name, passing them to the consumer in pages as they are found.
+     * Stops early if the current thread is interrupted.
+     * @param limit Maximum number of resources found
+     * @return Number of resources found
+     */
+    public int search(String dirPath, String query, int limit, int pageSize, Consumer<List<WebDAVResource>> consumer) {
+        String root = toKey(dirPath);
+        Predicate<String> matcher = matcher(query);
+
+        int found = 0;
+        List<WebDAVResource> page = new ArrayList<>(pageSize);
+        for (Map.Entry<String, Entry[]> listing : listings.entrySet()) {
+            if(found >= limit || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if(!isSameOrBelow(listing.getKey(), root)) {
+                continue;
+            }
+
+            for (Entry entry : listing.getValue()) {
+                if(matcher.test(entry.lowerName)) {
+                    page.add(entry.res);
+                    if(++found >= limit) {
+                        break;
+                    }
+                    if(page.size() >= pageSize) {
+                        consumer.accept(page);
+                        page = new ArrayList<>(pageSize);
+                    }
+                }
+            }
+        }
+        if(!page.isEmpty()) {
+            consumer.accept(page);
+        }
+        return found;
+    }
+
+    /**
+     * Creates a matcher for lower case names. Common glob shapes are matched without regular expressions.
+     */
+    static Predicate<String> matcher(String query) {
+        String q = query.trim().toLowerCase(Locale.ROOT);
+        if(q.indexOf('*') < 0 && q.indexOf('?') < 0) {
+            return name -> name.contains(q);
+        }
+
+        String inner = q.length() > 1 ? q.substring(1, q.length() - 1) : "";
+        boolean simpleInner = inner.indexOf('*') < 0 && inner.indexOf('?') < 0;
+        if(simpleInner && q.length() > 1 && q.startsWith("*") && q.endsWith("*")) {
+            return name -> name.contains(inner);
+        }
+
+        String head = q.substring(0, q.length() - 1);
+        if(q.endsWith("*") && head.indexOf('*') < 0 && head.indexOf('?') < 0) {
+            return name -> name.startsWith(head);
+        }
+
+        String tail = q.substring(1);
+        if(q.startsWith("*") && tail.indexOf('*') < 0 && tail.indexOf('?') < 0) {
+            return name -> name.endsWith(tail);
+        }
+
+        StringBuilder regex = new StringBuilder();
+        for (String part : q.split("((?<=[*?])|(?=[*?]))")) {
+            regex.append(part.equals("*") ? ".*" : part.equals("?") ? "." : Pattern.quote(part));
+        }
+        Pattern pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        return name -> pattern.matcher(name).matches();
+    }
+
+    /**
+     * Normalizes paths, so that remote resources given by absolute URI and by href hit the same entry
+     */
+    private static String toKey(String path) {
+        if(path.startsWith("http://") || path.startsWith("https://")) {
+            try {
+                path = URI.create(path).getRawPath();
+            } catch (IllegalArgumentException e) {
+                // Keep as is
+            }
+        }
+        return ListingCache.toKey(path);
+    }
+
+    private static boolean isSameOrBelow(String key, String root) {
+        if(!key.startsWith(root)) {
+            return false;
+        }
+        if(key.length() == root.length() || root.endsWith("/") || root.endsWith(File.separator)) {
+            return true;
+        }
+        char next = key.charAt(root.length());
+        return next == '/' || next == File.separatorChar;
+    }
+
+    /**
+     * Resources of a recursive listing, replacing everything known below its directory once committed
+     */
+    public class Tree {
+
+        private final String root;
+        private final Map<String, List<Entry>> byParent = new HashMap<>();
+
+        private Tree(String root) {
+            this.root = root;
+            byParent.put(root, new ArrayList<>());
+        }
+
+        public void add(WebDAVResource res) {
+            if(res != null && res.getName() != null) {
+                Entry entry = new Entry(res);
+                byParent.computeIfAbsent(ListingCache.parentOf(entry.key), key -> new ArrayList<>()).add(entry);
+
+                // Directories without children are complete as well
+                if(entry.directory) {
+                    byParent.computeIfAbsent(entry.key, key -> new ArrayList<>());
+                }
+            }
+        }
+
+        public void commit() {
+            listings.keySet().removeIf(key -> isSameOrBelow(key, root));
+            byParent.forEach((dir, entries) -> listings.put(dir, entries.toArray(new Entry[0])));
+        }
+    }
+
+    private static class Entry {
+
+        private final String key;
+        private final String lowerName;
+        private final boolean directory;
+        private final WebDAVResource res;
+
+        private Entry(WebDAVResource res) {
+            this.key = toKey(res.getAbsolutePath());
+            this.lowerName = res.getName().toLowerCase(Locale.ROOT);
+            this.directory = res.isDirectory();
+            this.res = res;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.sardine.Sardine;
+import com.github.sardine.impl.io.ContentLengthInputStream;
+
+import javafx.util.Callback;
+
+/**
+ * Downloads a resource as a number of byte ranges fetched over parallel connections 
+ * and written positionally into a preallocated file
+ */
+public class SegmentedDownloader {
+    
+    private static final Logger LOG = Logger.getLogger(SegmentedDownloader.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Sardine sardine;
+    private final String uri;
+    private final long size;
+    private final List<RateLimiter> limiters;
+    
+    public SegmentedDownloader(Sardine sardine, String uri, long size) {
+        this(sardine, uri, size, Collections.emptyList());
+    }
+    
+    /**
+     * @param limiters Rate limiters shared by all segments
+     */
+    public SegmentedDownloader(Sardine sardine, String uri, long size, List<RateLimiter> limiters) {
+        this.sardine = sardine;
+        this.uri = uri;
+        this.size = size;
+        this.limiters = limiters;
+    }
+    
+    /**
+     * Number of segments worth using for a resource of the given size
+     */
+    public static int segmentCount(long size, int maxSegments, long minSegmentSize) {
+        if(size <= 0 || minSegmentSize <= 0) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(maxSegments, size / minSegmentSize));
+    }
+    
+    /**
+     * Checks if the server honours <code>Range</code> requests for the resource by asking for its first byte
+     */
+    public boolean isRangeSupported() throws IOException {
+        
+        // NB: Closing the stream aborts the connection in case the server sends the whole resource
+        try (InputStream is = sardine.get(uri, Collections.singletonMap("Range", new ByteRange(0, 1).toHeaderValue()))) {
+            return hasLength(is, 1);
+        }
+    }
+    
+    /**
+     * Downloads the whole resource to a file using the given number of parallel connections
+     */
+    public void download(File file, int segments, Callback<Integer, Void> callback) throws IOException {
+        LOG.fine(format("Downloading ''{0}'' in {1} segments", uri, segments));
+        
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            fetchRanges(raf.getChannel(), new ByteRange(0, size).split(segments), callback);
+        }
+    }
+    
+    /**
+     * Downloads the ranges still missing from a journaled partial file, using up to the given 
+     * number of parallel connections. Ranges are only served if the resource still has the 
+     * ETag of the journal, otherwise a {@link ResourceChangedException} is thrown.
+     */
+    public void download(DownloadJournal journal, int segments, Callback<Integer, Void> callback) throws IOException {
+        List<ByteRange> ranges = planRanges(journal.getMissingRanges(), segments);
+        LOG.fine(format("Downloading ''{0}'' in {1} segments, {2} bytes already present", 
+                uri, ranges.size(), journal.getCommittedBytes()));
+        if(ranges.isEmpty()) {
+            return;
+        }
+        
+        try (RandomAccessFile raf = new RandomAccessFile(journal.getPartFile(), "rw")) {
+            if(raf.length() != size) {
+                raf.setLength(size);
+            }
+            
+            FileChannel channel = raf.getChannel();
+            try {
+                fetchRanges(channel, ranges, callback, journal);
+            } finally {
+                
+                // Whatever made it to the file is kept for the next attempt
+                try {
+                    channel.force(false);
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Failed to flush partial file", e);
+                }
+                journal.persist();
+            }
+        }
+    }
+    
+    /**
+     * Splits the missing ranges so that roughly the given number of segments is fetched, 
+     * larger gaps getting proportionally more connections
+     */
+    static List<ByteRange> planRanges(List<ByteRange> missing, int segments) {
+        long total = missing.stream().mapToLong(ByteRange::length).sum();
+        List<ByteRange> ranges = new ArrayList<>();
+        for (ByteRange range : missing) {
+            int parts = (int) Math.max(1, Math.round((double) segments * range.length() / total));
+            ranges.addAll(range.split(parts));
+        }
+        return ranges;
+    }
+    
+    /**
+     * Fetches the given ranges in parallel and writes them at their positions in the channel
+     */
+    public void fetchRanges(FileChannel channel, List<ByteRange> ranges, Callback<Integer, Void> callback) 
+            throws IOException {
+        fetchRanges(channel, ranges, callback, null);
+    }
+    
+    private void fetchRanges(FileChannel channel, List<ByteRange> ranges, Callback<Integer, Void> callback, 
+            DownloadJournal journal) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(ranges.size(), 
+                WebDAVUtil.daemonThreadFactory("segment-download"));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(ranges.size());
+            for (ByteRange range : ranges) {
+                futures.add(executor.submit(() -> {
+                    fetchRange(channel, range, callback, journal);
+                    return null;
+                }));
+            }
+            
+            // Wait for all, the first failure aborts the remaining segments
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Segmented download interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private void fetchRange(FileChannel channel, ByteRange range, Callback<Integer, Void> callback, 
+            DownloadJournal journal) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", range.toHeaderValue());
+        
+        // Weak ETags are not allowed in If-Range
+        String etag = journal != null ? journal.getEtag() : null;
+        if(etag != null && !etag.startsWith("W/")) {
+            headers.put("If-Range", etag);
+        }
+        
+        try (InputStream received = sardine.get(uri, headers)) {
+            if(!hasLength(received, range.length())) {
+                if(headers.containsKey("If-Range") && hasLength(received, size) && range.length() != size) {
+                    throw new ResourceChangedException(format("''{0}'' changed since the download was started", uri));
+                }
+                throw new IOException(format("Server did not honour range {0} of ''{1}''", range, uri));
+            }
+            
+            InputStream is = limiters.isEmpty() ? received : new ThrottledInputStream(received, limiters);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = range.getStart();
+            int bytesRead;
+            while (position < range.getEnd() && (bytesRead = is.read(buffer)) != -1) {
+                if(Thread.interrupted()) {
+                    throw new InterruptedIOException("Segment download interrupted");
+                }
+                
+                long start = position;
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (bb.hasRemaining()) {
+                    position += channel.write(bb, position);
+                }
+                
+                // Committed data is persisted every now and then, flushing the file first
+                if(journal != null && journal.commit(start, position)) {
+                    channel.force(false);
+                    journal.persist();
+                }
+                
+                // Progress is aggregated by the callback, so calls must not overlap
+                synchronized (callback) {
+                    callback.call(bytesRead);
+                }
+            }
+            
+            if(position != range.getEnd()) {
+                throw new IOException(format("Premature end of range {0} of ''{1}''", range, uri));
+            }
+        }
+    }
+    
+    private static boolean hasLength(InputStream is, long length) {
+        if(is instanceof ContentLengthInputStream) {
+            Long contentLength = ((ContentLengthInputStream) is).getLength();
+            return contentLength != null && contentLength == length;
+        }
+        return false;
+    }
+    
+    /**
+     * Thrown when the server sends the whole entity instead of a range because the <code>If-Range</code> 
+     * validator no longer matches
+     */
+    @SuppressWarnings("serial")
+    public static class ResourceChangedException extends IOException {
+        
+        public ResourceChangedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package mb.client.rfe.service;
+
+/**
+ * A unit of work against a resource repository which may fail with a {@link WebDAVServiceException}
+ */
+@FunctionalInterface
+public interface ServiceCall<T> {
+
+    T call() throws WebDAVServiceException;
+}
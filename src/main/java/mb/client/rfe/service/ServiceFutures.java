@@ -0,0 +1,83 @@
+package mb.client.rfe.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Utilities for running {@link ServiceCall}s asynchronously
+ */
+public class ServiceFutures {
+    
+    private static ExecutorService defaultExecutor;
+    
+    /**
+     * Shared bounded pool used by services unless configured otherwise
+     */
+    public static Executor defaultExecutor() {
+        synchronized (ServiceFutures.class) {
+            if (defaultExecutor == null) {
+                defaultExecutor = Executors.newFixedThreadPool(
+                        ConfigService.getInstance().getIntProperty("service.async.threads", 8), 
+                        WebDAVUtil.daemonThreadFactory("service-async"));
+            }
+        }
+        return defaultExecutor;
+    }
+    
+    /**
+     * Runs a call on the given executor. Unlike {@link CompletableFuture#supplyAsync}, cancelling 
+     * the returned future interrupts the thread executing the call, which aborts blocking I/O where possible.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(ServiceCall<T> call, Executor executor) {
+        InterruptibleFuture<T> future = new InterruptibleFuture<>();
+        executor.execute(() -> future.run(call));
+        return future;
+    }
+    
+    private static class InterruptibleFuture<T> extends CompletableFuture<T> {
+        
+        private Thread runner;
+        
+        private void run(ServiceCall<T> call) {
+            
+            // Cancelled before it got the chance to start
+            if(!setRunner(Thread.currentThread())) {
+                return;
+            }
+            
+            try {
+                complete(call.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                setRunner(null);
+                
+                // Don't leave the pooled thread interrupted by a late cancel
+                Thread.interrupted();
+            }
+        }
+        
+        private synchronized boolean setRunner(Thread thread) {
+            if(thread != null && isDone()) {
+                return false;
+            }
+            runner = thread;
+            return true;
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if(cancelled) {
+                synchronized (this) {
+                    if(runner != null) {
+                        runner.interrupt();
+                    }
+                }
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package mb.client.rfe.service;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.pool.PoolStats;
+
+import mb.client.rfe.model.ResourceHost;
+
+/**
+ * Timings and counters of the operations of a service, per host, exported as MBeans under
+ * <code>mb.client.rfe</code>.
+ * <p>
+ * Latencies are recorded per operation into histograms with buckets doubling in width, so that
+ * recording costs a few uncontended additions and percentiles are accurate to within a factor of
+ * two. Operations of remote hosts are the HTTP requests made, timed until the response is handled,
+ * or until its headers arrive for streamed downloads. A failure is an exception or an error status.
+ */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+    private static final Logger LOG = Logger.getLogger(ServiceMetrics.class.getName());
+    private static final String DOMAIN = "mb.client.rfe";
+    private static final Map<String, ServiceMetrics> byHost = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+
+    // Connection pools of the clients connected to the host, by client
+    private final Map<Object, Supplier<PoolStats>> pools = new ConcurrentHashMap<>();
+
+    private ServiceMetrics(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Returns the metrics of a host, registering their MBean the first time
+     * @param host <code>null</code> for the local file system
+     */
+    public static ServiceMetrics forHost(ResourceHost host) {
+        String key = host != null ? host.getBaseUriString() : "local";
+        return byHost.computeIfAbsent(key, k -> {
+            ServiceMetrics metrics = new ServiceMetrics(k);
+            register(format("{0}:type=Host,name={1}", DOMAIN, ObjectName.quote(k)), metrics);
+            return metrics;
+        });
+    }
+
+    /**
+     * Runs a call and records its latency and outcome under the given operation
+     */
+    public <T> T time(String operation, ServiceCall<T> call) throws WebDAVServiceException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            record(operation, System.nanoTime() - start, failed);
+        }
+    }
+
+    public void record(String operation, long nanos, boolean failed) {
+        operation(operation).record(nanos, failed);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void addBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Adds the connection pool of a client to those reported for the host, until removed
+     */
+    public void addPoolStats(Object client, Supplier<PoolStats> poolStats) {
+        pools.put(client, poolStats);
+    }
+
+    public void removePoolStats(Object client) {
+        pools.remove(client);
+    }
+
+    /**
+     * Writes the report of all hosts to a file
+     */
+    public static void dumpAll(File file) throws IOException {
+        StringBuilder report = new StringBuilder();
+        new TreeMap<>(byHost).values().forEach(metrics -> report.append(metrics.report()).append('\n'));
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        Files.write(file.toPath(), report.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public long getRequests() {
+        return operations.values().stream().mapToLong(Operation::getCount).sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return operations.values().stream().mapToLong(Operation::getErrors).sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public int getPoolLeased() {
+        PoolStats stats = currentPoolStats();
+        return stats != null ? stats.getLeased() : 0;
+    }
+
+    @Override
+    public int getPoolAvailable() {
+        PoolStats stats = currentPoolStats();
+        return stats != null ? stats.getAvailable() : 0;
+    }
+
+    @Override
+    public int getPoolPending() {
+        PoolStats stats = currentPoolStats();
+        return stats != null ? stats.getPending() : 0;
+    }
+
+    @Override
+    public int getPoolMax() {
+        PoolStats stats = currentPoolStats();
+        return stats != null ? stats.getMax() : 0;
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(format("{0}: {1} bytes received, {2} bytes sent, pool {3} leased/{4} available/{5} pending of {6}\n",
+                host, String.valueOf(getBytesReceived()), String.valueOf(getBytesSent()),
+                getPoolLeased(), getPoolAvailable(), getPoolPending(), getPoolMax()));
+        report.append(String.format("  %-10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        new TreeMap<>(operations).forEach((name, op) -> report.append(String.format(
+                "  %-10s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, op.getCount(), op.getErrors(),
+                op.getMeanMillis(), op.getP50Millis(), op.getP95Millis(), op.getP99Millis(), op.getMaxMillis())));
+        return report.toString();
+    }
+
+    @Override
+    public void dump(String path) throws IOException {
+        dumpAll(new File(path));
+    }
+
+    /**
+     * Statistics of a single operation, <code>null</code> if it was never recorded
+     */
+    public OperationMetricsMXBean getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    private Operation operation(String name) {
+        Operation operation = operations.get(name);
+        if(operation == null) {
+            operation = operations.computeIfAbsent(name, k -> {
+                Operation op = new Operation();
+                register(format("{0}:type=Operation,host={1},name={2}", DOMAIN, ObjectName.quote(host),
+                        ObjectName.quote(k)), op);
+                return op;
+            });
+        }
+        return operation;
+    }
+
+    /**
+     * Statistics of all pools of the host added up, <code>null</code> if there are none
+     */
+    private PoolStats currentPoolStats() {
+        if(pools.isEmpty()) {
+            return null;
+        }
+
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (Supplier<PoolStats> supplier : pools.values()) {
+            PoolStats stats = supplier.get();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    private static void register(String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if(!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, format("Failed to register MBean ''{0}''", name), e);
+        }
+    }
+
+    /**
+     * Latency histogram and error count of an operation
+     */
+    private static class Operation implements OperationMetricsMXBean {
+
+        // Bucket i holds latencies below 2^i microseconds, the last one everything longer
+        private static final int BUCKETS = 32;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Operation() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos, boolean failed) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+            totalNanos.add(nanos);
+            if(failed) {
+                errors.increment();
+            }
+            if(nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        @Override
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getErrorRate() {
+            long count = getCount();
+            return count > 0 ? (double) getErrors() / count : 0;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long count = getCount();
+            return count > 0 ? totalNanos.sum() / 1e6 / count : 0;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentile(0.5);
+        }
+
+        @Override
+        public double getP95Millis() {
+            return percentile(0.95);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentile(0.99);
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, capped by the longest latency seen
+         */
+        private double percentile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if(total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if(seen >= rank) {
+                    return Math.min((1L << i) / 1e3, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+}
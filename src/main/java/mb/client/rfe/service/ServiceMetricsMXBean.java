@@ -0,0 +1,37 @@
+package mb.client.rfe.service;
+
+import java.io.IOException;
+
+/**
+ * Counters of a host as exported over JMX
+ */
+public interface ServiceMetricsMXBean {
+
+    String getHost();
+
+    long getRequests();
+
+    long getErrors();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    int getPoolLeased();
+
+    int getPoolAvailable();
+
+    int getPoolPending();
+
+    int getPoolMax();
+
+    /**
+     * Human readable summary of all operations
+     */
+    String report();
+
+    /**
+     * Writes the reports of all hosts to the given file
+     */
+    void dump(String path) throws IOException;
+}
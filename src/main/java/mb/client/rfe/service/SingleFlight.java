@@ -0,0 +1,86 @@
+package mb.client.rfe.service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent identical requests, so that callers asking for the same key while a
+ * request is in flight wait for and share its result instead of issuing their own. If the
+ * caller making the request is interrupted, the others make it again.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder deduplicated = new LongAdder();
+
+    public V execute(K key, ServiceCall<V> call) throws WebDAVServiceException {
+        while (true) {
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+            if(existing == null) {
+                return run(key, future, call);
+            }
+            
+            deduplicated.increment();
+            try {
+                return await(existing);
+            } catch (CancellationException e) {
+                
+                // The caller making the request was cancelled, which is no reason to fail the others
+                if(Thread.currentThread().isInterrupted()) {
+                    throw new WebDAVServiceException("Interrupted while waiting for a pending request", e);
+                }
+                inFlight.remove(key, existing);
+            }
+        }
+    }
+
+    private V run(K key, CompletableFuture<V> future, ServiceCall<V> call) throws WebDAVServiceException {
+        try {
+            V result = call.call();
+            future.complete(result);
+            return result;
+        } catch (WebDAVServiceException | RuntimeException e) {
+            if(Thread.currentThread().isInterrupted()) {
+                future.cancel(false);
+            } else {
+                future.completeExceptionally(e);
+            }
+            throw e;
+        } catch (Error e) {
+            
+            // Waiters fail too, instead of waiting forever
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Number of requests which were served by another caller's in-flight request
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.sum();
+    }
+
+    private V await(CompletableFuture<V> future) throws WebDAVServiceException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDAVServiceException("Interrupted while waiting for a pending request", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof WebDAVServiceException) {
+                throw (WebDAVServiceException) cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new WebDAVServiceException(cause);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package mb.client.rfe.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+/**
+ * Limits reading from a stream by a number of rate limiters. Reads are kept small enough for the
+ * slowest of them, so that the transfer proceeds steadily rather than in bursts.
+ */
+public class ThrottledInputStream extends ProxyInputStream {
+
+    private static final int MAX_READ_SIZE = 256 * 1024;
+
+    private final List<RateLimiter> limiters;
+
+    public ThrottledInputStream(InputStream proxy, List<RateLimiter> limiters) {
+        super(proxy);
+        this.limiters = limiters;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, RateLimiter.chunkSize(limiters, MAX_READ_SIZE)));
+    }
+
+    @Override
+    protected void afterRead(int n) throws IOException {
+        if(n > 0) {
+            RateLimiter.acquire(limiters, n);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package mb.client.rfe.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javafx.util.Callback;
+
+/**
+ * Copies data to files with as few copies and system calls as possible.
+ * <p>
+ * Streams are transferred by the calling thread filling pooled direct buffers, which are handed
+ * over to a writer thread draining them into the file channel, so that reading from the network
+ * and writing to disk overlap. The buffer size grows while buffers fill quickly and shrinks when
+ * they don't. File to file copies are left to {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * <p>
+ * Progress callbacks are invoked at most every {@value #PROGRESS_INTERVAL_MS} ms.
+ */
+public class TransferPipeline {
+
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long TARGET_FILL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    private static final int TRANSFER_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // Two buffers in flight, one being written while the next one is filled
+    private static final int QUEUE_DEPTH = 2;
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private static final BufferPool pool = new BufferPool(8);
+    private static final ExecutorService writers =
+            Executors.newCachedThreadPool(WebDAVUtil.daemonThreadFactory("transfer-writer"));
+
+    private TransferPipeline() {
+    }
+
+    /**
+     * Transfers the whole stream to the channel, starting at its current position
+     * @return Number of bytes transferred
+     */
+    public static long transfer(InputStream in, FileChannel out, Callback<Integer, Void> callback) throws IOException {
+        BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        long position = out.position();
+        Future<Long> writer = writers.submit(() -> drain(queue, out, position, callback));
+
+        ReadableByteChannel src = Channels.newChannel(in);
+        int bufferSize = MIN_BUFFER_SIZE;
+        try {
+            boolean eof = false;
+            while (!eof) {
+                ByteBuffer buffer = pool.acquire(bufferSize);
+                long start = System.nanoTime();
+
+                // Fill the buffer entirely, so that the writer gets as few large writes as possible
+                while (buffer.hasRemaining() && !eof) {
+                    eof = src.read(buffer) < 0;
+                }
+                bufferSize = nextBufferSize(bufferSize, buffer.position(), System.nanoTime() - start);
+
+                buffer.flip();
+                if(buffer.hasRemaining()) {
+                    handOver(queue, buffer, writer);
+                } else {
+                    pool.release(buffer);
+                }
+            }
+            handOver(queue, END_OF_STREAM, writer);
+
+            long transferred = writer.get();
+            out.position(position + transferred);
+            return transferred;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            if(!writer.isDone()) {
+                writer.cancel(true);
+            }
+
+            // Buffers never picked up by the writer go back to the pool
+            ByteBuffer buffer;
+            while ((buffer = queue.poll()) != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Transfers the whole source file to the destination channel, starting at its current position
+     * @return Number of bytes transferred
+     */
+    public static long transfer(FileChannel in, FileChannel out, Callback<Integer, Void> callback) throws IOException {
+        return transfer(in, out, callback, Collections.emptyList());
+    }
+
+    /**
+     * Transfers the whole source file to the destination channel, starting at its current position, 
+     * no faster than the given rate limiters allow
+     * @return Number of bytes transferred
+     */
+    public static long transfer(FileChannel in, FileChannel out, Callback<Integer, Void> callback, 
+            List<RateLimiter> limiters) throws IOException {
+        ProgressThrottle progress = new ProgressThrottle(callback);
+        long size = in.size();
+        long position = 0;
+
+        // Transfer in chunks to report progress, the channels themselves are interruptible
+        while (position < size) {
+            long chunkSize = RateLimiter.chunkSize(limiters, TRANSFER_CHUNK_SIZE);
+            long transferred = in.transferTo(position, Math.min(chunkSize, size - position), out);
+            if(transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            RateLimiter.acquire(limiters, transferred);
+            progress.add(transferred);
+        }
+        progress.flush();
+        return position;
+    }
+
+    static int nextBufferSize(int current, int filled, long elapsedNanos) {
+        if(filled < current) {
+            return current;
+        } else if(elapsedNanos < TARGET_FILL_NANOS / 2) {
+            return Math.min(current * 2, MAX_BUFFER_SIZE);
+        } else if(elapsedNanos > TARGET_FILL_NANOS * 2) {
+            return Math.max(current / 2, MIN_BUFFER_SIZE);
+        }
+        return current;
+    }
+
+    private static void handOver(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer, Future<Long> writer)
+            throws InterruptedException, ExecutionException, IOException {
+
+        // Don't wait forever on a writer which has already failed
+        while (!queue.offer(buffer, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            if(writer.isDone()) {
+                pool.release(buffer);
+                writer.get();
+                throw new IOException("Writer stopped before the end of the stream");
+            }
+        }
+    }
+
+    private static long drain(BlockingQueue<ByteBuffer> queue, FileChannel out, long position,
+            Callback<Integer, Void> callback) throws IOException, InterruptedException {
+        ProgressThrottle progress = new ProgressThrottle(callback);
+        long written = 0;
+        ByteBuffer buffer;
+        while ((buffer = queue.take()) != END_OF_STREAM) {
+            try {
+                int length = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer, position + written);
+                }
+                progress.add(length);
+            } finally {
+                pool.release(buffer);
+            }
+        }
+        progress.flush();
+        return written;
+    }
+
+    /**
+     * Direct buffers are expensive to allocate and only freed by the GC, so they are kept per size for reuse
+     */
+    private static class BufferPool {
+
+        private final int maxPerSize;
+        private final Map<Integer, Queue<ByteBuffer>> buffers = new ConcurrentHashMap<>();
+
+        private BufferPool(int maxPerSize) {
+            this.maxPerSize = maxPerSize;
+        }
+
+        ByteBuffer acquire(int size) {
+            ByteBuffer buffer = queueFor(size).poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(size);
+        }
+
+        void release(ByteBuffer buffer) {
+            if(buffer == END_OF_STREAM) {
+                return;
+            }
+
+            Queue<ByteBuffer> queue = queueFor(buffer.capacity());
+            if(queue.size() < maxPerSize) {
+                buffer.clear();
+                queue.offer(buffer);
+            }
+        }
+
+        private Queue<ByteBuffer> queueFor(int size) {
+            return buffers.computeIfAbsent(size, s -> new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Accumulates progress and passes it on to the callback every now and then
+     */
+    private static class ProgressThrottle {
+
+        private final Callback<Integer, Void> callback;
+        private long pending;
+        private long lastReported;
+
+        private ProgressThrottle(Callback<Integer, Void> callback) {
+            this.callback = callback;
+            lastReported = System.currentTimeMillis();
+        }
+
+        void add(long bytes) {
+            pending += bytes;
+            long now = System.currentTimeMillis();
+            if(now - lastReported >= PROGRESS_INTERVAL_MS) {
+                lastReported = now;
+                flush();
+            }
+        }
+
+        void flush() {
+            while (pending > 0) {
+                int chunk = (int) Math.min(pending, Integer.MAX_VALUE);
+                callback.call(chunk);
+                pending -= chunk;
+            }
+        }
+    }
+}
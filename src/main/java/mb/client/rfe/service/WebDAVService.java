@@ -2,38 +2,168 @@ package mb.client.rfe.service;
 
 import static java.text.MessageFormat.format;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import javax.xml.namespace.QName;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
 
 import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
-import com.github.sardine.SardineFactory;
+import com.github.sardine.impl.SardineException;
+import com.github.sardine.report.SyncCollectionReport;
 
 import javafx.util.Callback;
+import mb.client.rfe.model.ResourceChange;
 import mb.client.rfe.model.ResourceHost;
 import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.SegmentedDownloader.ResourceChangedException;
 
-public class WebDAVService implements ResourceRepositoryService {
+public class WebDAVService implements AsyncResourceRepositoryService {
+    
+    private static final Logger LOG = Logger.getLogger(WebDAVService.class.getName());
+    private static final ConfigService config = ConfigService.getInstance();
+    private static final QName CTAG = new QName("http://calendarserver.org/ns/", "getctag", "cs");
+    
+    // Live properties the resources are built from
+    private static final Set<QName> SYNC_PROPERTIES = Set.of(
+            new QName("DAV:", "creationdate", "d"), new QName("DAV:", "displayname", "d"), 
+            new QName("DAV:", "getcontentlength", "d"), new QName("DAV:", "getcontenttype", "d"), 
+            new QName("DAV:", "getetag", "d"), new QName("DAV:", "getlastmodified", "d"), 
+            new QName("DAV:", "resourcetype", "d"));
+    
+    // Answers to a first sync-collection report by hosts which don't support it, as opposed to failures
+    private static final Set<Integer> SYNC_UNSUPPORTED_STATUSES = Set.of(400, 403, 405, 415, 422, 501);
     
     private ResourceHost host;
     private Sardine sardine;
+    private ListingCache listingCache;
+    private volatile MetadataStore metadataStore;
+    private volatile ChunkStore chunkStore;
+    private SearchIndex searchIndex;
+    private ChangeTracker changeTracker;
+    private ExecutorService revalidationExecutor;
+    private SingleFlight<String, List<DavResource>> pendingListings;
+    private SingleFlight<String, List<WebDAVResource>> pendingPagedListings;
+    private Executor executor = ServiceFutures.defaultExecutor();
 
     public WebDAVService(ResourceHost host) {
         this.host = host;
+        listingCache = new ListingCache(
+                config.getIntProperty("cache.listing.size", 500), 
+                config.getIntProperty("cache.listing.ttl", 10 * 60 * 1000), 
+                config.getIntProperty("cache.listing.revalidate", 5 * 1000));
+        revalidationExecutor = Executors.newFixedThreadPool(2, 
+                WebDAVUtil.daemonThreadFactory("listing-revalidation"));
+        pendingListings = new SingleFlight<>();
+        pendingPagedListings = new SingleFlight<>();
+        searchIndex = SearchIndex.forHost(host);
     }
     
     @Override
     public void connect() {
-        sardine = SardineFactory.begin(host.getUser(), host.getPassword());
+        connect(true);
+    }
+    
+    /**
+     * @param useStores Whether listings and downloaded content are kept across sessions, not wanted for
+     * a service used only briefly, such as to test a connection
+     */
+    public void connect(boolean useStores) {
+        SardineClient client = new SardineClient(host.getUser(), host.getPassword());
+        client.setListingCompression(host.isCompressedListing());
+        client.setMetrics(ServiceMetrics.forHost(host));
+        client.setCircuitBreaker(CircuitBreaker.forHost(host));
+        sardine = client;
+        
+        // Listings of earlier sessions are shown until the host answers, or for as long as it doesn't
+        if(useStores && Boolean.parseBoolean(config.getProperty("metadata.store", "true"))) {
+            File file = new File("metadata", WebDAVUtil.encodeUrlPath(host.getBaseUriString()) + ".db");
+            try {
+                metadataStore = MetadataStore.open(file, host.getBaseURI());
+                revalidationExecutor.execute(this::indexStoredListings);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, format("Failed to open metadata store ''{0}''", file), e);
+            }
+        }
+        
+        // Content of earlier downloads from any host is reused. Every large download is read again 
+        // to be split into chunks, so only where the same content is downloaded over and over.
+        if(useStores && Boolean.parseBoolean(config.getProperty("download.store", "false"))) {
+            File file = new File("metadata", "chunks.db");
+            try {
+                chunkStore = ChunkStore.open(file);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, format("Failed to open chunk store ''{0}''", file), e);
+            }
+        }
+    }
+    
+    /**
+     * Makes the listings of earlier sessions searchable, unless listed again in the meantime
+     */
+    private void indexStoredListings() {
+        MetadataStore store = metadataStore;
+        if(store == null) {
+            return;
+        }
+        try {
+            for (String path : store.getPaths()) {
+                if(Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if(!searchIndex.contains(path)) {
+                    MetadataStore.Listing stored = store.get(path);
+                    if(stored != null) {
+                        searchIndex.putListing(path, stored.getResources());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to index stored listings", e);
+        }
+    }
+    
+    /**
+     * Bytes of listing responses received over the wire, possibly compressed
+     */
+    public long getListingBytesReceived() {
+        return sardine instanceof SardineClient ? ((SardineClient) sardine).getListingBytesReceived() : 0;
+    }
+    
+    /**
+     * Bytes of listing responses after decompression
+     */
+    public long getListingBytesDecoded() {
+        return sardine instanceof SardineClient ? ((SardineClient) sardine).getListingBytesDecoded() : 0;
     }
     
     @Override
@@ -43,20 +173,308 @@ public class WebDAVService implements ResourceRepositoryService {
     
     @Override
     public List<WebDAVResource> list(String path, int depth) throws WebDAVServiceException {
-        try {
-            List<DavResource> list = sardine.list(buildURI(path), depth);
-            List<WebDAVResource> resources = new ArrayList<WebDAVResource>(list.size());
-            for (DavResource sardineResource : list) {
-                
-                // Filter out parent, as it's returned with the list of children, when not listing a single resource
-                if(depth == 0 || !path.equals(sardineResource.getHref().toString())) {
-                    resources.add(WebDAVUtil.webDAVResourceFromSardineResource(sardineResource, host));
-                }
+        
+        // Only plain directory listings are cached, whole subtrees are worth indexing though
+        if(depth != 1) {
+            List<WebDAVResource> resources = toResources(path, depth, propfind(path, depth));
+            if(depth < 0) {
+                searchIndex.putTree(path, resources);
             }
             return resources;
+        }
+        
+        // Serve cached listing right away and check if it's still current in the background
+        ListingCache.Entry entry = cachedListing(path);
+        if(entry != null) {
+            return entry.getResources();
+        }
+        
+        return fetchAndCacheListing(path);
+    }
+    
+    /**
+     * Fetches the listing with a depth 1 PROPFIND whether cached or not, replacing the cached one
+     */
+    @Override
+    public List<WebDAVResource> listUncached(String path) throws WebDAVServiceException {
+        return fetchAndCacheListing(path);
+    }
+    
+    @Override
+    public void list(String path, int pageSize, Consumer<List<WebDAVResource>> consumer) throws WebDAVServiceException {
+        
+        // Cached listings are handed out right away
+        ListingCache.Entry entry = cachedListing(path);
+        if(entry != null) {
+            WebDAVUtil.deliverInPages(entry.getResources(), pageSize, consumer);
+            return;
+        }
+        
+        // Streaming needs direct access to the response
+        if(!(sardine instanceof SardineClient)) {
+            WebDAVUtil.deliverInPages(list(path), pageSize, consumer);
+            return;
+        }
+        
+        // Callers asking for a directory already being listed get the pages once the listing is complete
+        boolean[] streamed = new boolean[1];
+        List<WebDAVResource> resources = pendingPagedListings.execute(ListingCache.toKey(path), () -> {
+            streamed[0] = true;
+            return streamListing(path, pageSize, consumer);
+        });
+        if(!streamed[0]) {
+            WebDAVUtil.deliverInPages(resources, pageSize, consumer);
+        }
+    }
+    
+    private List<WebDAVResource> streamListing(String path, int pageSize, Consumer<List<WebDAVResource>> consumer) 
+            throws WebDAVServiceException {
+        long generation = listingCache.getGeneration();
+        List<WebDAVResource> resources = new ArrayList<>();
+        List<WebDAVResource> page = new ArrayList<>(pageSize);
+        WebDAVResource[] self = new WebDAVResource[1];
+        try {
+            ((SardineClient) sardine).propfind(buildURI(path), 1, host.isMinimalListing(), 
+                    new MultistatusParser(host, res -> {
+                        if(isSameResource(path, res.getAbsolutePath())) {
+                            self[0] = res;
+                            return;
+                        }
+                        
+                        resources.add(res);
+                        page.add(res);
+                        if(page.size() >= pageSize) {
+                            consumer.accept(new ArrayList<>(page));
+                            page.clear();
+                        }
+                    }));
         } catch (IOException e) {
             throw new WebDAVServiceException(e);
         }
+        if(!page.isEmpty()) {
+            consumer.accept(page);
+        }
+        
+        cacheListing(path, resources, self[0] != null ? self[0].getEtag() : null, 
+                self[0] != null ? self[0].getModified() : null, generation);
+        return Collections.unmodifiableList(resources);
+    }
+    
+    /**
+     * Streams the whole subtree below a directory to the consumer with a single <code>Depth: infinity</code> 
+     * PROPFIND, so that it doesn't have to be held in memory, and indexes it for searching
+     * @return <code>false</code> if the host doesn't allow such listings
+     */
+    public boolean listTree(String path, Consumer<WebDAVResource> consumer) throws WebDAVServiceException {
+        if(!(sardine instanceof SardineClient)) {
+            List<WebDAVResource> resources;
+            try {
+                resources = list(path, -1);
+            } catch (WebDAVServiceException e) {
+                if(e.getCause() instanceof SardineException && 
+                        isInfinityRejected(((SardineException) e.getCause()).getStatusCode(), null)) {
+                    return false;
+                }
+                throw e;
+            }
+            resources.forEach(consumer);
+            return true;
+        }
+        
+        SearchIndex.Tree tree = searchIndex.newTree(path);
+        boolean[] rejected = new boolean[1];
+        try {
+            ((SardineClient) sardine).propfind(buildURI(path), -1, host.isMinimalListing(), 
+                    new MultistatusParser(host, res -> {
+                        if(!isSameResource(path, res.getAbsolutePath())) {
+                            tree.add(res);
+                            consumer.accept(res);
+                        }
+                    }) {
+                        public Void handleResponse(HttpResponse response) throws IOException {
+                            int status = response.getStatusLine().getStatusCode();
+                            if(status == 400 || status == 403 || status == 501) {
+                                String body = response.getEntity() != null ? 
+                                        EntityUtils.toString(response.getEntity()) : null;
+                                if(isInfinityRejected(status, body)) {
+                                    rejected[0] = true;
+                                    return null;
+                                }
+                            }
+                            return super.handleResponse(response);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Listing the tree below ''{0}'' failed", path), e);
+        }
+        if(rejected[0]) {
+            return false;
+        }
+        tree.commit();
+        return true;
+    }
+    
+    /**
+     * Whether a response means that the host doesn't do <code>Depth: infinity</code> listings at all, 
+     * rather than that this one failed. A 403 only counts with the <code>propfind-finite-depth</code> 
+     * precondition in its body, as it might as well deny access to the directory.
+     */
+    private static boolean isInfinityRejected(int status, String body) {
+        return status == 400 || status == 501 || 
+                status == 403 && body != null && body.contains("propfind-finite-depth");
+    }
+    
+    /**
+     * Number of listing requests which were served by an identical request already in flight
+     */
+    public long getCoalescedRequestCount() {
+        return pendingListings.getDeduplicatedCount() + pendingPagedListings.getDeduplicatedCount();
+    }
+    
+    private List<DavResource> propfind(String path, int depth) throws WebDAVServiceException {
+        
+        // Concurrent requests for the same directory and depth share a single PROPFIND
+        return pendingListings.execute(ListingCache.toKey(path) + "#" + depth, () -> {
+            try {
+                
+                // Without extra properties Sardine asks for the live properties the resources are built from,
+                // which spares servers from sending every dead property they hold
+                return host.isMinimalListing() ? 
+                        sardine.list(buildURI(path), depth, Collections.emptySet()) : 
+                        sardine.list(buildURI(path), depth);
+            } catch (IOException e) {
+                throw new WebDAVServiceException(e);
+            }
+        });
+    }
+    
+    private static boolean isSameResource(String path, DavResource sardineResource) {
+        return isSameResource(path, sardineResource.getHref().toString());
+    }
+    
+    private static boolean isSameResource(String path, String href) {
+        return ListingCache.toKey(path).equals(ListingCache.toKey(href));
+    }
+    
+    private List<WebDAVResource> toResources(String path, int depth, List<DavResource> list) {
+        List<WebDAVResource> resources = new ArrayList<WebDAVResource>(list.size());
+        for (DavResource sardineResource : list) {
+            
+            // Filter out parent, as it's returned with the list of children, when not listing a single resource
+            if(depth == 0 || !isSameResource(path, sardineResource)) {
+                resources.add(WebDAVUtil.webDAVResourceFromSardineResource(sardineResource, host));
+            }
+        }
+        return resources;
+    }
+    
+    private List<WebDAVResource> fetchAndCacheListing(String path) throws WebDAVServiceException {
+        long generation = listingCache.getGeneration();
+        List<DavResource> list = propfind(path, 1);
+        
+        // Keep the validators of the listed directory itself for later revalidation
+        DavResource self = list.stream()
+                .filter(r -> isSameResource(path, r))
+                .findFirst()
+                .orElse(null);
+        
+        List<WebDAVResource> resources = toResources(path, 1, list);
+        cacheListing(path, resources, self != null ? self.getEtag() : null, 
+                self != null ? self.getModified() : null, generation);
+        return resources;
+    }
+    
+    /**
+     * Caches and stores a listing, unless a listing was invalidated since its fetch started, as it 
+     * might predate the change that did so
+     * @param generation Generation of the listing cache taken before the fetch
+     */
+    private void cacheListing(String path, List<WebDAVResource> resources, String etag, Date lastModified, 
+            long generation) {
+        synchronized (listingCache) {
+            if(listingCache.put(path, resources, etag, lastModified, generation) == null) {
+                LOG.fine(format("Listing of ''{0}'' not cached, invalidated while fetched", path));
+                return;
+            }
+            if(metadataStore != null) {
+                try {
+                    metadataStore.put(path, resources, etag, lastModified);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, format("Failed to store listing of ''{0}''", path), e);
+                }
+            }
+            searchIndex.putListing(path, resources);
+        }
+    }
+    
+    /**
+     * Returns the listing of a directory from memory or else from the metadata store, scheduling a 
+     * revalidation if due. Stored listings might be arbitrarily old, so they are always revalidated.
+     */
+    private ListingCache.Entry cachedListing(String path) {
+        ListingCache.Entry entry = listingCache.get(path);
+        if(entry != null) {
+            if(listingCache.needsRevalidation(entry)) {
+                revalidateInBackground(path, entry);
+            }
+            return entry;
+        }
+        
+        MetadataStore.Listing stored = null;
+        MetadataStore store = metadataStore;
+        if(store != null) {
+            try {
+                stored = store.get(path);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, format("Failed to read stored listing of ''{0}''", path), e);
+            }
+        }
+        if(stored == null) {
+            return null;
+        }
+        
+        entry = listingCache.put(path, stored.getResources(), stored.getEtag(), stored.getLastModified());
+        searchIndex.putListing(path, stored.getResources());
+        revalidateInBackground(path, entry);
+        return entry;
+    }
+    
+    /**
+     * Drops the listing of a directory from memory and from the metadata store
+     * @param descendants Whether stored listings of the subtree go as well, not only the directory itself
+     */
+    private void invalidateListing(String path, boolean descendants) {
+        synchronized (listingCache) {
+            listingCache.invalidate(path);
+            if(metadataStore != null) {
+                try {
+                    metadataStore.invalidate(path, descendants);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, format("Failed to invalidate stored listing of ''{0}''", path), e);
+                }
+            }
+        }
+    }
+    
+    private void revalidateInBackground(String path, ListingCache.Entry entry) {
+        if(entry.startRevalidation()) {
+            revalidationExecutor.execute(() -> {
+                try {
+                    
+                    // Cheap depth 0 request first, full listing only if the directory changed
+                    List<DavResource> self = propfind(path, 0);
+                    if(!self.isEmpty() && entry.isValid(self.get(0).getEtag(), self.get(0).getModified())) {
+                        entry.touch();
+                    } else {
+                        fetchAndCacheListing(path);
+                    }
+                } catch (WebDAVServiceException e) {
+                    LOG.log(Level.FINE, format("Revalidating listing of ''{0}'' failed", path), e);
+                } finally {
+                    entry.endRevalidation();
+                }
+            });
+        }
     }
     
     @Override
@@ -74,7 +492,8 @@ public class WebDAVService implements ResourceRepositoryService {
         
         InputStream is;
         try {
-            is = sardine.get(buildURI(res.getAbsolutePath()));
+            is = new ThrottledInputStream(sardine.get(buildURI(res.getAbsolutePath())), 
+                    RateLimiter.forTransfer(host));
         } catch (IOException e) {
             throw new WebDAVServiceException("Fetching file from server failed", e);
         }
@@ -83,40 +502,187 @@ public class WebDAVService implements ResourceRepositoryService {
     
     @Override
     public File download(WebDAVResource res, Callback<Integer, Void> callback) throws WebDAVServiceException {
-        
-        InputStream is = getContent(res);
-        
-        File file;
-        FileOutputStream fos = null;
+        return download(res, new File("downloads/" + res.getName()), callback);
+    }
+    
+    @Override
+    public File download(WebDAVResource res, File file, Callback<Integer, Void> callback) throws WebDAVServiceException {
         try {
-
-            final int buffSize = 8 * 1024;
-            
-            file = new File("downloads/" + res.getName());
             
             // Lazily create "downloads" directory
             FileUtils.createParentDirectories(file);
             
-            fos = new FileOutputStream(file);
+            // Larger files go through a journaled partial file, so that they can be resumed, 
+            // and through the chunk store, so that content downloaded before is taken from disk
+            if(res.getSize() >= config.getIntProperty("download.resume.minsize", 4 * 1024 * 1024)) {
+                WebDAVResource current = fetchCurrent(res.getAbsolutePath());
+                String uri = buildURI(res.getAbsolutePath());
+                ChunkStore store = chunkStore;
+                String version = store != null ? 
+                        ChunkStore.versionOf(uri, current.getEtag(), current.getSize()) : null;
+                if(version != null && downloadFromStore(store, version, uri, current.getSize(), file, callback)) {
+                    return file;
+                }
+                
+                SegmentedDownloader probe = new SegmentedDownloader(sardine, uri, current.getSize());
+                if(probe.isRangeSupported()) {
+                    downloadResumable(current, file, callback);
+                } else {
+                    LOG.fine(format("Range requests not supported for ''{0}''", res.getAbsolutePath()));
+                    downloadSingleStream(current, file, callback);
+                }
+                recordInStore(store, version, file);
+                return file;
+            }
+        } catch (ResourceChangedException e) {
+            throw new WebDAVServiceException(
+                    format("''{0}'' changed on the server during the download, please try again", res), e);
+        } catch (IOException e) {
+            throw new WebDAVServiceException("Copying file failed", e);
+        }
+        
+        downloadSingleStream(res, file, callback);
+        return file;
+    }
+    
+    /**
+     * Fetches a resource with its validators and size straight from the server, as the cached 
+     * listing might be stale
+     */
+    private WebDAVResource fetchCurrent(String path) throws WebDAVServiceException {
+        List<WebDAVResource> current = toResources(path, 0, propfind(path, 0));
+        if(current.isEmpty()) {
+            throw new WebDAVServiceException(format("Resource ''{0}'' not found", path));
+        }
+        return current.get(0);
+    }
+    
+    /**
+     * Assembles a version downloaded before from the chunks on disk, fetching only the ranges 
+     * missing. Falls back to a regular download if the version is unknown or the ranges can't 
+     * be fetched.
+     */
+    private boolean downloadFromStore(ChunkStore store, String version, String uri, long size, File file, 
+            Callback<Integer, Void> callback) throws IOException {
+        File part = new File(file.getPath() + ".chunks");
+        try {
+            List<ByteRange> missing = store.assemble(version, part);
+            if(missing == null) {
+                return false;
+            }
             
-            byte[] buffer = new byte[buffSize];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                callback.call(bytesRead);
+            long missingBytes = missing.stream().mapToLong(ByteRange::length).sum();
+            LOG.info(format("Taking {0} of {1} bytes of ''{2}'' from disk", size - missingBytes, size, uri));
+            if(!missing.isEmpty()) {
+                SegmentedDownloader downloader = new SegmentedDownloader(sardine, uri, size, 
+                        RateLimiter.forTransfer(host));
+                if(!downloader.isRangeSupported()) {
+                    return false;
+                }
+                reportProgress(callback, size - missingBytes);
+                
+                // A connection per range, but no more than for a segmented download at a time
+                int parallelism = config.getIntProperty("download.segments", 4);
+                try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                    for (int i = 0; i < missing.size(); i += parallelism) {
+                        downloader.fetchRanges(raf.getChannel(), 
+                                missing.subList(i, Math.min(i + parallelism, missing.size())), callback);
+                    }
+                }
+                
+                // Ranges of a newer version mixed in
+                if(!store.verify(version, part, missing)) {
+                    throw new ResourceChangedException(format("''{0}'' changed since its chunks were fetched", uri));
+                }
+            } else {
+                reportProgress(callback, size);
             }
             
+            // Chunks of the version are known already
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try {
+                store.relocate(version, file);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, format("Failed to record chunks of ''{0}''", file), e);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(part.toPath());
+        }
+    }
+    
+    private void recordInStore(ChunkStore store, String version, File file) {
+        if(version != null) {
+            try {
+                store.record(version, file);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, format("Failed to record chunks of ''{0}''", file), e);
+            }
+        }
+    }
+    
+    /**
+     * Downloads the resource into a journaled partial file, continuing a previous attempt if the 
+     * resource hasn't changed since. Large files are fetched in parallel ranges.
+     */
+    private void downloadResumable(WebDAVResource res, File file, Callback<Integer, Void> callback) 
+            throws IOException, WebDAVServiceException {
+        String path = res.getAbsolutePath();
+        String uri = buildURI(path);
+        
+        DownloadJournal journal = DownloadJournal.open(file);
+        if(journal.hasPartialData() && journal.matches(uri, res.getEtag(), res.getSize())) {
+            LOG.info(format("Resuming download of ''{0}'' with {1} bytes present", path, journal.getCommittedBytes()));
+            reportProgress(callback, journal.getCommittedBytes());
+        } else {
+            journal.reset(uri, res.getEtag(), res.getSize());
+        }
+        
+        int segments = SegmentedDownloader.segmentCount(res.getSize(), 
+                config.getIntProperty("download.segments", 4), 
+                config.getIntProperty("download.segment.minsize", 16 * 1024 * 1024));
+        try {
+            new SegmentedDownloader(sardine, uri, res.getSize(), RateLimiter.forTransfer(host))
+                    .download(journal, segments, callback);
+        } catch (ResourceChangedException e) {
+            
+            // Partial data of an older version is of no use
+            journal.discard();
+            throw e;
+        }
+        journal.complete();
+    }
+    
+    private static void reportProgress(Callback<Integer, Void> callback, long bytes) {
+        while (bytes > 0) {
+            int chunk = (int) Math.min(bytes, Integer.MAX_VALUE);
+            callback.call(chunk);
+            bytes -= chunk;
+        }
+    }
+    
+    private void downloadSingleStream(WebDAVResource res, File file, Callback<Integer, Void> callback) 
+            throws WebDAVServiceException {
+        
+        InputStream is = getContent(res);
+        try (FileChannel channel = FileChannel.open(file.toPath(), 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            TransferPipeline.transfer(is, channel, callback);
         } catch (IOException e) {
             throw new WebDAVServiceException("Copying file failed", e);
         } finally {
-            IOUtils.closeQuietly(is, fos);
+            IOUtils.closeQuietly(is);
         }
-        
-        return file;
     }
     
     @Override
     public String upload(WebDAVResource parent, File localFile) throws WebDAVServiceException {
+        return upload(parent, localFile, bytesSent -> null);
+    }
+    
+    @Override
+    public String upload(WebDAVResource parent, File localFile, Callback<Integer, Void> callback) 
+            throws WebDAVServiceException {
         
         try {
             
@@ -129,13 +695,23 @@ public class WebDAVService implements ResourceRepositoryService {
             String fileName = WebDAVUtil.encodeUrlPath(localFile.getName());
             String absolutePath = parentPath + fileName;
             
-            // Upload
-            sardine.put(buildURI(absolutePath), localFile, 
-                    Files.probeContentType(localFile.toPath()));
+            // Stream the file, so that progress is reported as the request body is sent and an 
+            // interrupt aborts the request
+            String contentType = Files.probeContentType(localFile.toPath());
+            try (InputStream is = new ProgressInputStream(new ThrottledInputStream(
+                    new BufferedInputStream(new FileInputStream(localFile), 64 * 1024), 
+                    RateLimiter.forTransfer(host)), callback)) {
+                sardine.put(buildURI(absolutePath), is, contentType, true, localFile.length());
+            }
             
+            // Searchable right away rather than once the directory is listed again
+            searchIndex.add(parent.getAbsolutePath(), new WebDAVResource(absolutePath, localFile.getName(), 
+                    contentType, localFile.length(), null, new Date(), false, false, host.getBaseURI()));
             return absolutePath;
         } catch (Exception e) {
             throw new WebDAVServiceException("File upload failed", e);
+        } finally {
+            invalidateListing(parent.getAbsolutePath(), false);
         }
     }
     
@@ -152,8 +728,12 @@ public class WebDAVService implements ResourceRepositoryService {
     public void delete(WebDAVResource res) throws WebDAVServiceException {
         try {
             sardine.delete(buildURI(res.getAbsolutePath()));
+            searchIndex.remove(ListingCache.parentOf(res.getAbsolutePath()), res.getAbsolutePath());
         } catch (IOException e) {
             throw new WebDAVServiceException(format("Failed to delete resource ''{0}''", res.getAbsolutePath()), e);
+        } finally {
+            invalidateListing(res.getAbsolutePath(), true);
+            invalidateListing(ListingCache.parentOf(res.getAbsolutePath()), false);
         }
     }
     
@@ -161,12 +741,48 @@ public class WebDAVService implements ResourceRepositoryService {
     public void move(WebDAVResource src, WebDAVResource dest) throws WebDAVServiceException {
         confirmResourceIsDirectory(dest);
         
+        String destPath = dest.getAbsolutePath();
+        destPath = (destPath.endsWith("/") ? destPath : destPath + "/") + WebDAVUtil.encodeUrlPath(src.getName());
         try {
-            sardine.move(buildURI(src.getAbsolutePath()), 
-                    buildURI(dest.getAbsolutePath()) + WebDAVUtil.encodeUrlPath(src.getName()), false);
+            sardine.move(buildURI(src.getAbsolutePath()), buildURI(destPath), false);
+            
+            // Searchable at its new place right away, its content once listed there
+            searchIndex.remove(ListingCache.parentOf(src.getAbsolutePath()), src.getAbsolutePath());
+            searchIndex.add(dest.getAbsolutePath(), new WebDAVResource(destPath, src.getName(), src.getType(), 
+                    src.getSize(), src.getCreated(), src.getModified(), src.isDirectory(), src.isEmpty(), 
+                    host.getBaseURI()));
         } catch (IOException e) {
             throw new WebDAVServiceException(format("Failed to move resource ''{0}'' to ''{1}''", 
                     src.getAbsolutePath(), dest.getAbsolutePath()), e);
+        } finally {
+            invalidateListing(src.getAbsolutePath(), true);
+            invalidateListing(ListingCache.parentOf(src.getAbsolutePath()), false);
+            invalidateListing(dest.getAbsolutePath(), false);
+        }
+    }
+    
+    @Override
+    public void copy(WebDAVResource src, WebDAVResource dest, int depth) throws WebDAVServiceException {
+        confirmResourceIsDirectory(dest);
+        
+        String destPath = dest.getAbsolutePath();
+        destPath = (destPath.endsWith("/") ? destPath : destPath + "/") + WebDAVUtil.encodeUrlPath(src.getName());
+        try {
+            
+            // The server does the copying, nothing goes over the wire but the request
+            if(sardine instanceof SardineClient) {
+                ((SardineClient) sardine).copy(buildURI(src.getAbsolutePath()), buildURI(destPath), false, depth);
+            } else if(depth < 0 || !src.isDirectory()) {
+                sardine.copy(buildURI(src.getAbsolutePath()), buildURI(destPath), false);
+            } else {
+                throw new WebDAVServiceException("Copying a directory without its content is not supported");
+            }
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Failed to copy resource ''{0}'' to ''{1}''", 
+                    src.getAbsolutePath(), dest.getAbsolutePath()), e);
+        } finally {
+            invalidateListing(destPath, true);
+            invalidateListing(dest.getAbsolutePath(), false);
         }
     }
     
@@ -180,15 +796,146 @@ public class WebDAVService implements ResourceRepositoryService {
         
         try {
             sardine.createDirectory(buildURI(path));
+            searchIndex.add(parent.getAbsolutePath(), new WebDAVResource(path, WebDAVUtil.decodeUrlPath(dirName), 
+                    "httpd/unix-directory", 0, null, new Date(), true, true, host.getBaseURI()));
+            searchIndex.putListing(path, Collections.emptyList());
         } catch (IOException e) {
             throw new WebDAVServiceException(format("Failed to create directory at ''{0}''", path), e);
+        } finally {
+            invalidateListing(parent.getAbsolutePath(), false);
         }
         
         return path;
     }
     
+    @Override
+    public synchronized Closeable watch(String path, Consumer<List<ResourceChange>> listener) {
+        if(changeTracker == null) {
+            changeTracker = new ChangeTracker(new ChangeTracker.Source() {
+                public ChangeTracker.SyncResult sync(String path, String token) throws WebDAVServiceException {
+                    return syncCollection(path, token);
+                }
+                
+                public String validator(String path) throws WebDAVServiceException {
+                    return directoryValidator(path);
+                }
+                
+                public List<WebDAVResource> list(String path) throws WebDAVServiceException {
+                    return fetchAndCacheListing(path);
+                }
+            }, config.getIntProperty("watch.poll.interval", 15 * 1000));
+        }
+        
+        return changeTracker.watch(path, changes -> {
+            
+            // Reported changes make the cached listing outdated, unless found by listing the directory again
+            if(!changeTracker.isSyncUnsupported(path)) {
+                invalidateListing(path, false);
+            }
+            for (ResourceChange change : changes) {
+                if(change.getKind() == ResourceChange.Kind.DELETED) {
+                    searchIndex.remove(path, change.getPath());
+                    invalidateListing(change.getPath(), true);
+                } else if(change.getResource() != null) {
+                    searchIndex.add(path, change.getResource());
+                }
+            }
+            listener.accept(changes);
+        });
+    }
+    
+    /**
+     * Asks for the children changed since the given token with a <code>sync-collection</code> report
+     * @return <code>null</code> if the host doesn't support it
+     */
+    private ChangeTracker.SyncResult syncCollection(String path, String token) throws WebDAVServiceException {
+        SyncCollectionReport.Result result;
+        try {
+            result = sardine.report(buildURI(path), 0, 
+                    new SyncCollectionReport(token, SyncCollectionReport.SyncLevel.LEVEL_1, SYNC_PROPERTIES, null));
+        } catch (SardineException e) {
+            int status = e.getStatusCode();
+            if(token != null && (status == 403 || status == 409)) {
+                throw new ChangeTracker.InvalidSyncTokenException(
+                        format("Sync token of ''{0}'' rejected", path), e);
+            }
+            if(token == null && SYNC_UNSUPPORTED_STATUSES.contains(status)) {
+                return null;
+            }
+            throw new WebDAVServiceException(format("Syncing ''{0}'' failed", path), e);
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Syncing ''{0}'' failed", path), e);
+        }
+        if(result.getSyncToken() == null) {
+            return null;
+        }
+        
+        Map<String, WebDAVResource> members = new LinkedHashMap<>();
+        for (DavResource res : result.getResources()) {
+            if(!isSameResource(path, res)) {
+                members.put(res.getHref().toString(), res.getStatusCode() == 404 ? 
+                        null : WebDAVUtil.webDAVResourceFromSardineResource(res, host));
+            }
+        }
+        return new ChangeTracker.SyncResult(members, result.getSyncToken());
+    }
+    
+    /**
+     * Returns the ctag of a directory if provided, otherwise its ETag or modification time. Note that 
+     * hosts without ctags don't necessarily change those when the content of a child changes.
+     */
+    private String directoryValidator(String path) throws WebDAVServiceException {
+        List<DavResource> self;
+        try {
+            self = sardine.list(buildURI(path), 0, Collections.singleton(CTAG));
+        } catch (IOException e) {
+            throw new WebDAVServiceException(format("Checking ''{0}'' for changes failed", path), e);
+        }
+        if(self.isEmpty()) {
+            return null;
+        }
+        
+        DavResource dir = self.get(0);
+        String ctag = dir.getCustomPropsNS().get(CTAG);
+        if(ctag != null) {
+            return ctag;
+        }
+        return dir.getEtag() != null ? dir.getEtag() : 
+            dir.getModified() != null ? String.valueOf(dir.getModified().getTime()) : null;
+    }
+    
     @Override
     public void disconnect() throws WebDAVServiceException {
+        synchronized (this) {
+            if(changeTracker != null) {
+                changeTracker.close();
+                changeTracker = null;
+            }
+        }
+        revalidationExecutor.shutdownNow();
+        
+        // Background work still using the store is given some time to stop
+        try {
+            revalidationExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        MetadataStore store;
+        synchronized (listingCache) {
+            store = metadataStore;
+            metadataStore = null;
+        }
+        if(store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, format("Failed to close metadata store of ''{0}''", 
+                        host.getBaseUriString()), e);
+            }
+        }
+        closeChunkStore();
+        
+        listingCache.clear();
         if(sardine != null) {
             try {
                 sardine.shutdown();
@@ -198,10 +945,34 @@ public class WebDAVService implements ResourceRepositoryService {
         }
     }
     
+    /**
+     * Closes the chunk store, leaving downloads still using it to record their chunks in vain
+     */
+    private synchronized void closeChunkStore() {
+        if(chunkStore != null) {
+            try {
+                chunkStore.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close chunk store", e);
+            }
+            chunkStore = null;
+        }
+    }
+    
     @Override
     public ResourceHost getHost() {
         return host;
     }
+    
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+    
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
 
     private String buildURI(String path) {
         return host.getBaseURI() + path;
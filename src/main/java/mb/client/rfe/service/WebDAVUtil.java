@@ -1,11 +1,18 @@
 package mb.client.rfe.service;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import com.github.sardine.DavResource;
 
@@ -21,8 +28,19 @@ public class WebDAVUtil {
      * Converts a {@link DavResource} to a {@link WebDAVResource}
      */
     public static WebDAVResource webDAVResourceFromSardineResource(DavResource sardineRes, ResourceHost host) {
-        return new WebDAVResource(sardineRes.getHref().toString(), sardineRes.getName(), sardineRes.getContentType(), sardineRes.getContentLength(), 
+        WebDAVResource res = new WebDAVResource(sardineRes.getHref().toString(), sardineRes.getName(), sardineRes.getContentType(), sardineRes.getContentLength(), 
                 sardineRes.getCreation(), sardineRes.getModified(), sardineRes.isDirectory(), true, host.getBaseURI());
+        res.setEtag(sardineRes.getEtag());
+        return res;
+    }
+    
+    /**
+     * Passes a list to a consumer in pages of the given size
+     */
+    public static <T> void deliverInPages(List<T> list, int pageSize, Consumer<List<T>> consumer) {
+        for (int i = 0; i < list.size(); i += pageSize) {
+            consumer.accept(list.subList(i, Math.min(i + pageSize, list.size())));
+        }
     }
     
     /**
@@ -44,6 +62,18 @@ public class WebDAVUtil {
         return task;
     }
     
+    /**
+     * Creates a thread factory producing named daemon threads, so that pools don't block application exit
+     */
+    public static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread th = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        };
+    }
+    
     /**
      * Utility to execute a task after a delay
      */
@@ -68,6 +98,17 @@ public class WebDAVUtil {
         return result;
     }
     
+    /**
+     * Strips the wrappers added by futures to get to the actual failure
+     */
+    public static Throwable unwrapAsyncException(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) 
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+    
     /**
      * Converts {@link WebDAVResource} to {@link Media}
      */
@@ -111,6 +152,15 @@ public class WebDAVUtil {
                 .toArray(String[]::new);
     }
     
+    /**
+     * Decodes a URI path segment encoded by {@link #encodeUrlPath(String)} or by a server
+     */
+    public static String decodeUrlPath(String pathSegment) {
+        
+        // Unlike in form data, '+' is no space in a path
+        return URLDecoder.decode(pathSegment.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+    
     /**
      * Properly encodes URI path segments
      */
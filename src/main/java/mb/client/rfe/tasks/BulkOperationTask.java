@@ -0,0 +1,46 @@
+package mb.client.rfe.tasks;
+
+import static java.text.MessageFormat.format;
+
+import java.util.List;
+
+import javafx.concurrent.Task;
+import mb.client.rfe.service.BulkOperation;
+import mb.client.rfe.service.BulkOperation.Result;
+
+public class BulkOperationTask<T> extends Task<List<Result<T>>> {
+    
+    private String title;
+    private BulkOperation<T> operation;
+    private List<T> items;
+    
+    public BulkOperationTask(String title, BulkOperation<T> operation, List<T> items) {
+        this.title = title;
+        this.operation = operation;
+        this.items = items;
+    }
+
+    @Override
+    protected List<Result<T>> call() throws Exception {
+        
+        // Initial status
+        updateTitle(title);
+        updateProgress(0, items.size());
+        
+        int[] counts = new int[2];
+        List<Result<T>> results = operation.execute(items, result -> {
+            counts[0]++;
+            if(!result.isSuccess()) {
+                counts[1]++;
+            }
+            updateProgress(counts[0], items.size());
+            updateMessage(format("{0} of {1} done, {2} failed", counts[0], items.size(), counts[1]));
+        });
+        
+        // Final status
+        updateMessage(counts[1] == 0 ? format("{0} done", items.size()) : 
+            format("{0} done, {1} failed", items.size() - counts[1], counts[1]));
+        updateProgress(1, 1);
+        return results;
+    }
+}
@@ -11,13 +11,12 @@ import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 
-import javafx.concurrent.Task;
 import javafx.util.Callback;
 import mb.client.rfe.model.WebDAVResource;
 import mb.client.rfe.service.ResourceRepositoryService;
 import mb.client.rfe.service.WebDAVServiceException;
 
-public class DownloadFileTask extends Task<File> {
+public class DownloadFileTask extends TransferTask<File> {
     
     private static final Logger LOG = Logger.getLogger(DownloadFileTask.class.getName());
     
@@ -31,7 +30,7 @@ public class DownloadFileTask extends Task<File> {
 
     // TODO Revisit all messages and progress updates (don't do them so often)
     @Override
-    protected File call() throws Exception {
+    protected File transfer() throws Exception {
         
         // Initial status
         updateTitle(MessageFormat.format("Downloading ''{0}''", res));
@@ -39,7 +38,7 @@ public class DownloadFileTask extends Task<File> {
         File file = null;
         try {
             file = service.download(res, new Callback<Integer, Void>() {
-                private int totalByteCount;
+                private long totalByteCount;
                 public Void call(Integer bytesRead) {
                     totalByteCount += bytesRead;
                     updateProgress(totalByteCount, res.getSize());
@@ -0,0 +1,55 @@
+package mb.client.rfe.tasks;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.FolderDownloader;
+import mb.client.rfe.service.FolderDownloader.Summary;
+import mb.client.rfe.service.ResourceRepositoryService;
+
+public class DownloadFolderTask extends TransferTask<Summary> {
+    
+    private ResourceRepositoryService service;
+    private WebDAVResource res;
+    private File targetDir;
+    
+    public DownloadFolderTask(ResourceRepositoryService service, WebDAVResource res, File targetDir) {
+        this.service = service;
+        this.res = res;
+        this.targetDir = targetDir;
+    }
+
+    @Override
+    protected Summary transfer() throws Exception {
+        
+        // Initial status
+        updateTitle(format("Downloading ''{0}''", res));
+        updateMessage("Looking for files");
+        
+        Summary summary = new FolderDownloader(service).download(res, targetDir, s -> {
+            
+            // Progress stays indeterminate until the total is known
+            if(s.isDiscoveryComplete()) {
+                updateProgress(s.getBytesDone(), Math.max(1, s.getDiscoveredBytes()));
+            }
+            
+            long secondsLeft = s.getSecondsLeft();
+            updateMessage(format("{0} of {1}{2} files, {3}/s, {4}", 
+                    s.getDownloaded() + s.getSkipped() + s.getFailures().size(), s.getDiscoveredFiles(), 
+                    s.isDiscoveryComplete() ? "" : "+", 
+                    FileUtils.byteCountToDisplaySize(s.getBytesPerSecond()), 
+                    secondsLeft < 0 ? "estimating time left" : format("{0,number,0}:{1,number,00}:{2,number,00} left", 
+                            secondsLeft / 3600, secondsLeft / 60 % 60, secondsLeft % 60)));
+        });
+        
+        // Final status
+        updateMessage(format("{0} files downloaded, {1} skipped, {2} failed", 
+                summary.getDownloaded(), summary.getSkipped(), summary.getFailures().size()));
+        updateProgress(1, 1);
+        return summary;
+    }
+}
@@ -20,6 +20,7 @@ import javafx.concurrent.Task;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 import mb.client.rfe.model.ResourceTableItem;
+import mb.client.rfe.service.CircuitBreaker;
 import mb.client.rfe.service.ImageThumbService;
 import mb.client.rfe.service.ResourceRepositoryService;
 import mb.client.rfe.service.WebDAVServiceException;
@@ -94,6 +95,12 @@ public class LoadThumbsTask extends Task<Map<ResourceTableItem, Image>> {
                         image = SwingFXUtils.toFXImage(buffImg, null);
                         
                     } catch (WebDAVServiceException e) {
+                        
+                        // No point in asking a host which is down for the remaining thumbs
+                        if(CircuitBreaker.isHostUnavailable(e)) {
+                            LOG.warning(format("Host unavailable, not loading further thumbs: {0}", e.getMessage()));
+                            break;
+                        }
                         LOG.log(Level.WARNING, e.getMessage(), e);
                     } finally {
                         IOUtils.closeQuietly(is);
@@ -0,0 +1,53 @@
+package mb.client.rfe.tasks;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.FolderSync;
+import mb.client.rfe.service.FolderSync.Summary;
+import mb.client.rfe.service.ResourceRepositoryService;
+
+public class SyncFolderTask extends TransferTask<Summary> {
+    
+    private ResourceRepositoryService service;
+    private WebDAVResource res;
+    private File localDir;
+    
+    public SyncFolderTask(ResourceRepositoryService service, WebDAVResource res, File localDir) {
+        this.service = service;
+        this.res = res;
+        this.localDir = localDir;
+    }
+
+    @Override
+    protected Summary transfer() throws Exception {
+        
+        // Initial status
+        updateTitle(format("Syncing ''{0}'' with ''{1}''", res, localDir));
+        updateMessage("Looking for changes");
+        
+        Summary summary = new FolderSync(service).sync(localDir, res, s -> {
+            
+            // Progress stays indeterminate until the changes are known
+            if(s.isScanned()) {
+                updateProgress(s.getBytesDone(), Math.max(1, s.getTotalBytes()));
+                updateMessage(format("{0} uploaded, {1} downloaded, {2} deleted, {3} of {4}", 
+                        s.getUploaded(), s.getDownloaded(), s.getDeletedLocally() + s.getDeletedRemotely(), 
+                        FileUtils.byteCountToDisplaySize(s.getBytesDone()), 
+                        FileUtils.byteCountToDisplaySize(s.getTotalBytes())));
+            }
+        });
+        
+        // Final status
+        updateMessage(format("{0} uploaded, {1} downloaded, {2} deleted, {3} unchanged, {4} conflicts, {5} failed", 
+                summary.getUploaded(), summary.getDownloaded(), 
+                summary.getDeletedLocally() + summary.getDeletedRemotely(), summary.getUnchanged(), 
+                summary.getConflicts().size(), summary.getFailures().size()));
+        updateProgress(1, 1);
+        return summary;
+    }
+}
@@ -0,0 +1,24 @@
+package mb.client.rfe.tasks;
+
+import javafx.concurrent.Task;
+import mb.client.rfe.service.RateLimiter;
+
+/**
+ * A task transferring data, at a rate which can be limited while it runs. All transfers made by
+ * the task, including those it hands over to other threads, share its rate limiter.
+ */
+public abstract class TransferTask<V> extends Task<V> {
+    
+    private final RateLimiter rateLimiter = new RateLimiter("task", 0);
+    
+    @Override
+    protected final V call() throws Exception {
+        return RateLimiter.withTask(rateLimiter, this::transfer);
+    }
+    
+    protected abstract V transfer() throws Exception;
+    
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+}
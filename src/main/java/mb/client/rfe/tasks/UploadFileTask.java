@@ -5,11 +5,13 @@ import java.text.MessageFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javafx.concurrent.Task;
+import org.apache.commons.io.FileUtils;
+
+import javafx.util.Callback;
 import mb.client.rfe.model.WebDAVResource;
 import mb.client.rfe.service.ResourceRepositoryService;
 
-public class UploadFileTask extends Task<File> {
+public class UploadFileTask extends TransferTask<File> {
     
     private static final Logger LOG = Logger.getLogger(UploadFileTask.class.getName());
     
@@ -24,16 +26,35 @@ public class UploadFileTask extends Task<File> {
     }
 
     @Override
-    protected File call() throws Exception {
+    protected File transfer() throws Exception {
         
         // Initial status
         updateTitle(MessageFormat.format("Uploading ''{0}''", file));
         
+        long totalSize = file.length();
+        long startTime = System.nanoTime();
         String path;
         try {
-            path = service.upload(res, file);
+            path = service.upload(res, file, new Callback<Integer, Void>() {
+                private long totalByteCount;
+                public Void call(Integer bytesSent) {
+                    totalByteCount += bytesSent;
+                    updateProgress(totalByteCount, totalSize);
+                    
+                    long elapsedMs = Math.max(1, (System.nanoTime() - startTime) / 1_000_000);
+                    updateMessage(MessageFormat.format("{0} of {1} uploaded ({2}/s)", 
+                            FileUtils.byteCountToDisplaySize(totalByteCount), 
+                            FileUtils.byteCountToDisplaySize(totalSize), 
+                            FileUtils.byteCountToDisplaySize(totalByteCount * 1000 / elapsedMs)));
+                    return null;
+                }
+            });
         } catch (Exception e) {
-            LOG.log(Level.SEVERE, "Error uploading file", e);
+            if(isCancelled()) {
+                LOG.info(MessageFormat.format("Upload of ''{0}'' cancelled", file));
+            } else {
+                LOG.log(Level.SEVERE, "Error uploading file", e);
+            }
             updateProgress(1, 1);
             return null;
         }
@@ -0,0 +1,49 @@
+package mb.client.rfe.tasks;
+
+import static java.text.MessageFormat.format;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.FolderUploader;
+import mb.client.rfe.service.FolderUploader.Summary;
+import mb.client.rfe.service.ResourceRepositoryService;
+
+public class UploadFolderTask extends TransferTask<Summary> {
+
+    private ResourceRepositoryService service;
+    private WebDAVResource res;
+    private List<File> files;
+
+    public UploadFolderTask(ResourceRepositoryService service, WebDAVResource res, List<File> files) {
+        this.service = service;
+        this.res = res;
+        this.files = files;
+    }
+
+    @Override
+    protected Summary transfer() throws Exception {
+
+        // Initial status
+        updateTitle(files.size() == 1 ? format("Uploading ''{0}''", files.get(0)) :
+            format("Uploading {0} items", files.size()));
+        updateMessage("Scanning local files");
+
+        Summary summary = new FolderUploader(service).upload(res, files, s -> {
+            updateProgress(s.getBytesDone(), Math.max(1, s.getTotalBytes()));
+            updateMessage(format("{0} of {1} files uploaded, {2} skipped, {3} failed ({4} of {5})",
+                    s.getUploaded(), s.getTotalFiles(), s.getSkipped(), s.getFailures().size(),
+                    FileUtils.byteCountToDisplaySize(s.getBytesDone()),
+                    FileUtils.byteCountToDisplaySize(s.getTotalBytes())));
+        });
+
+        // Final status
+        updateMessage(format("{0} files uploaded, {1} skipped, {2} failed",
+                summary.getUploaded(), summary.getSkipped(), summary.getFailures().size()));
+        updateProgress(1, 1);
+        return summary;
+    }
+}
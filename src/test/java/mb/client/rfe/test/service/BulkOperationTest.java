@@ -0,0 +1,75 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.service.BulkOperation;
+import mb.client.rfe.service.BulkOperation.Result;
+import mb.client.rfe.service.WebDAVServiceException;
+
+public class BulkOperationTest {
+    
+    @Test
+    public void verifyExecute() throws Exception {
+        
+        // Create test data, every 7th item fails
+        ResourceHost host = new ResourceHost(URI.create("https://bulk.dummy.com"), "/", "user", "password");
+        List<Integer> items = IntStream.rangeClosed(1, 50).boxed().collect(Collectors.toList());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        
+        BulkOperation<Integer> operation = new BulkOperation<>(host, 3, item -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            if(item % 7 == 0) {
+                throw new WebDAVServiceException("Failed " + item);
+            }
+        });
+        
+        // Execute and verify
+        AtomicInteger notified = new AtomicInteger();
+        List<Result<Integer>> results = operation.execute(items, result -> notified.incrementAndGet());
+        
+        assertEquals("Result per item", items.size(), results.size());
+        assertEquals("Listener notified per item", items.size(), notified.get());
+        assertEquals("Results in item order", Integer.valueOf(10), results.get(9).getItem());
+        assertFalse("Failure reported", results.get(6).isSuccess());
+        assertTrue("Others not affected", results.get(7).isSuccess());
+        assertEquals("Failure count", 7, results.stream().filter(r -> !r.isSuccess()).count());
+        assertTrue("Concurrency bounded", maxRunning.get() <= 3);
+    }
+    
+    @Test
+    public void verifyRuntimeExceptionReported() throws Exception {
+        ResourceHost host = new ResourceHost(URI.create("https://bulk.dummy.com"), "/", "user", "password");
+        BulkOperation<Integer> operation = new BulkOperation<>(host, 2, item -> {
+            if(item == 2) {
+                throw new IllegalArgumentException("Bad item " + item);
+            }
+        });
+        
+        // Execute and verify
+        List<Result<Integer>> results = operation.execute(List.of(1, 2, 3), result -> {});
+        
+        assertEquals("Result per item", 3, results.size());
+        assertFalse("Failure reported", results.get(1).isSuccess());
+        assertTrue("Cause kept", results.get(1).getException().getCause() instanceof IllegalArgumentException);
+        assertTrue("Others not affected", results.get(0).isSuccess() && results.get(2).isSuccess());
+    }
+}
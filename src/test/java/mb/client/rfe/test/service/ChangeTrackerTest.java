@@ -0,0 +1,182 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import mb.client.rfe.model.ResourceChange;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.ChangeTracker;
+import mb.client.rfe.service.ChangeTracker.InvalidSyncTokenException;
+import mb.client.rfe.service.ChangeTracker.SyncResult;
+import mb.client.rfe.service.WebDAVServiceException;
+
+public class ChangeTrackerTest {
+
+    private static final URI BASE_URI = URI.create("http://localhost:8080");
+
+    @Test
+    public void verifySyncCollection() throws Exception {
+        FakeSource source = new FakeSource(true);
+        source.members.put("/dir/a.txt", resource("/dir/a.txt", "1"));
+        source.members.put("/dir/b.txt", resource("/dir/b.txt", "1"));
+
+        ChangeTracker tracker = new ChangeTracker(source, 60 * 60 * 1000);
+        try {
+            List<ResourceChange> changes = new ArrayList<>();
+            Closeable watch = tracker.watch("/dir/", changes::addAll);
+            source.awaitCall();
+            assertTrue("Baseline not reported", changes.isEmpty());
+
+            // Only the changes since the last token are transferred
+            source.members.clear();
+            source.members.put("/dir/a.txt", null);
+            source.members.put("/dir/c.txt", resource("/dir/c.txt", "1"));
+            tracker.poll();
+            assertEquals("Changes", Arrays.asList("DELETED /dir/a.txt", "CREATED /dir/c.txt"), describe(changes));
+            assertEquals("Token sent", "token-0", source.lastToken);
+
+            // Expired token, all members compared with the known ones
+            changes.clear();
+            source.tokenExpired = true;
+            source.members.clear();
+            source.members.put("/dir/b.txt", resource("/dir/b.txt", "2"));
+            source.members.put("/dir/c.txt", resource("/dir/c.txt", "1"));
+            tracker.poll();
+            assertEquals("Changes after resync", Arrays.asList("MODIFIED /dir/b.txt"), describe(changes));
+
+            // Nothing reported once closed
+            changes.clear();
+            watch.close();
+            source.members.put("/dir/d.txt", resource("/dir/d.txt", "1"));
+            tracker.poll();
+            assertTrue("Unwatched", changes.isEmpty());
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void verifyListingComparison() throws Exception {
+        FakeSource source = new FakeSource(false);
+        source.members.put("/dir/a.txt", resource("/dir/a.txt", "1"));
+
+        ChangeTracker tracker = new ChangeTracker(source, 60 * 60 * 1000);
+        try {
+            List<ResourceChange> changes = new ArrayList<>();
+            tracker.watch("/dir", changes::addAll);
+            source.awaitCall();
+            assertTrue("Fallen back", tracker.isSyncUnsupported("/dir/"));
+            assertEquals("Baseline listed", 1, source.listCount);
+
+            // Directory unchanged, not listed again
+            tracker.poll();
+            assertEquals("Not listed", 1, source.listCount);
+            assertTrue("No changes", changes.isEmpty());
+
+            source.validator = "v2";
+            source.members.put("/dir/a.txt", resource("/dir/a.txt", "2"));
+            source.members.put("/dir/b.txt", resource("/dir/b.txt", "1"));
+            tracker.poll();
+            assertEquals("Listed", 2, source.listCount);
+            assertEquals("Changes", Arrays.asList("MODIFIED /dir/a.txt", "CREATED /dir/b.txt"), describe(changes));
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void verifyFallbackPerDirectory() throws Exception {
+        FakeSource source = new FakeSource(true);
+        source.unsupportedPath = "/other/";
+        source.members.put("/dir/a.txt", resource("/dir/a.txt", "1"));
+
+        ChangeTracker tracker = new ChangeTracker(source, 60 * 60 * 1000);
+        try {
+            tracker.watch("/dir/", changes -> {});
+            tracker.watch("/other/", changes -> {});
+            tracker.poll();
+
+            // Only the directory without support compares listings
+            assertTrue("Fallen back", tracker.isSyncUnsupported("/other"));
+            assertFalse("Still synced", tracker.isSyncUnsupported("/dir/"));
+            assertFalse("Not watched", tracker.isSyncUnsupported("/unknown/"));
+        } finally {
+            tracker.close();
+        }
+    }
+
+    private static List<String> describe(List<ResourceChange> changes) {
+        return changes.stream().map(ResourceChange::toString).sorted((a, b) -> a.substring(a.indexOf(' '))
+                .compareTo(b.substring(b.indexOf(' ')))).collect(Collectors.toList());
+    }
+
+    private static WebDAVResource resource(String path, String etag) {
+        WebDAVResource res = new WebDAVResource(path, path.substring(path.lastIndexOf('/') + 1), "text/plain", 1,
+                null, null, false, false, BASE_URI);
+        res.setEtag(etag);
+        return res;
+    }
+
+    private static class FakeSource implements ChangeTracker.Source {
+
+        private final boolean syncSupported;
+        private final Map<String, WebDAVResource> members = new LinkedHashMap<>();
+        private final Semaphore calls = new Semaphore(0);
+        private volatile String unsupportedPath;
+        private volatile String lastToken;
+        private volatile boolean tokenExpired;
+        private volatile String validator = "v1";
+        private volatile int listCount;
+        private int tokens;
+
+        private FakeSource(boolean syncSupported) {
+            this.syncSupported = syncSupported;
+        }
+
+        private void awaitCall() throws InterruptedException {
+            assertTrue("Baseline taken", calls.tryAcquire(10, TimeUnit.SECONDS));
+        }
+
+        public synchronized SyncResult sync(String path, String token) throws WebDAVServiceException {
+            try {
+                if(!syncSupported || path.equals(unsupportedPath)) {
+                    return null;
+                }
+                if(token != null && tokenExpired) {
+                    tokenExpired = false;
+                    throw new InvalidSyncTokenException("Expired", null);
+                }
+                lastToken = token;
+                return new SyncResult(new LinkedHashMap<>(members), "token-" + tokens++);
+            } finally {
+                if(syncSupported) {
+                    calls.release();
+                }
+            }
+        }
+
+        public String validator(String path) {
+            return validator;
+        }
+
+        public synchronized List<WebDAVResource> list(String path) {
+            listCount++;
+            calls.release();
+            return new ArrayList<>(members.values());
+        }
+    }
+}
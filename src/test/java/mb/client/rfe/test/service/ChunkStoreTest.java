@@ -0,0 +1,139 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.service.ByteRange;
+import mb.client.rfe.service.ChunkStore;
+
+public class ChunkStoreTest {
+    
+    @Test
+    public void verifyAssembly() throws Exception {
+        Path dir = Files.createTempDirectory("chunks");
+        try {
+            
+            // Two versions of a file, the second with a few bytes inserted at the front
+            byte[] content = new byte[8 * 1024 * 1024];
+            new Random(42).nextBytes(content);
+            byte[] changed = new byte[content.length + 100];
+            System.arraycopy(content, 0, changed, 100, content.length);
+            Path v1 = Files.write(dir.resolve("v1"), content);
+            Path v2 = Files.write(dir.resolve("v2"), changed);
+            
+            ChunkStore store = ChunkStore.open(dir.resolve("chunks.db").toFile());
+            assertNull("Weak ETag", ChunkStore.versionOf("http://host/file", "W/\"1\"", content.length));
+            String version1 = ChunkStore.versionOf("http://host/file", "\"1\"", content.length);
+            String version2 = ChunkStore.versionOf("http://host/file", "\"2\"", changed.length);
+            store.record(version1, v1.toFile());
+            store.record(version2, v2.toFile());
+            assertNull("Unknown version", store.assemble("unknown", dir.resolve("none").toFile()));
+            
+            // Known version assembled from disk entirely
+            Path target = dir.resolve("target");
+            List<ByteRange> missing = store.assemble(version2, target.toFile());
+            assertTrue("Nothing missing", missing.isEmpty());
+            assertArrayEquals("Assembled", changed, Files.readAllBytes(target));
+            
+            // Without the second file, only the chunks around the insertion are missing
+            Files.delete(v2);
+            Files.delete(target);
+            missing = store.assemble(version2, target.toFile());
+            assertEquals("One range missing", 1, missing.size());
+            assertEquals("Starts at the insertion", 0, missing.get(0).getStart());
+            assertTrue("Most content reused", missing.get(0).length() < content.length / 2);
+            assertFalse("Missing range not verified", store.verify(version2, target.toFile(), missing));
+            
+            // Once fetched, the missing range checks out
+            Files.write(dir.resolve("fetched"), changed);
+            assertTrue("Fetched range verified", store.verify(version2, dir.resolve("fetched").toFile(), missing));
+            
+            // Files changed since they were recorded are no longer used
+            Files.write(v1, changed);
+            assertEquals("Versions", 2, store.size());
+            missing = store.assemble(version1, target.toFile());
+            assertEquals("All missing", content.length, missing.get(0).length());
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyRelocate() throws Exception {
+        Path dir = Files.createTempDirectory("chunks");
+        try {
+            byte[] content = new byte[2 * 1024 * 1024];
+            new Random(42).nextBytes(content);
+            Path source = Files.write(dir.resolve("source"), content);
+            
+            ChunkStore store = ChunkStore.open(dir.resolve("chunks.db").toFile());
+            try {
+                String version = ChunkStore.versionOf("http://host/file", "\"1\"", content.length);
+                assertFalse("Unknown version", store.relocate(version, source.toFile()));
+                store.record(version, source.toFile());
+                
+                // Assembled copy takes over once the recorded file is gone
+                Path copy = dir.resolve("copy");
+                assertTrue("Nothing missing", store.assemble(version, copy.toFile()).isEmpty());
+                assertTrue("Relocated", store.relocate(version, copy.toFile()));
+                Files.delete(source);
+                Path target = dir.resolve("target");
+                assertTrue("Assembled from copy", store.assemble(version, target.toFile()).isEmpty());
+                assertArrayEquals("Assembled", content, Files.readAllBytes(target));
+            } finally {
+                store.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyStaleDroppedOnOpen() throws Exception {
+        Path dir = Files.createTempDirectory("chunks");
+        try {
+            byte[] content = new byte[1024];
+            new Random(42).nextBytes(content);
+            Path kept = Files.write(dir.resolve("kept"), content);
+            Path changed = Files.write(dir.resolve("changed"), content);
+            File file = dir.resolve("chunks.db").toFile();
+            
+            ChunkStore store = ChunkStore.open(file);
+            String keptVersion = ChunkStore.versionOf("http://host/kept", "\"1\"", content.length);
+            String changedVersion = ChunkStore.versionOf("http://host/changed", "\"1\"", content.length);
+            store.record(keptVersion, kept.toFile());
+            store.record(changedVersion, changed.toFile());
+            
+            // Still open for the service which didn't close it
+            ChunkStore shared = ChunkStore.open(file);
+            assertSame("Store shared", store, shared);
+            shared.close();
+            assertEquals("Usable after closed by another service", 2, store.size());
+            store.close();
+            
+            // Reopen after one of the files changed
+            Files.write(changed, new byte[10]);
+            ChunkStore reopened = ChunkStore.open(file);
+            assertNotSame("Closed by the last service", store, reopened);
+            assertTrue("Manifest of unchanged file kept", reopened.contains(keptVersion));
+            assertFalse("Manifest of changed file dropped", reopened.contains(changedVersion));
+            reopened.close();
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.sardine.impl.SardineException;
+import com.sun.net.httpserver.HttpServer;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.CircuitBreaker;
+import mb.client.rfe.service.CircuitBreaker.HostUnavailableException;
+import mb.client.rfe.service.CircuitBreaker.State;
+import mb.client.rfe.service.MultistatusParser;
+import mb.client.rfe.service.SardineClient;
+
+public class CircuitBreakerTest {
+    
+    @Test
+    public void verifyBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("host", 3, 200, 1000);
+        
+        // Opens after consecutive failures only
+        for (int i = 0; i < 2; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        breaker.acquire();
+        breaker.onSuccess();
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        assertEquals("Opened", State.OPEN, breaker.getState());
+        assertUnavailable(breaker);
+        
+        // A single probe once open for long enough, a failed one opening it again
+        Thread.sleep(250);
+        breaker.acquire();
+        assertEquals("Probing", State.HALF_OPEN, breaker.getState());
+        assertUnavailable(breaker);
+        breaker.onFailure();
+        assertEquals("Opened again", State.OPEN, breaker.getState());
+        
+        // Open for twice as long now
+        Thread.sleep(250);
+        assertUnavailable(breaker);
+        Thread.sleep(200);
+        breaker.acquire();
+        breaker.onSuccess();
+        assertEquals("Closed", State.CLOSED, breaker.getState());
+    }
+    
+    @Test
+    public void verifyNeutralOutcome() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("host", 1, 200, 1000);
+        breaker.acquire();
+        breaker.onFailure();
+        Thread.sleep(250);
+        
+        // A probe telling nothing about the host lets another request probe it
+        breaker.acquire();
+        breaker.onNeutral();
+        assertEquals("Still probing", State.HALF_OPEN, breaker.getState());
+        breaker.acquire();
+        breaker.onSuccess();
+        assertEquals("Closed", State.CLOSED, breaker.getState());
+    }
+    
+    @Test
+    public void verifyRetries() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            
+            // Every other request fails
+            int status = requests.incrementAndGet() % 2 == 1 ? 503 : 200;
+            exchange.sendResponseHeaders(status, 1);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(1);
+            }
+        });
+        server.start();
+        
+        String uri = "http://localhost:" + server.getAddress().getPort() + "/file";
+        SardineClient client = new SardineClient("user", "pass");
+        CircuitBreaker breaker = new CircuitBreaker("host", 5, 60 * 1000, 60 * 1000);
+        client.setCircuitBreaker(breaker);
+        try {
+            
+            // Reads are retried
+            try (InputStream is = client.get(uri)) {
+                assertEquals("Content", 1, is.read());
+            }
+            assertEquals("Retried", 2, requests.get());
+            
+            // Writes are not
+            try {
+                client.put(uri, new byte[] {1});
+                fail("Not retried");
+            } catch (SardineException e) {
+                assertEquals("Status", 503, e.getStatusCode());
+            }
+            assertEquals("Single request", 3, requests.get());
+            assertEquals("Still closed", State.CLOSED, breaker.getState());
+        } finally {
+            client.shutdown();
+            server.stop(0);
+        }
+    }
+    
+    @Test
+    public void verifyStreamedListingFailures() throws Exception {
+        String response = "<D:response><D:href>/dir/file.txt</D:href><D:propstat><D:prop>" +
+                "<D:getcontentlength>42</D:getcontentlength></D:prop>" +
+                "<D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>";
+        byte[] partial = ("<?xml version=\"1.0\" encoding=\"utf-8\"?><D:multistatus xmlns:D=\"DAV:\">" + 
+                response).getBytes(StandardCharsets.UTF_8);
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            if(exchange.getRequestURI().getPath().startsWith("/broken")) {
+                
+                // Connection lost halfway through the listing
+                exchange.sendResponseHeaders(207, partial.length + 1000);
+                exchange.getResponseBody().write(partial);
+                exchange.getResponseBody().flush();
+                throw new IOException("Connection lost");
+            }
+            byte[] body = "<not a multistatus".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(207, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        
+        String baseUri = "http://localhost:" + server.getAddress().getPort();
+        ResourceHost host = new ResourceHost(URI.create(baseUri), "/", "user", "pass");
+        SardineClient client = new SardineClient("user", "pass");
+        CircuitBreaker breaker = new CircuitBreaker("host", 2, 60 * 1000, 60 * 1000);
+        client.setCircuitBreaker(breaker);
+        try {
+            
+            // Resources already passed on aren't listed again
+            List<WebDAVResource> resources = new ArrayList<>();
+            try {
+                client.propfind(baseUri + "/broken/", 1, true, new MultistatusParser(host, resources::add));
+                fail("Failure reported");
+            } catch (IOException e) {
+                assertEquals("Not retried", 1, requests.get());
+                assertTrue("Nothing passed on twice", resources.size() <= 1);
+            }
+            
+            // Invalid listings don't count as failures of the host
+            for (int i = 0; i < 2; i++) {
+                try {
+                    client.propfind(baseUri + "/invalid/", 1, true, new MultistatusParser(host, res -> {}));
+                    fail("Failure reported");
+                } catch (IOException e) {
+                }
+            }
+            assertEquals("Invalid listings not retried", 3, requests.get());
+            assertEquals("Still closed", State.CLOSED, breaker.getState());
+        } finally {
+            client.shutdown();
+            server.stop(0);
+        }
+    }
+    
+    private static void assertUnavailable(CircuitBreaker breaker) {
+        try {
+            breaker.acquire();
+            fail("Host unavailable");
+        } catch (HostUnavailableException e) {
+            assertTrue("Host unavailable", CircuitBreaker.isHostUnavailable(e));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.model.ResourceChange;
+import mb.client.rfe.model.ResourceChange.Kind;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.DirectoryWatcher;
+
+public class DirectoryWatcherTest {
+
+    @Test
+    public void verifyCoalescedChanges() throws Exception {
+        Path dir = Files.createTempDirectory("watch");
+        DirectoryWatcher watcher = new DirectoryWatcher(
+                path -> Files.exists(path) ? new WebDAVResource(path.getFileName().toString(), path.toString()) : null,
+                500);
+        try {
+            BlockingQueue<List<ResourceChange>> batches = new LinkedBlockingQueue<>();
+            Closeable watch = watcher.watch(dir, batches::add);
+
+            // Many writes to one file end up in few changes
+            Path file = dir.resolve("file.txt");
+            for (int i = 0; i < 50; i++) {
+                Files.write(file, new byte[i]);
+            }
+            List<ResourceChange> changes = awaitChanges(batches);
+            assertTrue("Coalesced", changes.size() < 25);
+            assertEquals("Created", Kind.CREATED, changes.get(0).getKind());
+            assertEquals("Path", file.toString(), changes.get(0).getPath());
+
+            // Short-lived files are not reported
+            Path temp = Files.createFile(dir.resolve("temp"));
+            Files.delete(temp);
+            Files.delete(file);
+            changes = awaitChanges(batches);
+            assertEquals("Deletion only", 1, changes.size());
+            assertEquals("Deleted", Kind.DELETED, changes.get(0).getKind());
+
+            // Nothing reported once closed
+            watch.close();
+            assertEquals("Unwatched", 0, watcher.getWatchedCount());
+            Files.createFile(file);
+            assertNull("No changes", batches.poll(1, TimeUnit.SECONDS));
+        } finally {
+            watcher.close();
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    /**
+     * Collects the changes reported until none are reported for a while
+     */
+    private static List<ResourceChange> awaitChanges(BlockingQueue<List<ResourceChange>> batches)
+            throws InterruptedException {
+        List<ResourceChange> changes = new ArrayList<>();
+        List<ResourceChange> batch = batches.poll(10, TimeUnit.SECONDS);
+        while (batch != null) {
+            changes.addAll(batch);
+            batch = batches.poll(2, TimeUnit.SECONDS);
+        }
+        assertFalse("Changes reported", changes.isEmpty());
+        return changes;
+    }
+}
@@ -0,0 +1,55 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.FolderDownloader;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.ResourceRepositoryService;
+
+public class FolderDownloaderTest {
+    
+    @Test
+    public void verifyDownload() throws Exception {
+        
+        // Create test tree with nested and empty directories
+        Path root = Files.createTempDirectory("download");
+        try {
+            Path src = Files.createDirectories(root.resolve("project/src/main"));
+            Files.write(src.resolve("Main.java"), new byte[] {1, 2, 3});
+            Files.write(root.resolve("project/README"), new byte[] {4, 5});
+            Files.createDirectories(root.resolve("project/empty"));
+            Path dest = Files.createDirectory(root.resolve("dest"));
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource dir = service.list(root.resolve("project").toString(), 0).get(0);
+            FolderDownloader downloader = new FolderDownloader(service, 2);
+            
+            // Execute and verify
+            FolderDownloader.Summary summary = downloader.download(dir, dest.toFile(), s -> {});
+            assertTrue("Discovery complete", summary.isDiscoveryComplete());
+            assertEquals("All files found", 2, summary.getDiscoveredFiles());
+            assertEquals("All files downloaded", 2, summary.getDownloaded());
+            assertTrue("No failures", summary.getFailures().isEmpty());
+            assertArrayEquals("Nested file downloaded", new byte[] {1, 2, 3}, 
+                    Files.readAllBytes(dest.resolve("project/src/main/Main.java")));
+            assertTrue("Empty directory created", Files.isDirectory(dest.resolve("project/empty")));
+            
+            // Running again skips what's already there
+            summary = downloader.download(dir, dest.toFile(), s -> {});
+            assertEquals("Nothing downloaded", 0, summary.getDownloaded());
+            assertEquals("All files skipped", 2, summary.getSkipped());
+            assertEquals("All bytes done", 5, summary.getBytesDone());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+}
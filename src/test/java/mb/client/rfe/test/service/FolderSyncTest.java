@@ -0,0 +1,133 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.github.sardine.DavResource;
+import com.github.sardine.impl.SardineException;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.FolderSync;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.ResourceRepositoryService;
+import mb.client.rfe.service.WebDAVService;
+
+public class FolderSyncTest {
+    
+    @Test
+    public void verifySync() throws Exception {
+        
+        // Create test trees with different content on each side
+        Path root = Files.createTempDirectory("sync");
+        try {
+            Path local = Files.createDirectories(root.resolve("local/dir"));
+            Files.write(root.resolve("local/a.txt"), new byte[] {1, 2, 3});
+            Files.write(local.resolve("b.txt"), new byte[] {4, 5});
+            Path remote = Files.createDirectories(root.resolve("remote/empty"));
+            Files.write(root.resolve("remote/c.txt"), new byte[] {6});
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource dir = service.list(root.resolve("remote").toString(), 0).get(0);
+            FolderSync sync = new FolderSync(service, root.resolve("state").toFile());
+            
+            // Execute and verify both sides end up with everything
+            FolderSync.Summary summary = sync.sync(root.resolve("local").toFile(), dir, s -> {});
+            assertTrue("No failures", summary.getFailures().isEmpty());
+            assertEquals("Files uploaded", 2, summary.getUploaded());
+            assertEquals("Files downloaded", 1, summary.getDownloaded());
+            assertArrayEquals("Nested file uploaded", new byte[] {4, 5}, 
+                    Files.readAllBytes(root.resolve("remote/dir/b.txt")));
+            assertArrayEquals("File downloaded", new byte[] {6}, Files.readAllBytes(root.resolve("local/c.txt")));
+            assertTrue("Empty directory created", Files.isDirectory(root.resolve("local/empty")));
+            
+            // Running again finds nothing to do
+            summary = sync.sync(root.resolve("local").toFile(), dir, s -> {});
+            assertEquals("Nothing transferred", 0, summary.getUploaded() + summary.getDownloaded());
+            assertEquals("All files unchanged", 3, summary.getUnchanged());
+            
+            // Changes and deletions on either side are carried over
+            Files.write(root.resolve("local/a.txt"), new byte[] {1, 2, 3, 4});
+            Files.delete(root.resolve("remote/c.txt"));
+            FileUtils.deleteDirectory(root.resolve("local/empty").toFile());
+            summary = sync.sync(root.resolve("local").toFile(), dir, s -> {});
+            assertTrue("No failures", summary.getFailures().isEmpty());
+            assertEquals("Changed file uploaded", 1, summary.getUploaded());
+            assertArrayEquals("Changed content", new byte[] {1, 2, 3, 4}, 
+                    Files.readAllBytes(root.resolve("remote/a.txt")));
+            assertEquals("Local deletion", 1, summary.getDeletedLocally());
+            assertFalse("Deleted locally", Files.exists(root.resolve("local/c.txt")));
+            assertEquals("Remote deletion", 1, summary.getDeletedRemotely());
+            assertFalse("Deleted remotely", Files.exists(root.resolve("remote/empty")));
+            
+            // Files changed on both sides are left alone
+            Files.write(root.resolve("local/dir/b.txt"), new byte[] {7, 8});
+            Files.write(root.resolve("remote/dir/b.txt"), new byte[] {8, 9});
+            Files.setLastModifiedTime(root.resolve("remote/dir/b.txt"), FileTime.fromMillis(1000));
+            summary = sync.sync(root.resolve("local").toFile(), dir, s -> {});
+            assertEquals("Conflict", 1, summary.getConflicts().size());
+            assertTrue("Conflicting file", summary.getConflicts().containsKey("dir/b.txt"));
+            assertArrayEquals("Local content kept", new byte[] {7, 8}, 
+                    Files.readAllBytes(root.resolve("local/dir/b.txt")));
+            assertArrayEquals("Remote content kept", new byte[] {8, 9}, 
+                    Files.readAllBytes(root.resolve("remote/dir/b.txt")));
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyStaleListingIgnored() throws Exception {
+        Path root = Files.createTempDirectory("sync");
+        try {
+            
+            // Host walked one directory at a time, as it doesn't do depth infinity listings
+            ResourceHost host = new ResourceHost(URI.create("https://sync.dummy.com"), "/", "user", "password");
+            MockSardineImpl mock = new MockSardineImpl() {
+                public List<DavResource> list(String url, int depth) throws IOException {
+                    if(depth < 0) {
+                        throw new SardineException("Depth infinity not supported", 501, "Not Implemented");
+                    }
+                    return super.list(url, depth);
+                }
+            };
+            WebDAVService service = new WebDAVService(host);
+            Field field = WebDAVService.class.getDeclaredField("sardine");
+            field.setAccessible(true);
+            field.set(service, mock);
+            
+            // Listing cached before the file was deleted remotely
+            mock.setDavResListToReturn(Arrays.asList(
+                    ServiceTestUtil.createDavResource("/sync/", null, true),
+                    ServiceTestUtil.createDavResource("/sync/gone.txt", 3, new Date())));
+            assertEquals("Cached listing has the file", 1, service.list("/sync/").size());
+            mock.setDavResListToReturn(Arrays.asList(ServiceTestUtil.createDavResource("/sync/", null, true)));
+            
+            // Execute and verify
+            WebDAVResource dir = new WebDAVResource("/sync/", "sync", null, 0, null, null, true, false, 
+                    host.getBaseURI());
+            FolderSync sync = new FolderSync(service, root.resolve("state").toFile());
+            FolderSync.Summary summary = sync.sync(root.resolve("local").toFile(), dir, s -> {});
+            assertTrue("No failures", summary.getFailures().isEmpty());
+            assertEquals("Nothing downloaded", 0, summary.getDownloaded());
+            assertFalse("Deleted file not synced", Files.exists(root.resolve("local/gone.txt")));
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.FolderUploader;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.ResourceRepositoryService;
+import mb.client.rfe.service.WebDAVService;
+
+public class FolderUploaderTest {
+    
+    @Test
+    public void verifyUpload() throws Exception {
+        
+        // Create test tree with nested and empty directories
+        Path root = Files.createTempDirectory("upload");
+        try {
+            Path src = Files.createDirectories(root.resolve("photos/2020/summer"));
+            Files.write(src.resolve("a.jpg"), new byte[] {1, 2, 3});
+            Files.write(root.resolve("photos/b.jpg"), new byte[] {4, 5});
+            Files.createDirectories(root.resolve("photos/empty"));
+            Path dest = Files.createDirectory(root.resolve("dest"));
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource destRes = service.list(dest.toString(), 0).get(0);
+            FolderUploader uploader = new FolderUploader(service);
+            
+            // Execute and verify
+            FolderUploader.Summary summary = uploader.upload(destRes, 
+                    Collections.singletonList(root.resolve("photos").toFile()), s -> {});
+            assertEquals("All files uploaded", 2, summary.getUploaded());
+            assertTrue("No failures", summary.getFailures().isEmpty());
+            assertEquals("All bytes done", 5, summary.getBytesDone());
+            assertArrayEquals("Nested file uploaded", new byte[] {1, 2, 3}, 
+                    Files.readAllBytes(dest.resolve("photos/2020/summer/a.jpg")));
+            assertTrue("Empty directory created", Files.isDirectory(dest.resolve("photos/empty")));
+            assertEquals("Top level directory reported", 
+                    Collections.singletonList(dest.resolve("photos").toString()), summary.getTopLevelPaths());
+            
+            // Running again skips what's already there
+            summary = uploader.upload(destRes, Collections.singletonList(root.resolve("photos").toFile()), s -> {});
+            assertEquals("Nothing uploaded", 0, summary.getUploaded());
+            assertEquals("All files skipped", 2, summary.getSkipped());
+            assertTrue("No failures", summary.getFailures().isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyStaleListingIgnored() throws Exception {
+        Path root = Files.createTempDirectory("upload");
+        try {
+            Path file = Files.write(root.resolve("a.jpg"), new byte[] {1, 2, 3});
+            
+            // Listing cached while the file was there, deleted remotely since
+            ResourceHost host = new ResourceHost(URI.create("https://www.dummy.com"), "/", "user", "password");
+            MockSardineImpl mock = new MockSardineImpl();
+            mock.setDavResListToReturn(Arrays.asList(
+                    ServiceTestUtil.createDavResource("/dest/", null, true),
+                    ServiceTestUtil.createDavResource("/dest/a.jpg", 3, new Date(System.currentTimeMillis() + 60000))));
+            WebDAVService service = new WebDAVService(host);
+            Field field = WebDAVService.class.getDeclaredField("sardine");
+            field.setAccessible(true);
+            field.set(service, mock);
+            assertEquals("Cached listing has the file", 1, service.list("/dest/").size());
+            mock.setDavResListToReturn(Arrays.asList(ServiceTestUtil.createDavResource("/dest/", null, true)));
+            
+            // Execute and verify
+            WebDAVResource destRes = new WebDAVResource("/dest/", "dest", null, 0, null, null, true, false, 
+                    host.getBaseURI());
+            FolderUploader.Summary summary = new FolderUploader(service).upload(destRes, 
+                    Collections.singletonList(file.toFile()), s -> {});
+            assertEquals("File uploaded", 1, summary.getUploaded());
+            assertEquals("Nothing skipped", 0, summary.getSkipped());
+            assertArrayEquals("Content uploaded", new byte[] {1, 2, 3}, mock.getContentUploaded());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+}
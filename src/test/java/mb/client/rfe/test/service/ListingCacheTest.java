@@ -0,0 +1,48 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import mb.client.rfe.service.ListingCache;
+
+public class ListingCacheTest {
+    
+    @Test
+    public void verifyExpiryAfterRevalidation() throws Exception {
+        ListingCache cache = new ListingCache(10, 200, 50);
+        ListingCache.Entry entry = cache.put("/dir", Collections.emptyList(), "etag", null);
+        
+        // Revalidation postpones the next one, but not the expiry
+        Thread.sleep(100);
+        assertTrue("Due for revalidation", cache.needsRevalidation(entry));
+        entry.touch();
+        assertFalse("Revalidated", cache.needsRevalidation(entry));
+        assertNotNull("Still cached", cache.get("/dir/"));
+        
+        Thread.sleep(150);
+        entry.touch();
+        assertNull("Expired although revalidated", cache.get("/dir"));
+    }
+    
+    @Test
+    public void verifyInvalidationDuringFetch() throws Exception {
+        ListingCache cache = new ListingCache(10, 60 * 1000, 60 * 1000);
+        
+        // A listing fetched before an invalidation doesn't make it into the cache
+        long generation = cache.getGeneration();
+        cache.invalidate("/dir/file");
+        assertNull("Outdated listing rejected", 
+                cache.put("/dir", Collections.emptyList(), "etag", null, generation));
+        assertNull("Nothing cached", cache.get("/dir"));
+        
+        assertNotNull("Current listing cached", 
+                cache.put("/dir", Collections.emptyList(), "etag", null, cache.getGeneration()));
+        assertNotNull("Cached", cache.get("/dir"));
+    }
+}
@@ -0,0 +1,163 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.ResourceRepositoryService;
+import mb.client.rfe.service.SearchIndex;
+import mb.client.rfe.service.WebDAVServiceException;
+
+public class LocalFileSystemServiceTest {
+    
+    @Test
+    public void verifyCopy() throws Exception {
+        
+        // Create test tree
+        Path root = Files.createTempDirectory("copy");
+        try {
+            Path src = Files.createDirectories(root.resolve("src/sub"));
+            byte[] data = new byte[100 * 1024];
+            new Random(1).nextBytes(data);
+            Files.write(src.resolve("data.bin"), data);
+            Files.createFile(root.resolve("src/empty.txt"));
+            Path dest = Files.createDirectory(root.resolve("dest"));
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource srcRes = service.list(root.resolve("src").toString(), 0).get(0);
+            WebDAVResource destRes = service.list(dest.toString(), 0).get(0);
+            
+            // Execute and verify
+            service.copy(srcRes, destRes, -1);
+            assertArrayEquals("Nested file copied", data, Files.readAllBytes(dest.resolve("src/sub/data.bin")));
+            assertTrue("Empty file copied", Files.exists(dest.resolve("src/empty.txt")));
+            assertTrue("Source kept", Files.exists(src.resolve("data.bin")));
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyCopyLinks() throws Exception {
+        Path root = Files.createTempDirectory("copy");
+        try {
+            Path src = Files.createDirectories(root.resolve("src/sub"));
+            Files.createFile(src.resolve("file.txt"));
+            Files.createSymbolicLink(root.resolve("src/dirLink"), src);
+            Files.createSymbolicLink(root.resolve("src/broken"), root.resolve("missing"));
+            Path dest = Files.createDirectory(root.resolve("dest"));
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource srcRes = service.list(root.resolve("src").toString(), 0).get(0);
+            WebDAVResource destRes = service.list(dest.toString(), 0).get(0);
+            
+            // Execute and verify
+            service.copy(srcRes, destRes, -1);
+            assertTrue("Directory link copied as link", Files.isSymbolicLink(dest.resolve("src/dirLink")));
+            assertEquals("Link target kept", src, Files.readSymbolicLink(dest.resolve("src/dirLink")));
+            assertTrue("Broken link copied", Files.isSymbolicLink(dest.resolve("src/broken")));
+            assertTrue("File copied", Files.exists(dest.resolve("src/sub/file.txt")));
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyFailedCopyRemoved() throws Exception {
+        Path root = Files.createTempDirectory("copy");
+        try {
+            Path src = Files.createDirectories(root.resolve("src/sub"));
+            Files.write(src.resolve("data.bin"), new byte[1024]);
+            Path dest = Files.createDirectory(root.resolve("dest"));
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource srcRes = service.list(root.resolve("src").toString(), 0).get(0);
+            WebDAVResource destRes = service.list(dest.toString(), 0).get(0);
+            
+            // A socket can't be opened for reading, whoever runs the test
+            try (ServerSocketChannel socket = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                socket.bind(UnixDomainSocketAddress.of(src.resolve("socket")));
+                
+                // Execute and verify
+                try {
+                    service.copy(srcRes, destRes, -1);
+                    fail("Copy failure reported");
+                } catch (WebDAVServiceException e) {
+                    assertFalse("Partial copy removed", Files.exists(dest.resolve("src"), LinkOption.NOFOLLOW_LINKS));
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyMoveIndexed() throws Exception {
+        Path root = Files.createTempDirectory("move");
+        try {
+            Files.createDirectory(root.resolve("src"));
+            Files.write(root.resolve("src/moved-file.txt"), new byte[7]);
+            Path dest = Files.createDirectory(root.resolve("dest"));
+            
+            ResourceRepositoryService service = new LocalFileSystemService();
+            WebDAVResource srcRes = service.list(root.resolve("src").toString()).get(0);
+            WebDAVResource destRes = service.list(dest.toString(), 0).get(0);
+            
+            // Execute and verify
+            service.move(srcRes, destRes);
+            List<WebDAVResource> found = new ArrayList<>();
+            SearchIndex.forHost(null).search(root.toString(), "moved-file", 10, 10, found::addAll);
+            assertEquals("Found once", 1, found.size());
+            assertEquals("Found at new place", dest.resolve("moved-file.txt").toString(), 
+                    found.get(0).getAbsolutePath());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyPagedListing() throws Exception {
+        Path root = Files.createTempDirectory("list");
+        try {
+            for (int i = 0; i < 5; i++) {
+                Files.write(root.resolve("file" + i + ".TXT"), new byte[i]);
+            }
+            Files.createDirectory(root.resolve("dir.d"));
+            Files.createSymbolicLink(root.resolve("broken"), root.resolve("missing"));
+            
+            List<Integer> pageSizes = new ArrayList<>();
+            List<WebDAVResource> resources = new ArrayList<>();
+            new LocalFileSystemService().list(root.toString(), 2, page -> {
+                pageSizes.add(page.size());
+                resources.addAll(page);
+            });
+            
+            assertEquals("Delivered in pages", Arrays.asList(2, 2, 2), pageSizes);
+            WebDAVResource file = resources.stream().filter(r -> r.getName().equals("file3.TXT")).findFirst().get();
+            assertEquals("Size read", 3, file.getSize());
+            assertEquals("Content type by extension", "text/plain", file.getType());
+            assertEquals("Parent URI", root.toUri().getPath(), file.getBaseURI().getPath() + "/");
+            assertTrue("Directory", resources.stream().anyMatch(r -> r.getName().equals("dir.d") && r.isDirectory()));
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.MetadataStore;
+
+public class MetadataStoreTest {
+    
+    private static final URI BASE_URI = URI.create("http://localhost:8080");
+    
+    @Test
+    public void verifyPersistence() throws Exception {
+        File file = Files.createTempFile("metadata", ".db").toFile();
+        try {
+            MetadataStore store = MetadataStore.open(file, BASE_URI);
+            store.put("/dir/", Arrays.asList(resource("/dir/a.txt", false), resource("/dir/sub/", true)), 
+                    "\"etag\"", new Date(1000));
+            store.put("/dir/sub", Arrays.asList(resource("/dir/sub/b.txt", false)), null, null);
+            store.put("/other", Arrays.asList(), null, null);
+            store.invalidate("/other", false);
+            store.close();
+            
+            // Reopen and verify
+            store = MetadataStore.open(file, BASE_URI);
+            MetadataStore.Listing listing = store.get("/dir");
+            assertNotNull("Listing restored", listing);
+            assertEquals("Validator restored", "\"etag\"", listing.getEtag());
+            assertEquals("Resources restored", 2, listing.getResources().size());
+            
+            WebDAVResource res = listing.getResources().get(0);
+            assertEquals("Path restored", "/dir/a.txt", res.getAbsolutePath());
+            assertEquals("Size restored", 42, res.getSize());
+            assertEquals("Base URI set", BASE_URI, res.getBaseURI());
+            assertTrue("Type restored", listing.getResources().get(1).isDirectory());
+            assertNull("Invalidation replayed", store.get("/other"));
+            
+            // Invalidating a subtree
+            store.invalidate("/dir", true);
+            assertEquals("Subtree dropped", 0, store.size());
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void verifyIncompleteRecordDropped() throws Exception {
+        File file = Files.createTempFile("metadata", ".db").toFile();
+        try {
+            MetadataStore store = MetadataStore.open(file, BASE_URI);
+            store.put("/dir", Arrays.asList(resource("/dir/a.txt", false)), null, null);
+            store.put("/dir2", Arrays.asList(resource("/dir2/b.txt", false)), null, null);
+            store.close();
+            
+            // Cut off the end of the last record, as after a crash
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 3);
+            }
+            
+            store = MetadataStore.open(file, BASE_URI);
+            assertNotNull("Complete record kept", store.get("/dir"));
+            assertNull("Incomplete record dropped", store.get("/dir2"));
+            
+            // Appending still works
+            store.put("/dir2", Arrays.asList(), null, null);
+            store.close();
+            store = MetadataStore.open(file, BASE_URI);
+            assertNotNull("Record appended after recovery", store.get("/dir2"));
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void verifySharedClose() throws Exception {
+        File file = Files.createTempFile("metadata", ".db").toFile();
+        try {
+            MetadataStore first = MetadataStore.open(file, BASE_URI);
+            MetadataStore second = MetadataStore.open(file, BASE_URI);
+            assertSame("Store shared", first, second);
+            
+            // Still open for the service which didn't close it
+            first.close();
+            second.put("/dir", Arrays.asList(resource("/dir/a.txt", false)), null, null);
+            assertNotNull("Usable after closed by another service", second.get("/dir"));
+            second.close();
+            
+            MetadataStore reopened = MetadataStore.open(file, BASE_URI);
+            assertNotSame("Closed by the last service", second, reopened);
+            assertNotNull("Listing kept", reopened.get("/dir"));
+            reopened.close();
+        } finally {
+            file.delete();
+        }
+    }
+    
+    private static WebDAVResource resource(String path, boolean directory) {
+        WebDAVResource res = new WebDAVResource(path, path.substring(path.lastIndexOf('/') + 1), 
+                directory ? "httpd/unix-directory" : "text/plain", directory ? 0 : 42, 
+                null, new Date(2000), directory, true, BASE_URI);
+        res.setEtag("\"" + path + "\"");
+        return res;
+    }
+}
@@ -1,5 +1,6 @@
 package mb.client.rfe.test.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -7,6 +8,7 @@ import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.namespace.QName;
 
@@ -18,12 +20,21 @@ import com.github.sardine.DavPrincipal;
 import com.github.sardine.DavQuota;
 import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
+import com.github.sardine.impl.io.ContentLengthInputStream;
 import com.github.sardine.report.SardineReport;
 
 public class MockSardineImpl implements Sardine {
     
     private List<DavResource> davResListToReturn;
     private InputStream isToReturn;
+    private int listCallCount;
+    private byte[] contentToReturn;
+    private boolean rangeSupported;
+    private String etag;
+    private final AtomicLong bytesServed = new AtomicLong();
+    private byte[] contentUploaded;
+    private Set<QName> lastListProps;
+    private String lastCopyDestination;
     
     public void setDavResListToReturn(List<DavResource> davResListToReturn) {
         this.davResListToReturn = davResListToReturn;
@@ -32,6 +43,44 @@ public class MockSardineImpl implements Sardine {
     public void setIsToReturn(InputStream isToReturn) {
         this.isToReturn = isToReturn;
     }
+    
+    /**
+     * Serves the given content from {@link #get(String, Map)}, honouring <code>Range</code> headers if enabled
+     */
+    public void setContentToReturn(byte[] contentToReturn, boolean rangeSupported) {
+        this.contentToReturn = contentToReturn;
+        this.rangeSupported = rangeSupported;
+    }
+    
+    /**
+     * ETag of the served content, <code>If-Range</code> requests with any other value get the whole content
+     */
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+    
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+    
+    public byte[] getContentUploaded() {
+        return contentUploaded;
+    }
+    
+    /**
+     * Properties asked for by the last listing or <code>null</code> if all properties were requested
+     */
+    public Set<QName> getLastListProps() {
+        return lastListProps;
+    }
+    
+    public String getLastCopyDestination() {
+        return lastCopyDestination;
+    }
+    
+    public int getListCallCount() {
+        return listCallCount;
+    }
 
     @Override
     public void setCredentials(String username, String password) {
@@ -48,6 +97,7 @@ public class MockSardineImpl implements Sardine {
 
     @Override
     public List<DavResource> list(String url) throws IOException {
+        listCallCount++;
         return davResListToReturn;
     }
 
@@ -58,6 +108,7 @@ public class MockSardineImpl implements Sardine {
 
     @Override
     public List<DavResource> list(String url, int depth, Set<QName> props) throws IOException {
+        lastListProps = props;
         return list(url);
     }
 
@@ -116,6 +167,21 @@ public class MockSardineImpl implements Sardine {
 
     @Override
     public InputStream get(String url, Map<String, String> headers) throws IOException {
+        if(contentToReturn != null) {
+            int start = 0, end = contentToReturn.length;
+            String range = headers.get("Range");
+            String ifRange = headers.get("If-Range");
+            if(range != null && rangeSupported && (ifRange == null || ifRange.equals(etag))) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                if(bounds.length > 1) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]) + 1);
+                }
+            }
+            bytesServed.addAndGet(end - start);
+            return new ContentLengthInputStream(
+                    new ByteArrayInputStream(contentToReturn, start, end - start), (long) (end - start));
+        }
         return get(url);
     }
 
@@ -152,8 +218,7 @@ public class MockSardineImpl implements Sardine {
     @Override
     public void put(String url, InputStream dataStream, String contentType, boolean expectContinue, long contentLength)
             throws IOException {
-        // TODO Auto-generated method stub
-
+        contentUploaded = dataStream.readAllBytes();
     }
 
     @Override
@@ -206,8 +271,7 @@ public class MockSardineImpl implements Sardine {
 
     @Override
     public void copy(String sourceUrl, String destinationUrl, boolean overwrite) throws IOException {
-        // TODO Auto-generated method stub
-
+        lastCopyDestination = destinationUrl;
     }
 
     @Override
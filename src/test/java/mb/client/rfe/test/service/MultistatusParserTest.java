@@ -0,0 +1,70 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.MultistatusParser;
+
+public class MultistatusParserTest {
+    
+    private static final String MULTISTATUS = 
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">" +
+            "<d:response><d:href>/dav/dir/</d:href><d:propstat><d:prop>" +
+            "<d:resourcetype><d:collection/></d:resourcetype><d:getetag>\"dir-1\"</d:getetag>" +
+            "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>" +
+            "<d:response><d:href>/dav/dir/some%20file.txt</d:href><d:propstat><d:prop>" +
+            "<d:resourcetype/><d:getcontentlength>1234</d:getcontentlength>" +
+            "<d:getcontenttype>text/plain</d:getcontenttype><d:getetag>\"file-1\"</d:getetag>" +
+            "<d:getlastmodified>Tue, 01 Mar 2022 10:00:00 GMT</d:getlastmodified>" +
+            "<oc:tags><d:href>/not/a/resource</d:href></oc:tags>" +
+            "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>" +
+            "<d:propstat><d:prop><d:creationdate/></d:prop>" +
+            "<d:status>HTTP/1.1 404 Not Found</d:status></d:propstat></d:response>" +
+            "<d:response><d:href>/dav/dir/sub/</d:href><d:propstat><d:prop>" +
+            "<d:resourcetype><d:collection/></d:resourcetype>" +
+            "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>" +
+            "</d:multistatus>";
+    
+    @Test
+    public void verifyParse() throws Exception {
+        ResourceHost host = new ResourceHost(URI.create("https://www.dummy.com"), "/dav", "user", "password");
+        List<WebDAVResource> resources = new ArrayList<>();
+        
+        // Execute and verify
+        new MultistatusParser(host, resources::add).parse(
+                new ByteArrayInputStream(MULTISTATUS.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("All responses parsed", 3, resources.size());
+        
+        WebDAVResource dir = resources.get(0);
+        assertTrue("Collection is a directory", dir.isDirectory());
+        assertEquals("Directory ETag", "\"dir-1\"", dir.getEtag());
+        
+        WebDAVResource file = resources.get(1);
+        assertEquals("Href kept as is", "/dav/dir/some%20file.txt", file.getAbsolutePath());
+        assertEquals("Name decoded", "some file.txt", file.getName());
+        assertFalse("File is not a directory", file.isDirectory());
+        assertEquals("Content length", 1234, file.getSize());
+        assertEquals("Content type", "text/plain", file.getType());
+        assertEquals("File ETag", "\"file-1\"", file.getEtag());
+        assertNotNull("Modified date parsed", file.getModified());
+        assertNull("Missing property ignored", file.getCreated());
+        
+        WebDAVResource sub = resources.get(2);
+        assertEquals("Directory name without trailing slash", "sub", sub.getName());
+        assertEquals("Directory content type", "httpd/unix-directory", sub.getType());
+    }
+}
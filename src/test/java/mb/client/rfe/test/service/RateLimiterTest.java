@@ -0,0 +1,118 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import mb.client.rfe.service.RateLimiter;
+import mb.client.rfe.service.ThrottledInputStream;
+
+public class RateLimiterTest {
+    
+    @Test
+    public void verifyRate() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", 8 * 1024 * 1024);
+        List<RateLimiter> limiters = Collections.singletonList(limiter);
+        
+        // Concurrent transfers share the rate, with only the initial burst going through right away
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 64; j++) {
+                        RateLimiter.acquire(limiters, 16 * 1024);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Throttled " + elapsedMs, elapsedMs >= 300);
+            assertTrue("Not too much " + elapsedMs, elapsedMs < 1000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void verifySlowestApplies() throws Exception {
+        List<RateLimiter> limiters = List.of(new RateLimiter("unlimited", 0), 
+                new RateLimiter("fast", 64 * 1024 * 1024), new RateLimiter("slow", 1024 * 1024));
+        byte[] data = new byte[512 * 1024];
+        new Random(1).nextBytes(data);
+        
+        long start = System.nanoTime();
+        try (InputStream is = new ThrottledInputStream(new ByteArrayInputStream(data), limiters)) {
+            assertArrayEquals("Content", data, IOUtils.toByteArray(is));
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Throttled " + elapsedMs, elapsedMs >= 300);
+        
+        // Chunks are about a burst of the slowest
+        assertEquals("Chunk size", 104857, RateLimiter.chunkSize(limiters, 4 * 1024 * 1024));
+        assertEquals("Unlimited chunk size", 4096, RateLimiter.chunkSize(limiters.subList(0, 1), 4096));
+    }
+    
+    @Test
+    public void verifyRateChange() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", 1024);
+        List<RateLimiter> limiters = Collections.singletonList(limiter);
+        
+        // Waiting for a minute at the original rate, but not once unlimited
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.nanoTime();
+            Future<?> future = executor.submit(() -> {
+                RateLimiter.acquire(limiters, 60 * 1024);
+                return null;
+            });
+            Thread.sleep(100);
+            limiter.setBytesPerSecond(0);
+            future.get(5, TimeUnit.SECONDS);
+            assertTrue("Released", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void verifyTaskBinding() throws Exception {
+        RateLimiter task = new RateLimiter("task", 1024);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<RateLimiter> bound = RateLimiter.withTask(task, () -> {
+                Callable<List<RateLimiter>> call = RateLimiter.bindTask(() -> RateLimiter.forTransfer(null));
+                return executor.submit(call).get();
+            });
+            assertEquals("Global, host and task", 3, bound.size());
+            assertSame("Global", RateLimiter.global(), bound.get(0));
+            assertSame("Host", RateLimiter.forHost(null), bound.get(1));
+            assertSame("Task", task, bound.get(2));
+            
+            // Not bound outside of the task
+            assertEquals("Global and host", 2, RateLimiter.forTransfer(null).size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
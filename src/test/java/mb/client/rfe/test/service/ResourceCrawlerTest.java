@@ -0,0 +1,261 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.ResourceCrawler;
+import mb.client.rfe.service.SardineClient;
+import mb.client.rfe.service.WebDAVService;
+
+public class ResourceCrawlerTest {
+    
+    @Test
+    public void verifyCrawl() throws Exception {
+        
+        // Create test tree with 3 levels of directories holding 2 files each
+        Path root = Files.createTempDirectory("crawl");
+        try {
+            Path dir = root;
+            for (int i = 0; i < 3; i++) {
+                dir = Files.createDirectory(dir.resolve("dir" + i));
+                Files.createFile(dir.resolve("a.txt"));
+                Files.createFile(dir.resolve("b.txt"));
+                Files.createDirectory(root.resolve("empty" + i));
+            }
+            
+            // Execute and verify
+            ResourceCrawler crawler = new ResourceCrawler(new LocalFileSystemService(), 2, 2, false);
+            try (Stream<WebDAVResource> stream = crawler.crawl(root.toString()).stream()) {
+                Set<String> paths = stream.map(WebDAVResource::getAbsolutePath).collect(Collectors.toSet());
+                assertEquals("All resources found", 12, paths.size());
+                assertTrue("Deepest file found", paths.contains(
+                        root.resolve("dir0/dir1/dir2/b.txt").toString()));
+            }
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyCancel() throws Exception {
+        Path root = Files.createTempDirectory("crawl");
+        try {
+            for (int i = 0; i < 50; i++) {
+                Files.createFile(root.resolve("file" + i));
+            }
+            
+            // Stop after a few elements, while listing is held back by the small buffer
+            ResourceCrawler crawler = new ResourceCrawler(new LocalFileSystemService(), 2, 2, false);
+            ResourceCrawler.Crawl crawl = crawler.crawl(root.toString());
+            try (Stream<WebDAVResource> stream = crawl.stream()) {
+                assertEquals("Limited elements consumed", 5, stream.limit(5).count());
+            }
+            assertTrue("Crawl cancelled on close", crawl.isCancelled());
+            assertEquals("Nothing left after cancel", 0, crawl.stream().count());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+    
+    @Test
+    public void verifyCancelWakesConsumer() throws Exception {
+        
+        // Listing which never returns, so the consumer waits for the first element
+        CountDownLatch listing = new CountDownLatch(1);
+        LocalFileSystemService service = new LocalFileSystemService() {
+            public List<WebDAVResource> list(String path, int depth) {
+                listing.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Collections.emptyList();
+            }
+        };
+        ResourceCrawler.Crawl crawl = new ResourceCrawler(service, 2, 2, false).crawl("/dir");
+        CompletableFuture<Long> consumed = new CompletableFuture<>();
+        Thread consumer = new Thread(() -> consumed.complete(crawl.stream().count()));
+        consumer.setDaemon(true);
+        consumer.start();
+        assertTrue("Listing started", listing.await(5, TimeUnit.SECONDS));
+        while (consumer.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        
+        // Cancel from another thread
+        crawl.cancel();
+        assertEquals("Consumer woken up", 0L, (long) consumed.get(5, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void verifyUncachedCrawl() throws Exception {
+        
+        // Listing cached before the file was replaced remotely
+        ResourceHost host = new ResourceHost(URI.create("https://www.dummy.com"), "/", "user", "password");
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setDavResListToReturn(Arrays.asList(
+                ServiceTestUtil.createDavResource("/dir/", null, true),
+                ServiceTestUtil.createDavResource("/dir/old.txt", "text/plain", false)));
+        WebDAVService service = new WebDAVService(host);
+        Field field = WebDAVService.class.getDeclaredField("sardine");
+        field.setAccessible(true);
+        field.set(service, mock);
+        service.list("/dir/");
+        mock.setDavResListToReturn(Arrays.asList(
+                ServiceTestUtil.createDavResource("/dir/", null, true),
+                ServiceTestUtil.createDavResource("/dir/new.txt", "text/plain", false)));
+        
+        // Execute and verify
+        ResourceCrawler crawler = new ResourceCrawler(service, 2, 2, false, true);
+        try (Stream<WebDAVResource> stream = crawler.crawl("/dir/").stream()) {
+            assertEquals("Current listing crawled", Collections.singletonList("new.txt"), 
+                    stream.map(WebDAVResource::getName).collect(Collectors.toList()));
+        }
+    }
+    
+    @Test
+    public void verifyInfinityRejectionRemembered() throws Exception {
+        assertEquals("Rejection remembered", 1, crawlTwice(403,
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?><D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/></D:error>"));
+    }
+    
+    @Test
+    public void verifyInfinityFailureNotRemembered() throws Exception {
+        assertEquals("Failure not remembered", 2, crawlTwice(500, "Internal error"));
+    }
+    
+    @Test
+    public void verifyInfinityFailureResumed() throws Exception {
+        String head = "<?xml version=\"1.0\" encoding=\"utf-8\"?><D:multistatus xmlns:D=\"DAV:\">";
+        String dir = "<D:response><D:href>/dir/</D:href><D:propstat><D:prop><D:resourcetype><D:collection/></D:resourcetype>" +
+                "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>";
+        String sub = dir.replace("/dir/", "/dir/sub/");
+        String file = "<D:response><D:href>/dir/a.txt</D:href><D:propstat><D:prop><D:getcontentlength>42</D:getcontentlength>" +
+                "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>";
+        String subFile = file.replace("/dir/a.txt", "/dir/sub/b.txt");
+        String tail = "</D:multistatus>";
+        
+        // Depth infinity listing cut off halfway, after some of the tree has been emitted
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            String body;
+            if("infinity".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Depth"))) {
+                body = head + dir + file + sub + "<D:response><D:href>/dir/sub/b";
+            } else if(exchange.getRequestURI().getPath().startsWith("/dir/sub")) {
+                body = head + sub + subFile + tail;
+            } else {
+                body = head + dir + file + sub + tail;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(207, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        });
+        server.start();
+        
+        ResourceHost host = new ResourceHost(
+                URI.create("http://localhost:" + server.getAddress().getPort()), "/", "user", "password");
+        WebDAVService service = new WebDAVService(host);
+        SardineClient client = new SardineClient("user", "password");
+        Field field = WebDAVService.class.getDeclaredField("sardine");
+        field.setAccessible(true);
+        field.set(service, client);
+        try {
+            
+            // Execute and verify the rest of the tree is listed, without duplicates
+            ResourceCrawler.Crawl crawl = new ResourceCrawler(service, 2, 2, true).crawl("/dir/");
+            try (Stream<WebDAVResource> stream = crawl.stream()) {
+                List<String> names = stream.map(WebDAVResource::getName).sorted().collect(Collectors.toList());
+                assertEquals("Whole tree listed once", Arrays.asList("a.txt", "b.txt", "sub"), names);
+            }
+            assertTrue("No failures", crawl.getFailures().isEmpty());
+        } finally {
+            client.shutdown();
+            server.stop(0);
+        }
+    }
+    
+    /**
+     * Crawls a host answering <code>Depth: infinity</code> listings with the given error twice
+     * @return Number of <code>Depth: infinity</code> listings requested
+     */
+    private int crawlTwice(int infinityStatus, String infinityBody) throws Exception {
+        String multistatus = 
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?><D:multistatus xmlns:D=\"DAV:\">" +
+                "<D:response><D:href>/dir/</D:href><D:propstat><D:prop><D:resourcetype><D:collection/></D:resourcetype>" +
+                "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+                "<D:response><D:href>/dir/file.txt</D:href><D:propstat><D:prop><D:getcontentlength>42</D:getcontentlength>" +
+                "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+                "</D:multistatus>";
+        
+        AtomicInteger infinityRequests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            int status = 207;
+            String body = multistatus;
+            if("infinity".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Depth"))) {
+                infinityRequests.incrementAndGet();
+                status = infinityStatus;
+                body = infinityBody;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        });
+        server.start();
+        
+        ResourceHost host = new ResourceHost(
+                URI.create("http://localhost:" + server.getAddress().getPort()), "/", "user", "password");
+        WebDAVService service = new WebDAVService(host);
+        SardineClient client = new SardineClient("user", "password");
+        Field field = WebDAVService.class.getDeclaredField("sardine");
+        field.setAccessible(true);
+        field.set(service, client);
+        try {
+            
+            // Each crawl falls back to depth 1 listings, unless its host was remembered
+            for (int i = 0; i < 2; i++) {
+                ResourceCrawler crawler = new ResourceCrawler(service, 2, 2, true);
+                try (Stream<WebDAVResource> stream = crawler.crawl("/dir/").stream()) {
+                    assertEquals("Listed by fallback", 1, stream.count());
+                }
+            }
+            return infinityRequests.get();
+        } finally {
+            client.shutdown();
+            server.stop(0);
+        }
+    }
+}
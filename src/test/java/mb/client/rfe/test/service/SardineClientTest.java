@@ -0,0 +1,106 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.MultistatusParser;
+import mb.client.rfe.service.SardineClient;
+
+public class SardineClientTest {
+    
+    private static final String MULTISTATUS = 
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?><D:multistatus xmlns:D=\"DAV:\">" +
+            "<D:response><D:href>/dir/</D:href><D:propstat><D:prop><D:resourcetype><D:collection/></D:resourcetype>" +
+            "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+            "<D:response><D:href>/dir/file.txt</D:href><D:propstat><D:prop><D:getcontentlength>42</D:getcontentlength>" +
+            "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+            "</D:multistatus>";
+    
+    private HttpServer server;
+    private Map<String, String> acceptEncodings;
+    
+    @Before
+    public void startServer() throws Exception {
+        acceptEncodings = new ConcurrentHashMap<>();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            String method = exchange.getRequestMethod();
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            acceptEncodings.put(method, acceptEncoding != null ? acceptEncoding : "");
+            exchange.getRequestBody().readAllBytes();
+            
+            // Listings are compressed when asked for, content never is
+            byte[] body = "PROPFIND".equals(method) ? MULTISTATUS.getBytes(StandardCharsets.UTF_8) : new byte[42];
+            if(acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+                    gzip.write(body);
+                }
+                body = bos.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders("PROPFIND".equals(method) ? 207 : 200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+    }
+    
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+    
+    @Test
+    public void verifyCompressedListing() throws Exception {
+        String baseUri = "http://localhost:" + server.getAddress().getPort();
+        SardineClient client = new SardineClient("user", "pass");
+        try {
+            
+            // Listing
+            List<WebDAVResource> resources = new ArrayList<>();
+            client.propfind(baseUri + "/dir/", 1, true, new MultistatusParser(
+                    new ResourceHost(URI.create(baseUri), "/", "user", "pass"), resources::add));
+            assertEquals("Listing decoded", 2, resources.size());
+            assertEquals("Properties decoded", 42, resources.get(1).getSize());
+            assertTrue("Compression asked for", acceptEncodings.get("PROPFIND").contains("gzip"));
+            assertEquals("Decoded bytes counted", MULTISTATUS.length(), client.getListingBytesDecoded());
+            assertTrue("Received bytes counted", client.getListingBytesReceived() > 0);
+            
+            // Content
+            try (InputStream is = client.get(baseUri + "/dir/file.txt")) {
+                assertEquals("Content length kept", 42, is.readAllBytes().length);
+            }
+            assertEquals("No compression for content", "", acceptEncodings.get("GET"));
+            
+            // Switched off
+            client.setListingCompression(false);
+            client.propfind(baseUri + "/dir/", 1, true, new MultistatusParser(
+                    new ResourceHost(URI.create(baseUri), "/", "user", "pass"), res -> {}));
+            assertEquals("No compression when switched off", "", acceptEncodings.get("PROPFIND"));
+        } finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.SearchIndex;
+
+public class SearchIndexTest {
+
+    private static final URI BASE_URI = URI.create("http://localhost:8080");
+
+    @Test
+    public void verifyMatching() {
+        SearchIndex index = new SearchIndex();
+        index.putListing("/music/", Arrays.asList(resource("/music/Song One.mp3", false),
+                resource("/music/song two.ogg", false), resource("/music/rock/", true)));
+        index.putListing("/music/rock", Arrays.asList(resource("/music/rock/Another Song.MP3", false)));
+        index.putListing("/musicals", Arrays.asList(resource("/musicals/song.txt", false)));
+
+        assertEquals("Substring ignoring case", Arrays.asList("Another Song.MP3", "Song One.mp3", "song two.ogg"),
+                search(index, "/music", "song"));
+        assertEquals("Suffix glob", Arrays.asList("Another Song.MP3", "Song One.mp3"),
+                search(index, "/music", "*.mp3"));
+        assertEquals("Prefix glob", Arrays.asList("song two.ogg"), search(index, "/music", "song t*"));
+        assertEquals("Full glob", Arrays.asList("Song One.mp3", "song two.ogg"),
+                search(index, "/music", "song ???.*"));
+        assertEquals("Scoped to subtree", Arrays.asList("Another Song.MP3"), search(index, "/music/rock/", "song"));
+        assertEquals("Whole host", 4, search(index, "/", "song").size());
+        assertTrue("Complete", index.isComplete("/music"));
+
+        // Removing a directory drops its content as well
+        index.remove("/music", "/music/rock/");
+        assertEquals("Removed", Arrays.asList("Song One.mp3", "song two.ogg"), search(index, "/music", "song"));
+        assertEquals("Size", 3, index.size());
+    }
+
+    @Test
+    public void verifyTree() {
+        SearchIndex index = new SearchIndex();
+        index.putListing("/dir/gone", Arrays.asList(resource("/dir/gone/old.txt", false)));
+        index.putTree("/dir", Arrays.asList(resource("/dir/a.txt", false), resource("/dir/sub/", true),
+                resource("/dir/sub/b.txt", false), resource("/dir/empty/", true)));
+
+        assertEquals("Tree indexed", Arrays.asList("a.txt", "b.txt"), search(index, "/dir", "*.txt"));
+        assertTrue("Empty directories complete", index.isComplete("/dir"));
+
+        index.putListing("/dir/sub", Arrays.asList(resource("/dir/sub/unlisted/", true)));
+        assertFalse("Unlisted directory", index.isComplete("/dir"));
+    }
+
+    @Test
+    public void verifyLocalSearch() throws Exception {
+        Path root = Files.createTempDirectory("search");
+        try {
+            Files.createDirectories(root.resolve("a/b"));
+            Files.write(root.resolve("a/b/report.pdf"), new byte[1]);
+            Files.write(root.resolve("a/notes.txt"), new byte[1]);
+            Files.write(root.resolve("report.txt"), new byte[1]);
+
+            // Nothing listed yet, found by crawling
+            LocalFileSystemService service = new LocalFileSystemService();
+            WebDAVResource dir = service.list(root.toString(), 0).get(0);
+            List<WebDAVResource> found = new ArrayList<>();
+            service.search(dir, "report*", 1, found::addAll);
+            assertEquals("Found by crawling", Arrays.asList("report.pdf", "report.txt"), names(found));
+
+            // Crawled listings are indexed
+            assertTrue("Indexed", SearchIndex.forHost(null).isComplete(root.toString()));
+            File uploaded = Files.createTempFile("report", ".doc").toFile();
+            try {
+                service.upload(service.list(root.resolve("a").toString(), 0).get(0), uploaded);
+            } finally {
+                uploaded.delete();
+            }
+            found.clear();
+            service.search(dir, "report*", 10, found::addAll);
+            assertEquals("Upload indexed", 3, found.size());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    private static List<String> search(SearchIndex index, String path, String query) {
+        List<WebDAVResource> found = new ArrayList<>();
+        index.search(path, query, Integer.MAX_VALUE, 2, found::addAll);
+        return names(found);
+    }
+
+    private static List<String> names(List<WebDAVResource> resources) {
+        List<String> names = resources.stream().map(WebDAVResource::getName).collect(Collectors.toList());
+        Collections.sort(names);
+        return names;
+    }
+
+    private static WebDAVResource resource(String path, boolean directory) {
+        String name = new File(path).getName();
+        return new WebDAVResource(path, name, directory ? "httpd/unix-directory" : "text/plain", 1,
+                null, null, directory, false, BASE_URI);
+    }
+}
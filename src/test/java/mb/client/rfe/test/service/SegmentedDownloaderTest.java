@@ -0,0 +1,141 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.service.DownloadJournal;
+import mb.client.rfe.service.SegmentedDownloader;
+import mb.client.rfe.service.SegmentedDownloader.ResourceChangedException;
+
+public class SegmentedDownloaderTest {
+    
+    @Test
+    public void verifySegmentedDownload() throws Exception {
+        
+        // Create test data
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setContentToReturn(data, true);
+        
+        SegmentedDownloader downloader = new SegmentedDownloader(mock, "/file", data.length);
+        File file = File.createTempFile("segmented", ".bin");
+        try {
+            
+            // Execute and verify
+            assertTrue("Range support detected", downloader.isRangeSupported());
+            
+            AtomicLong progress = new AtomicLong();
+            downloader.download(file, 4, bytesRead -> {
+                progress.addAndGet(bytesRead);
+                return null;
+            });
+            
+            assertEquals("All bytes reported", data.length, progress.get());
+            assertArrayEquals("Segments assembled in order", data, Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void verifyResumedDownload() throws Exception {
+        
+        // Create test data and a partial download holding the first half
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        int half = data.length / 2;
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setContentToReturn(data, true);
+        mock.setEtag("\"v1\"");
+        
+        File dir = Files.createTempDirectory("resume").toFile();
+        File target = new File(dir, "file");
+        try {
+            writePartialDownload(target, "\"v1\"", data, half);
+            
+            // Execute and verify
+            DownloadJournal journal = DownloadJournal.open(target);
+            assertTrue("Partial data found", journal.hasPartialData());
+            assertTrue("Journal matches resource", journal.matches("/file", "\"v1\"", data.length));
+            
+            AtomicLong progress = new AtomicLong();
+            new SegmentedDownloader(mock, "/file", data.length).download(journal, 4, bytesRead -> {
+                progress.addAndGet(bytesRead);
+                return null;
+            });
+            journal.complete();
+            
+            assertEquals("Only missing bytes fetched", data.length - half, mock.getBytesServed());
+            assertEquals("Only missing bytes reported", data.length - half, progress.get());
+            assertArrayEquals("File assembled", data, Files.readAllBytes(target.toPath()));
+            assertEquals("Partial file and journal removed", 1, dir.list().length);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test
+    public void verifyResumeOfChangedResource() throws Exception {
+        byte[] data = new byte[64 * 1024];
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setContentToReturn(data, true);
+        mock.setEtag("\"v2\"");
+        
+        File dir = Files.createTempDirectory("resume").toFile();
+        File target = new File(dir, "file");
+        try {
+            writePartialDownload(target, "\"v1\"", data, 1024);
+            
+            DownloadJournal journal = DownloadJournal.open(target);
+            try {
+                new SegmentedDownloader(mock, "/file", data.length).download(journal, 1, bytesRead -> null);
+                fail("Changed resource not detected");
+            } catch (ResourceChangedException e) {
+                // Expected
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test
+    public void verifyRangeNotSupported() throws Exception {
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setContentToReturn(new byte[1024], false);
+        
+        SegmentedDownloader downloader = new SegmentedDownloader(mock, "/file", 1024);
+        assertFalse("Full response means no range support", downloader.isRangeSupported());
+    }
+    
+    @Test
+    public void verifySegmentCount() {
+        assertEquals("Small files use a single stream", 1, SegmentedDownloader.segmentCount(1000, 4, 16 * 1024));
+        assertEquals("Unknown size uses a single stream", 1, SegmentedDownloader.segmentCount(-1, 4, 16 * 1024));
+        assertEquals("Bounded by max segments", 4, SegmentedDownloader.segmentCount(1L << 30, 4, 16 * 1024));
+        assertEquals("Bounded by min segment size", 2, SegmentedDownloader.segmentCount(40 * 1024, 4, 16 * 1024));
+    }
+    
+    private static void writePartialDownload(File target, String etag, byte[] data, int length) throws Exception {
+        DownloadJournal journal = DownloadJournal.open(target);
+        journal.reset("/file", etag, data.length);
+        try (RandomAccessFile raf = new RandomAccessFile(journal.getPartFile(), "rw")) {
+            raf.setLength(data.length);
+            raf.write(data, 0, length);
+        }
+        journal.commit(0, length);
+        journal.persist();
+    }
+}
@@ -0,0 +1,70 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import mb.client.rfe.model.WebDAVResource;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.WebDAVServiceException;
+
+public class ServiceFuturesTest {
+    
+    @Test
+    public void verifyCancelInterruptsListing() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        
+        // A listing blocking until interrupted
+        LocalFileSystemService service = new LocalFileSystemService() {
+            public List<WebDAVResource> list(String path, int depth) throws WebDAVServiceException {
+                started.countDown();
+                try {
+                    Thread.sleep(10 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw new WebDAVServiceException("Listing interrupted", e);
+                } finally {
+                    finished.countDown();
+                }
+                return null;
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        service.setExecutor(executor);
+        try {
+            CompletableFuture<List<WebDAVResource>> future = service.listAsync("/dir", 1);
+            assertTrue("Listing started", started.await(5, TimeUnit.SECONDS));
+            
+            // Execute and verify
+            assertTrue("Cancelled", future.cancel(true));
+            assertTrue("Listing thread interrupted", finished.await(5, TimeUnit.SECONDS));
+            assertTrue("Interrupt seen by the listing", interrupted.get());
+            assertTrue("Completed as cancelled", future.isCancelled());
+            try {
+                future.get();
+                fail("Cancelled future returned a result");
+            } catch (CancellationException e) {
+                // Expected
+            }
+            
+            // The pooled thread is not left interrupted for the next call
+            assertFalse("Thread reusable", executor.submit(() -> Thread.currentThread().isInterrupted())
+                    .get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
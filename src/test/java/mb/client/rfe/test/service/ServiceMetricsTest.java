@@ -0,0 +1,93 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mb.client.rfe.model.ResourceHost;
+import mb.client.rfe.service.LocalFileSystemService;
+import mb.client.rfe.service.OperationMetricsMXBean;
+import mb.client.rfe.service.SardineClient;
+import mb.client.rfe.service.ServiceMetrics;
+import mb.client.rfe.service.WebDAVServiceException;
+
+public class ServiceMetricsTest {
+    
+    @Test
+    public void verifyHistogram() throws Exception {
+        ServiceMetrics metrics = ServiceMetrics.forHost(
+                new ResourceHost(URI.create("http://metrics.test:8080"), "/", "user", "pass"));
+        for (int i = 1; i <= 100; i++) {
+            metrics.record("GET", TimeUnit.MILLISECONDS.toNanos(i), i > 95);
+        }
+        
+        // Percentiles are accurate to within a bucket, which doubles in width
+        OperationMetricsMXBean get = metrics.getOperation("GET");
+        assertEquals("Count", 100, get.getCount());
+        assertEquals("Errors", 5, get.getErrors());
+        assertEquals("Error rate", 0.05, get.getErrorRate(), 0.0001);
+        assertEquals("Mean", 50.5, get.getMeanMillis(), 0.01);
+        assertEquals("Max", 100, get.getMaxMillis(), 0.01);
+        assertTrue("Median", get.getP50Millis() >= 50 && get.getP50Millis() <= 100);
+        assertTrue("99th percentile", get.getP99Millis() >= 99 && get.getP99Millis() <= 100);
+        
+        // Exported over JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("mb.client.rfe:type=Operation,host=" + 
+                ObjectName.quote(metrics.getHost()) + ",name=" + ObjectName.quote("GET"));
+        assertEquals("JMX count", 100L, server.getAttribute(name, "Count"));
+        ObjectName host = new ObjectName("mb.client.rfe:type=Host,name=" + ObjectName.quote(metrics.getHost()));
+        assertEquals("JMX requests", 100L, server.getAttribute(host, "Requests"));
+    }
+    
+    @Test
+    public void verifyPoolsPerClient() throws Exception {
+        ServiceMetrics metrics = ServiceMetrics.forHost(
+                new ResourceHost(URI.create("http://pools.test:8080"), "/", "user", "pass"));
+        SardineClient first = new SardineClient("user", "pass");
+        SardineClient second = new SardineClient("user", "pass");
+        first.setMetrics(metrics);
+        second.setMetrics(metrics);
+        int max = metrics.getPoolMax();
+        assertTrue("Pools added up", max > 0 && max % 2 == 0);
+        
+        // Pools of clients shut down are no longer reported
+        second.shutdown();
+        assertEquals("Remaining pool", max / 2, metrics.getPoolMax());
+        first.shutdown();
+        assertEquals("No pool", 0, metrics.getPoolMax());
+    }
+    
+    @Test
+    public void verifyLocalOperations() throws Exception {
+        Path dir = Files.createTempDirectory("metrics");
+        try {
+            ServiceMetrics metrics = ServiceMetrics.forHost(null);
+            long lists = metrics.getOperation("LIST") != null ? metrics.getOperation("LIST").getCount() : 0;
+            
+            LocalFileSystemService service = new LocalFileSystemService();
+            service.list(dir.toString());
+            try {
+                service.list(dir.resolve("missing").toString());
+            } catch (WebDAVServiceException e) {
+                // Expected
+            }
+            assertEquals("Listings timed", lists + 2, metrics.getOperation("LIST").getCount());
+            assertTrue("Failure counted", metrics.getOperation("LIST").getErrors() >= 1);
+            assertTrue("Report", metrics.report().contains("LIST"));
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+}
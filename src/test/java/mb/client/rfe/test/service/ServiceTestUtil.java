@@ -1,10 +1,15 @@
 package mb.client.rfe.test.service;
 
 import java.net.URISyntaxException;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
 
 import com.github.sardine.DavResource;
 import com.github.sardine.model.Collection;
+import com.github.sardine.model.Getcontentlength;
 import com.github.sardine.model.Getcontenttype;
+import com.github.sardine.model.Getlastmodified;
 import com.github.sardine.model.Prop;
 import com.github.sardine.model.Propstat;
 import com.github.sardine.model.Resourcetype;
@@ -41,4 +46,27 @@ public class ServiceTestUtil {
             throw new RuntimeException(e);
         }
     }
+    
+    public static DavResource createDavResource(String href, long size, Date modified) {
+        Response res = new Response();
+        res.getHref().add(href);
+        
+        Getcontentlength length = new Getcontentlength();
+        length.getContent().add(String.valueOf(size));
+        Getlastmodified lastModified = new Getlastmodified();
+        lastModified.getContent().add(DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                modified.toInstant().atOffset(ZoneOffset.UTC)));
+        Prop prop = new Prop();
+        prop.setGetcontentlength(length);
+        prop.setGetlastmodified(lastModified);
+        Propstat propstat = new Propstat();
+        propstat.setProp(prop);
+        res.getPropstat().add(propstat);
+        
+        try {
+            return new DavResource(res);
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
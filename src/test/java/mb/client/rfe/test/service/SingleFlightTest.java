@@ -0,0 +1,149 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import mb.client.rfe.service.SingleFlight;
+import mb.client.rfe.service.WebDAVServiceException;
+
+public class SingleFlightTest {
+
+    @Test
+    public void verifyConcurrentCallsAreCoalesced() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        AtomicInteger invocations = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            
+            // First call blocks until released, while the second one joins it
+            Future<String> first = executor.submit(() -> flight.execute("/dir#1", () -> {
+                invocations.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "result";
+            }));
+            started.await(5, TimeUnit.SECONDS);
+            Future<String> second = executor.submit(() -> flight.execute("/dir#1", () -> {
+                invocations.incrementAndGet();
+                return "other";
+            }));
+            
+            // Wait for the second caller to register as a duplicate
+            while(flight.getDeduplicatedCount() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            
+            assertEquals("First caller gets the result", "result", first.get(5, TimeUnit.SECONDS));
+            assertEquals("Second caller shares the result", "result", second.get(5, TimeUnit.SECONDS));
+            assertEquals("Only one request executed", 1, invocations.get());
+            assertEquals("One request deduplicated", 1, flight.getDeduplicatedCount());
+            
+            // Later calls are not affected
+            assertEquals("New request after completion", "other", flight.execute("/dir#1", () -> "other"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void verifyErrorReachesWaiters() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            
+            // First call fails with an error once the second one joins it
+            Future<String> first = executor.submit(() -> flight.execute("/dir#1", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new AssertionError("Failed");
+            }));
+            started.await(5, TimeUnit.SECONDS);
+            Future<String> second = executor.submit(() -> flight.execute("/dir#1", () -> "other"));
+            while(flight.getDeduplicatedCount() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            
+            try {
+                second.get(5, TimeUnit.SECONDS);
+                fail("Error not shared");
+            } catch (ExecutionException e) {
+                assertTrue("Failed with the error", e.getCause() instanceof WebDAVServiceException);
+                assertTrue("Cause kept", e.getCause().getCause() instanceof AssertionError);
+            }
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                fail("Error not thrown");
+            } catch (ExecutionException e) {
+                assertTrue("Error thrown", e.getCause() instanceof AssertionError);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void verifyCancelledCallerIsReplaced() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        AtomicInteger invocations = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            
+            // First call blocks until cancelled, while the second one joins it
+            Future<String> first = executor.submit(() -> flight.execute("/dir#1", () -> {
+                invocations.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(10 * 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new WebDAVServiceException("Listing cancelled", e);
+                }
+                return "first";
+            }));
+            started.await(5, TimeUnit.SECONDS);
+            Future<String> second = executor.submit(() -> flight.execute("/dir#1", () -> {
+                invocations.incrementAndGet();
+                return "second";
+            }));
+            while(flight.getDeduplicatedCount() == 0) {
+                Thread.sleep(10);
+            }
+            first.cancel(true);
+            
+            // The waiting caller makes the request itself
+            assertEquals("Request made again", "second", second.get(5, TimeUnit.SECONDS));
+            assertEquals("Both requests executed", 2, invocations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package mb.client.rfe.test.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import mb.client.rfe.service.TransferPipeline;
+
+public class TransferPipelineTest {
+    
+    @Test
+    public void verifyStreamTransfer() throws Exception {
+        
+        // Create test data, large enough to go through several buffers
+        byte[] data = new byte[5 * 1024 * 1024 + 11];
+        new Random(3).nextBytes(data);
+        File file = File.createTempFile("pipeline", ".bin");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            
+            // Execute and verify
+            AtomicLong progress = new AtomicLong();
+            long transferred = TransferPipeline.transfer(new ByteArrayInputStream(data), channel, bytes -> {
+                progress.addAndGet(bytes);
+                return null;
+            });
+            
+            assertEquals("All bytes transferred", data.length, transferred);
+            assertEquals("All bytes reported", data.length, progress.get());
+            assertEquals("Channel positioned at the end", data.length, channel.position());
+            assertArrayEquals("Content written in order", data, Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void verifyFileTransfer() throws Exception {
+        byte[] data = new byte[300 * 1024];
+        new Random(5).nextBytes(data);
+        File src = File.createTempFile("pipeline-src", ".bin");
+        File dest = File.createTempFile("pipeline-dest", ".bin");
+        Files.write(src.toPath(), data);
+        try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE)) {
+            
+            AtomicLong progress = new AtomicLong();
+            TransferPipeline.transfer(in, out, bytes -> {
+                progress.addAndGet(bytes);
+                return null;
+            });
+            
+            assertEquals("All bytes reported", data.length, progress.get());
+            assertArrayEquals("Content copied", data, Files.readAllBytes(dest.toPath()));
+        } finally {
+            src.delete();
+            dest.delete();
+        }
+    }
+}
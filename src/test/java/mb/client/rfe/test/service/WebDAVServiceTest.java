@@ -1,30 +1,48 @@
 package mb.client.rfe.test.service;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
+import com.sun.net.httpserver.HttpServer;
 
 import javafx.util.Callback;
 import mb.client.rfe.model.ResourceHost;
 import mb.client.rfe.model.WebDAVResource;
 import mb.client.rfe.service.ResourceRepositoryService;
+import mb.client.rfe.service.SardineClient;
+import mb.client.rfe.service.SearchIndex;
 import mb.client.rfe.service.WebDAVService;
+import mb.client.rfe.service.WebDAVServiceException;
 
 public class WebDAVServiceTest {
     
@@ -68,6 +86,68 @@ public class WebDAVServiceTest {
         assertFalse("Resource is a file", files.get(0).isDirectory());
     }
     
+    @Test
+    public void verifyListingCache() throws Exception {
+        
+        // Create test data
+        List<DavResource> data = Arrays.asList(
+                ServiceTestUtil.createDavResource("/dir/file1", "test/test", false),
+                ServiceTestUtil.createDavResource("/dir/file2", "test/test", false)
+                );
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setDavResListToReturn(data);
+        
+        ResourceRepositoryService service = new WebDAVService(host);
+        injectMock(service, mock);
+        
+        // Execute and verify
+        List<WebDAVResource> first = service.list("/dir");
+        List<WebDAVResource> second = service.list("/dir/");
+        assertEquals("Listing served from cache", 1, mock.getListCallCount());
+        assertEquals("Same cached listing returned", first, second);
+        
+        service.list("/dir", 0);
+        assertEquals("Single resource listing not cached", 2, mock.getListCallCount());
+        
+        service.delete(first.get(0));
+        service.list("/dir");
+        assertEquals("Listing fetched again after delete", 3, mock.getListCallCount());
+    }
+    
+    @Test
+    public void verifyMinimalListing() throws Exception {
+        ResourceHost minimalHost = new ResourceHost(URI.create("https://www.dummy.com"), "/webdav", "user", "password");
+        minimalHost.setMinimalListing(true);
+        MockSardineImpl mock = new MockSardineImpl();
+        mock.setDavResListToReturn(Arrays.asList(
+                ServiceTestUtil.createDavResource("/dir/file1", "test/test", false)));
+        
+        ResourceRepositoryService service = new WebDAVService(minimalHost);
+        injectMock(service, mock);
+        
+        // Execute and verify
+        service.list("/dir");
+        assertNotNull("Properties requested explicitly", mock.getLastListProps());
+        assertTrue("No properties beyond the default ones", mock.getLastListProps().isEmpty());
+    }
+    
+    @Test
+    public void verifyCopy() throws Exception {
+        MockSardineImpl mock = new MockSardineImpl();
+        ResourceRepositoryService service = new WebDAVService(host);
+        injectMock(service, mock);
+        
+        WebDAVResource src = new WebDAVResource("/dir/some file.txt", "some file.txt", "text/plain", 1, 
+                null, null, false, true, host.getBaseURI());
+        WebDAVResource dest = new WebDAVResource("/other", "other", "httpd/unix-directory", -1, 
+                null, null, true, true, host.getBaseURI());
+        
+        // Execute and verify
+        service.copy(src, dest, -1);
+        assertEquals("Copied into destination directory", 
+                host.getBaseUriString() + "/other/some%20file.txt", mock.getLastCopyDestination());
+    }
+    
     @Test
     public void verifyDownload() throws Exception {
         
@@ -94,6 +174,138 @@ public class WebDAVServiceTest {
         Files.delete(Paths.get("downloads/testfile1"));
     }
     
+    @Test
+    public void verifyUploadProgress() throws Exception {
+        
+        // Create test data
+        byte[] data = new byte[200 * 1024 + 3];
+        new Random(7).nextBytes(data);
+        File file = File.createTempFile("upload", ".bin");
+        Files.write(file.toPath(), data);
+        MockSardineImpl mock = new MockSardineImpl();
+        
+        ResourceRepositoryService service = new WebDAVService(host);
+        injectMock(service, mock);
+        WebDAVResource parent = new WebDAVResource("dir", "/dir");
+        try {
+            
+            // Execute and verify
+            AtomicLong progress = new AtomicLong();
+            String path = service.upload(parent, file, bytesSent -> {
+                progress.addAndGet(bytesSent);
+                return null;
+            });
+            
+            assertEquals("Uploaded path", "/dir/" + file.getName(), path);
+            assertEquals("All bytes reported", data.length, progress.get());
+            assertArrayEquals("Content sent", data, mock.getContentUploaded());
+            
+            // Interrupted uploads abort
+            Thread.currentThread().interrupt();
+            try {
+                service.upload(parent, file, bytesSent -> null);
+                fail("Interrupted upload not aborted");
+            } catch (WebDAVServiceException e) {
+                // Expected
+            } finally {
+                Thread.interrupted();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void verifyPagedListingCoalesced() throws Exception {
+        String multistatus = 
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?><D:multistatus xmlns:D=\"DAV:\">" +
+                "<D:response><D:href>/dir/</D:href><D:propstat><D:prop><D:resourcetype><D:collection/></D:resourcetype>" +
+                "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+                "<D:response><D:href>/dir/file.txt</D:href><D:propstat><D:prop><D:getcontentlength>42</D:getcontentlength>" +
+                "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+                "</D:multistatus>";
+        
+        // Listing held back until released
+        AtomicInteger requests = new AtomicInteger();
+        CountDownLatch received = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            received.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = multistatus.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(207, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        
+        ResourceHost localHost = new ResourceHost(
+                URI.create("http://localhost:" + server.getAddress().getPort()), "/", "user", "password");
+        WebDAVService service = new WebDAVService(localHost);
+        SardineClient client = new SardineClient("user", "password");
+        injectMock(service, client);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            
+            // Execute and verify
+            List<WebDAVResource> first = new CopyOnWriteArrayList<>();
+            List<WebDAVResource> second = new CopyOnWriteArrayList<>();
+            Future<?> firstListing = executor.submit(() -> {
+                service.list("/dir/", 10, first::addAll);
+                return null;
+            });
+            assertTrue("Listing requested", received.await(5, TimeUnit.SECONDS));
+            Future<?> secondListing = executor.submit(() -> {
+                service.list("/dir", 10, second::addAll);
+                return null;
+            });
+            while (service.getCoalescedRequestCount() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            firstListing.get(5, TimeUnit.SECONDS);
+            secondListing.get(5, TimeUnit.SECONDS);
+            
+            assertEquals("Single request", 1, requests.get());
+            assertEquals("Listed", 1, first.size());
+            assertEquals("Same listing for both", first, second);
+        } finally {
+            executor.shutdownNow();
+            client.shutdown();
+            server.stop(0);
+        }
+    }
+    
+    @Test
+    public void verifyMoveIndexed() throws Exception {
+        ResourceHost moveHost = new ResourceHost(URI.create("https://move.dummy.com"), "/", "user", "password");
+        ResourceRepositoryService service = new WebDAVService(moveHost);
+        injectMock(service, new MockSardineImpl());
+        WebDAVResource src = new WebDAVResource("/dir/report.pdf", "report.pdf", "application/pdf", 42, 
+                null, null, false, false, moveHost.getBaseURI());
+        WebDAVResource dest = new WebDAVResource("/archive/", "archive", null, 0, 
+                null, null, true, false, moveHost.getBaseURI());
+        SearchIndex index = SearchIndex.forHost(moveHost);
+        index.add("/dir/", src);
+        
+        // Execute and verify
+        service.move(src, dest);
+        List<WebDAVResource> found = new CopyOnWriteArrayList<>();
+        index.search("/", "report", 10, 10, found::addAll);
+        assertEquals("Found once", 1, found.size());
+        assertEquals("Found at new place", "/archive/report.pdf", found.get(0).getAbsolutePath());
+        assertEquals("Size kept", 42, found.get(0).getSize());
+    }
+    
     private void injectMock(ResourceRepositoryService service, Sardine sardine) throws Exception {
         Field field = service.getClass().getDeclaredField("sardine");
         field.setAccessible(true);